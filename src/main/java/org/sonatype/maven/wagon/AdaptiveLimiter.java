@@ -0,0 +1,272 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ning.http.util.DateUtil;
+
+/**
+ * Adapts the number of concurrent requests per host to the load the server can take. The limit of a host grows by one
+ * for about every limit-many successful responses and gets halved when the server sheds load with 429 or 503 or when
+ * its response time rises well above the usual (additive increase, multiplicative decrease). Requests beyond the
+ * limit are held back until others finish, rather than piling onto an overloaded server only to fail. Requests to a
+ * host that sent a {@code Retry-After} header are also held back until the indicated time.
+ */
+class AdaptiveLimiter
+{
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private static final double DECREASE = 0.5;
+
+    private static final double LATENCY_WEIGHT = 0.05;
+
+    private static final int LATENCY_SAMPLES = 10;
+
+    private final int maxLimit;
+
+    private final double latencyTolerance;
+
+    private final long maxRetryAfter;
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    /**
+     * @param maxLimit The maximum number of concurrent requests per host, non-positive to not limit the concurrency
+     *            and only honor {@code Retry-After}.
+     * @param latencyTolerance The factor by which the response time may exceed its average before the limit gets
+     *            reduced, non-positive to ignore response times.
+     * @param maxRetryAfter The maximum time in milliseconds to hold back requests due to {@code Retry-After},
+     *            non-positive to ignore the header.
+     */
+    public AdaptiveLimiter( int maxLimit, double latencyTolerance, long maxRetryAfter )
+    {
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    /**
+     * Admits a request to the specified host if its limit isn't reached and it isn't held back by a
+     * {@code Retry-After}.
+     *
+     * @param host The origin of the request, must not be {@code null}.
+     * @return The permit of the request which must be released once the request is finished or {@code null} if the
+     *         request isn't admitted now.
+     */
+    public Permit tryAcquire( String host )
+    {
+        Host h = getHost( host );
+        synchronized ( h )
+        {
+            if ( System.currentTimeMillis() < h.blockedUntil || ( maxLimit > 0 && h.active >= (int) h.limit ) )
+            {
+                return null;
+            }
+            h.active++;
+            return new Permit( h, h.epoch );
+        }
+    }
+
+    /**
+     * Gets the time until the specified host accepts requests again after it sent a {@code Retry-After}.
+     *
+     * @return The delay in milliseconds or {@code 0} if requests aren't held back by the host.
+     */
+    public long getDelay( String host )
+    {
+        Host h = getHost( host );
+        synchronized ( h )
+        {
+            return Math.max( h.blockedUntil - System.currentTimeMillis(), 0 );
+        }
+    }
+
+    private synchronized Host getHost( String host )
+    {
+        Host h = hosts.get( host );
+        if ( h == null )
+        {
+            h = new Host( Math.max( maxLimit, 1 ) );
+            hosts.put( host, h );
+        }
+        return h;
+    }
+
+    /**
+     * Gets the current concurrency limit for the specified host.
+     */
+    public int getLimit( String host )
+    {
+        Host h = getHost( host );
+        synchronized ( h )
+        {
+            return (int) h.limit;
+        }
+    }
+
+    /**
+     * Parses the value of a {@code Retry-After} header, which is either a number of seconds or an HTTP date.
+     *
+     * @return The delay in milliseconds or {@code -1} if the value is missing or malformed.
+     */
+    static long parseRetryAfter( String value, long now )
+    {
+        if ( value == null || value.trim().length() <= 0 )
+        {
+            return -1;
+        }
+        try
+        {
+            return Math.max( Long.parseLong( value.trim() ) * 1000, 0 );
+        }
+        catch ( NumberFormatException e )
+        {
+            try
+            {
+                return Math.max( DateUtil.parseDate( value.trim() ).getTime() - now, 0 );
+            }
+            catch ( DateUtil.DateParseException ex )
+            {
+                return -1;
+            }
+        }
+    }
+
+    static class Host
+    {
+
+        double limit;
+
+        int active;
+
+        long blockedUntil;
+
+        double latency;
+
+        int samples;
+
+        int epoch;
+
+        Host( int limit )
+        {
+            this.limit = limit;
+        }
+
+    }
+
+    /**
+     * Admits a single request and learns from its response.
+     */
+    class Permit
+    {
+
+        private final Host host;
+
+        private final int epoch;
+
+        private long start = System.currentTimeMillis();
+
+        private boolean responded;
+
+        private boolean released;
+
+        Permit( Host host, int epoch )
+        {
+            this.host = host;
+            this.epoch = epoch;
+        }
+
+        /**
+         * Marks the point in time the request is actually sent, from which its response time is measured.
+         */
+        public void issued()
+        {
+            synchronized ( host )
+            {
+                start = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Records the (first) response to the request.
+         *
+         * @param statusCode The status code of the response.
+         * @param retryAfter The value of the {@code Retry-After} header, may be {@code null}.
+         */
+        public void responded( int statusCode, String retryAfter )
+        {
+            synchronized ( host )
+            {
+                if ( responded || released )
+                {
+                    return;
+                }
+                responded = true;
+
+                long now = System.currentTimeMillis();
+                long latency = now - start;
+
+                long delay = ( maxRetryAfter > 0 ) ? parseRetryAfter( retryAfter, now ) : -1;
+                if ( delay > 0 )
+                {
+                    host.blockedUntil = Math.max( host.blockedUntil, now + Math.min( delay, maxRetryAfter ) );
+                }
+
+                boolean overloaded = statusCode == TOO_MANY_REQUESTS || statusCode == SERVICE_UNAVAILABLE;
+                if ( !overloaded && latencyTolerance > 0 )
+                {
+                    overloaded = host.samples >= LATENCY_SAMPLES && latency > host.latency * latencyTolerance;
+                    host.latency =
+                        ( host.samples <= 0 ) ? latency : host.latency + ( latency - host.latency ) * LATENCY_WEIGHT;
+                    host.samples++;
+                }
+
+                if ( maxLimit <= 0 )
+                {
+                    return;
+                }
+                if ( overloaded )
+                {
+                    // requests issued before the last decrease don't reflect it yet, one cut per generation suffices
+                    if ( epoch == host.epoch )
+                    {
+                        host.limit = Math.max( host.limit * DECREASE, 1 );
+                        host.epoch++;
+                    }
+                }
+                else
+                {
+                    host.limit = Math.min( host.limit + 1 / host.limit, maxLimit );
+                }
+            }
+        }
+
+        /**
+         * Releases the permit, making room for the next request.
+         */
+        public void release()
+        {
+            synchronized ( host )
+            {
+                if ( !released )
+                {
+                    released = true;
+                    host.active--;
+                }
+            }
+        }
+
+    }
+
+}
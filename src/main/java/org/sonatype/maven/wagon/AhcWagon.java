@@ -8,14 +8,30 @@ package org.sonatype.maven.wagon;
  * http://www.eclipse.org/legal/epl-v10.html
  *******************************************************************************/
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.InputData;
@@ -28,25 +44,93 @@ import org.apache.maven.wagon.authorization.AuthorizationException;
 import org.apache.maven.wagon.events.TransferEvent;
 import org.apache.maven.wagon.proxy.ProxyInfo;
 import org.apache.maven.wagon.resource.Resource;
+import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.StringUtils;
 
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncCompletionHandlerBase;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.ProxyServer;
 import com.ning.http.client.Realm;
 import com.ning.http.client.Realm.RealmBuilder;
 import com.ning.http.client.Response;
-import com.ning.http.client.providers.netty.NettyAsyncHttpProvider;
+import com.ning.http.util.DateUtil;
 
 public class AhcWagon
     extends StreamWagon
 {
     /**
+     * Enables the client-side response cache in {@link #cacheDirectory}.
+     * 
      * @plexus.configuration default="false"
      */
     private boolean useCache;
 
+    /**
+     * Directory of the response cache, defaults to {@code ~/.m2/wagon-ahc/cache}. The cache can be shared by concurrent
+     * builds.
+     * 
+     * @plexus.configuration
+     */
+    private File cacheDirectory;
+
+    /**
+     * Maximum size in bytes of the content in the response cache, the least recently used responses are evicted beyond.
+     * 
+     * @plexus.configuration default="1073741824"
+     */
+    private long maxCacheSize = 1024L * 1024 * 1024;
+
+    /**
+     * Time in milliseconds for which small resources are served from a memory cache that is shared by all wagons of the
+     * JVM. A non-positive value disables the memory cache.
+     * 
+     * @plexus.configuration default="0"
+     */
+    private long memoryCacheTtl;
+
+    /**
+     * Size in bytes up to which resources are kept in the memory cache.
+     * 
+     * @plexus.configuration default="65536"
+     */
+    private int memoryCacheMaxEntrySize = 64 * 1024;
+
+    /**
+     * Maximum total size in bytes of the resources in the memory cache, the least recently used resources are evicted
+     * beyond.
+     * 
+     * @plexus.configuration default="16777216"
+     */
+    private long memoryCacheMaxSize = 16 * 1024 * 1024;
+
+    /**
+     * Time in milliseconds for which a missing resource is remembered such that repeated requests for it fail without a
+     * round trip to the repository. A non-positive value disables this cache.
+     * 
+     * @plexus.configuration default="0"
+     */
+    private long notFoundCacheTtl;
+
+    /**
+     * Maximum number of missing resources to remember per repository.
+     * 
+     * @plexus.configuration default="10000"
+     */
+    private int notFoundCacheMaxEntries = 10000;
+
+    /**
+     * Lets concurrent requests of the wagons in this JVM for the same resource share a single transfer. The first
+     * request is sent to the server while the others wait for its response and read the same body.
+     * 
+     * @plexus.configuration default="false"
+     */
+    private boolean coalesceRequests;
+
     /**
      * @plexus.configuration default="10"
      */
@@ -65,8 +149,315 @@ public class AhcWagon
      */
     private String credentialEncoding = "ISO-8859-1";
 
+    /**
+     * Size in bytes from which on resources are downloaded via multiple concurrent range requests. The initial request
+     * of a download asks for the entire resource. If its response announces a larger resource along with an entity tag
+     * or modification date and doesn't refuse ranges, only this many bytes are taken from it and the remainder is split
+     * evenly among {@link #downloadSegments} requests. A non-positive value disables segmented downloads.
+     * 
+     * @plexus.configuration default="0"
+     */
+    private long segmentedDownloadThreshold;
+
+    /**
+     * Number of concurrent range requests used to fetch the remainder of a segmented download.
+     * 
+     * @plexus.configuration default="4"
+     */
+    private int downloadSegments = 4;
+
+    /**
+     * File to persist the validators (entity tags, modification dates) of downloaded resources in so that conditional
+     * requests can be made across JVM runs. If not set, the validators are only remembered by the current JVM.
+     * 
+     * @plexus.configuration
+     */
+    private File validatorStore;
+
+    /**
+     * Time in milliseconds for which an HTTP client along with its pooled connections is kept open after the last wagon
+     * using it has been disconnected. Wagons with equal client settings share the client, so a wagon connecting in the
+     * meantime reuses the established connections. A non-positive value closes the client right away.
+     * 
+     * @plexus.configuration default="30000"
+     */
+    private long clientLinger = 30 * 1000;
+
+    /**
+     * Size in bytes up to which the body of a PUT request that can't be streamed is buffered in memory, larger bodies
+     * are buffered in a temporary file.
+     * 
+     * @plexus.configuration default="1048576"
+     */
+    private int putBufferSize = 1024 * 1024;
+
+    /**
+     * Whether PUT requests should carry the header {@code Expect: 100-continue}, so that the server can reject them
+     * (e.g. due to missing permissions) before the body is sent.
+     * 
+     * @plexus.configuration default="false"
+     */
+    private boolean expectContinue;
+
+    /**
+     * Time in milliseconds a PUT request with {@code Expect: 100-continue} waits for the server to accept the body
+     * before the body is sent anyway.
+     * 
+     * @plexus.configuration default="3000"
+     */
+    private long expectContinueTimeout = 3 * 1000;
+
+    /**
+     * Maximum number of concurrent connections to a single host. Requests beyond the limit wait for a connection to
+     * become available. A non-positive value imposes no limit.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int maxConnectionsPerHost = -1;
+
+    /**
+     * Maximum number of concurrent connections across all hosts. Requests beyond the limit wait for a connection to
+     * become available. A non-positive value imposes no limit.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int maxConnectionsTotal = -1;
+
+    /**
+     * Whether connections are kept open after a request to be reused by subsequent requests.
+     * 
+     * @plexus.configuration default="true"
+     */
+    private boolean keepAlive = true;
+
+    /**
+     * Time in milliseconds after which an unused pooled connection is closed.
+     * 
+     * @plexus.configuration default="60000"
+     */
+    private int connectionIdleTimeout = 60 * 1000;
+
+    /**
+     * Time in milliseconds after which a connection is no longer reused, e.g. to let a load balancer redistribute the
+     * connections. A non-positive value reuses connections for as long as the server keeps them open.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private long maxConnectionLifetime = -1;
+
+    /**
+     * Number of connections to the repository to open in the background when the wagon connects, so that the first
+     * transfers don't wait for name resolution, the TCP and TLS handshakes or the proxy tunnel. The connections are
+     * established by concurrent {@code HEAD} requests for the repository root and are then kept in the pool. Already
+     * pooled connections are reused. Requires {@link #keepAlive}, a non-positive value disables pre-warming.
+     * 
+     * @plexus.configuration default="0"
+     */
+    private int prewarmConnections;
+
+    /**
+     * Maximum number of TLS sessions remembered for resumption. The session cache is shared by all wagons in the JVM
+     * with the same key/trust store and TLS session settings. A non-positive value keeps the default of the JRE.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int sslSessionCacheSize = -1;
+
+    /**
+     * Time in milliseconds for which a TLS session can be resumed. A non-positive value keeps the default of the JRE.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private long sslSessionTimeout = -1;
+
+    /**
+     * Comma-separated list of the cipher suites to offer for TLS connections, in order of preference. Suites not
+     * supported by the JRE are skipped. If not set, the defaults of the JRE are offered.
+     * 
+     * @plexus.configuration
+     */
+    private String sslCipherSuites;
+
+    /**
+     * Time in milliseconds to wait for a connection to be established. A non-positive value uses the timeout of the
+     * wagon.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int connectionTimeout = -1;
+
+    /**
+     * Time in milliseconds a request may go without any data from the server before it fails. A non-positive value
+     * uses the timeout of the wagon.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int readTimeout = -1;
+
+    /**
+     * Time in milliseconds a download waits for the response headers before the request is cancelled and its
+     * connection closed. A non-positive value uses the read timeout.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int headerTimeout = -1;
+
+    /**
+     * Maximum time in milliseconds a request including the transfer of its body may take, regardless of whether data
+     * is flowing. A non-positive value imposes no limit so that large transfers can take as long as they need.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private long transferTimeout = -1;
+
+    /**
+     * Minimum number of bytes per second a download needs to achieve, measured over {@link #minThroughputPeriod}.
+     * Slower downloads are aborted and, if they can be resumed, retried on a new connection. Periods during which the
+     * consumer of the download lags behind don't count. A non-positive value disables the check.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private long minThroughput = -1;
+
+    /**
+     * Period in milliseconds over which the throughput of a download is measured.
+     * 
+     * @plexus.configuration default="10000"
+     */
+    private long minThroughputPeriod = 10 * 1000;
+
+    /**
+     * Number of times a download that got aborted for falling below {@link #minThroughput} is resumed before the
+     * transfer fails.
+     * 
+     * @plexus.configuration default="2"
+     */
+    private int stalledTransferRetries = 2;
+
+    /**
+     * Maximum number of times a failed request is sent again. Only requests which can be repeated safely are retried,
+     * i.e. downloads, existence checks and uploads whose body is still at hand. A non-positive value disables retries.
+     * 
+     * @plexus.configuration default="2"
+     */
+    private int maxRetries = 2;
+
+    /**
+     * Time in milliseconds to wait at most before the first retry, doubling with each further retry. The actual wait
+     * is chosen randomly up to this bound.
+     * 
+     * @plexus.configuration default="200"
+     */
+    private long retryBackoff = 200;
+
+    /**
+     * Upper limit in milliseconds for the time to wait before a retry.
+     * 
+     * @plexus.configuration default="10000"
+     */
+    private long retryMaxBackoff = 10 * 1000;
+
+    /**
+     * Comma-separated status codes of responses that are retried.
+     * 
+     * @plexus.configuration default="408,429,502,503,504"
+     */
+    private String retryStatusCodes = "408,429,502,503,504";
+
+    /**
+     * Comma-separated class names of exceptions that are retried, including their subclasses and exceptions caused by
+     * them.
+     * 
+     * @plexus.configuration default="java.io.IOException,java.util.concurrent.TimeoutException"
+     */
+    private String retryExceptions = "java.io.IOException,java.util.concurrent.TimeoutException";
+
+    /**
+     * Comma-separated class names of exceptions that are never retried, taking precedence over
+     * {@link #retryExceptions}.
+     * 
+     * @plexus.configuration default="java.net.UnknownHostException,javax.net.ssl.SSLException"
+     */
+    private String noRetryExceptions = "java.net.UnknownHostException,javax.net.ssl.SSLException";
+
+    /**
+     * Fraction of a retry that each operation of the wagon earns. Retries beyond the earned budget fail right away,
+     * so that a server which is down doesn't get hammered with retries.
+     * 
+     * @plexus.configuration default="0.1"
+     */
+    private double retryBudgetRatio = 0.1;
+
+    /**
+     * Number of retries available to the wagon up front, which is also the most it can save up.
+     * 
+     * @plexus.configuration default="10"
+     */
+    private int retryBudgetReserve = 10;
+
+    /**
+     * Maximum number of concurrent requests per host, up to which the concurrency is adapted to the load of the
+     * server. The limit is halved whenever the server sheds load with 429 or 503 or responds much slower than usual
+     * and slowly grows back as requests succeed. Requests beyond the limit wait for others to finish. A non-positive
+     * value disables the adaptation.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private int adaptiveMaxConcurrency = -1;
+
+    /**
+     * Factor by which the response time of a server may exceed its average before the adaptive concurrency gets
+     * reduced. A non-positive value ignores response times.
+     * 
+     * @plexus.configuration default="3"
+     */
+    private double latencyTolerance = 3;
+
+    /**
+     * Maximum time in milliseconds to hold back requests to a server that asked for it via {@code Retry-After}. A
+     * non-positive value ignores the header.
+     * 
+     * @plexus.configuration default="60000"
+     */
+    private long maxRetryAfter = 60 * 1000;
+
+    /**
+     * Comma-separated base URLs of mirrors that serve the same content as the repository. Downloads and existence
+     * checks go to the repository or mirror with the best response times and error rates and fail over to another one
+     * when a request fails or is answered with a server error. Uploads always go to the repository itself.
+     * 
+     * @plexus.configuration
+     */
+    private String mirrors;
+
+    /**
+     * Time in milliseconds between two health probes of a mirror that was taken out of rotation after a failure.
+     * 
+     * @plexus.configuration default="30000"
+     */
+    private long mirrorProbeInterval = 30 * 1000;
+
+    /**
+     * Percentile of the recently observed times to the response headers after which a download or existence check
+     * that is still waiting for its response is sent a second time, to another mirror if available. The response that
+     * arrives first is used and the other request is cancelled. A value of 95 duplicates about one in twenty requests
+     * and cuts off most of the tail latency. A request is not hedged if the connection limits leave no room for the
+     * second request right away. A non-positive value disables hedging.
+     * 
+     * @plexus.configuration default="-1"
+     */
+    private double hedgePercentile = -1;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     private AsyncHttpClient httpClient;
 
+    private ValidatorStore validators;
+
+    private RetryPolicy retryPolicy;
+
+    private MirrorSelector mirrorSelector;
+
     @Override
     protected void openConnectionInternal()
         throws ConnectionException, AuthenticationException
@@ -132,12 +523,32 @@ public class AhcWagon
             }                    
         }
         
-        builder.setConnectionTimeoutInMs( getTimeout() );
-        builder.setRequestTimeoutInMs( getTimeout() );
+        builder.setConnectionTimeoutInMs( connectionTimeout > 0 ? connectionTimeout : getTimeout() );
+        // NOTE: despite its name, the request timeout of the client is reset whenever data arrives
+        builder.setRequestTimeoutInMs( readTimeout > 0 ? readTimeout : getTimeout() );
         builder.setFollowRedirects( maxRedirections > 0 );
         builder.setMaximumNumberOfRedirects( maxRedirections );
         builder.setUserAgent( "Apache-Maven" );
         builder.setCompressionEnabled( true );
+        builder.setAllowPoolingConnection( keepAlive );
+        builder.setMaximumConnectionsPerHost( maxConnectionsPerHost > 0 ? maxConnectionsPerHost : -1 );
+        if ( connectionIdleTimeout > 0 )
+        {
+            builder.setIdleConnectionInPoolTimeoutInMs( connectionIdleTimeout );
+        }
+        // NOTE: the client itself fails requests beyond its total limit, the provider makes them wait instead
+        NettyProviderConfig providerConfig = new NettyProviderConfig();
+        providerConfig.setMaxConnectionsTotal( maxConnectionsTotal );
+        providerConfig.setMaxConnectionLifetime( maxConnectionLifetime );
+        providerConfig.setTransferTimeout( transferTimeout );
+        providerConfig.setMinThroughput( minThroughput );
+        providerConfig.setMinThroughputPeriod( minThroughputPeriod );
+        providerConfig.setAdaptiveMaxConcurrency( adaptiveMaxConcurrency );
+        providerConfig.setLatencyTolerance( latencyTolerance );
+        providerConfig.setMaxRetryAfter( maxRetryAfter );
+        builder.setAsyncHttpClientProviderConfig( providerConfig );
+        builder.setSSLEngineFactory( new SharedSslEngineFactory( sslSessionCacheSize, sslSessionTimeout,
+                                                                 sslCipherSuites ) );
         
         if ( httpHeaders != null && httpHeaders.getProperty( "User-Agent" ) != null )
         {
@@ -146,8 +557,95 @@ public class AhcWagon
 
         AsyncHttpClientConfig config = builder.build();
 
-        // NOTE: Explicitly specify provider to workaround class loading bug in ahc:1.4.0
-        httpClient = new AsyncHttpClient( new NettyAsyncHttpProvider( config ), config );
+        try
+        {
+            retryPolicy =
+                new RetryPolicy( maxRetries, retryBackoff, retryMaxBackoff, retryStatusCodes, retryExceptions,
+                                 noRetryExceptions, retryBudgetRatio, retryBudgetReserve );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new ConnectionException( "Invalid wagon configuration: " + e.getMessage(), e );
+        }
+
+        httpClient = HttpClientRegistry.getInstance().acquire( config );
+
+        mirrorSelector = MirrorSelector.getInstance( getRepository().getUrl(), mirrors );
+
+        validators = ValidatorStore.getInstance();
+        if ( validatorStore != null )
+        {
+            try
+            {
+                validators = ValidatorStore.getInstance( validatorStore );
+            }
+            catch ( IOException e )
+            {
+                // NOTE: conditional requests are merely an optimization, an unusable store must not fail the build
+            }
+        }
+
+        if ( keepAlive && prewarmConnections > 0 )
+        {
+            prewarmConnections( getRepository().getUrl() );
+        }
+    }
+
+    /**
+     * Opens connections to the specified URL in the background by issuing concurrent requests for it. The responses
+     * themselves are of no interest and any failure is left for the actual transfers to report.
+     */
+    private void prewarmConnections( String url )
+    {
+        int count = prewarmConnections;
+        if ( maxConnectionsPerHost > 0 )
+        {
+            count = Math.min( count, maxConnectionsPerHost );
+        }
+        if ( maxConnectionsTotal > 0 )
+        {
+            count = Math.min( count, maxConnectionsTotal );
+        }
+
+        final List<BoundRequestBuilder> builders = new ArrayList<BoundRequestBuilder>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            BoundRequestBuilder builder = httpClient.prepareHead( url );
+            addHeaders( builder );
+            builders.add( builder );
+        }
+
+        // NOTE: requests wait for the connection limits when issued, which must not hold up the caller
+        Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                for ( BoundRequestBuilder builder : builders )
+                {
+                    try
+                    {
+                        builder.execute();
+                    }
+                    catch ( IOException e )
+                    {
+                        // the client is closed or busy, pre-warming is merely an optimization
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        // ditto
+                    }
+                }
+            }
+        };
+
+        try
+        {
+            httpClient.getConfig().executorService().execute( task );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // the client is being closed
+        }
     }
 
     @Override
@@ -156,7 +654,7 @@ public class AhcWagon
     {
         if ( httpClient != null )
         {
-            httpClient.close();
+            HttpClientRegistry.getInstance().release( httpClient, clientLinger );
             httpClient = null;
         }
     }
@@ -174,127 +672,1222 @@ public class AhcWagon
         }
     }
 
-    private void addHeaders( BoundRequestBuilder builder )
+    public void setSegmentedDownloadThreshold( long segmentedDownloadThreshold )
     {
-        builder.addHeader( "Accept-Encoding", "gzip" );
+        this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+    }
 
-        if ( !useCache )
-        {
-            builder.addHeader( "Pragma", "no-cache" );
-            builder.addHeader( "Cache-Control", "no-cache, no-store" );
-        }
+    public void setDownloadSegments( int downloadSegments )
+    {
+        this.downloadSegments = downloadSegments;
+    }
 
-        if ( httpHeaders != null )
-        {
-            for ( Object key : httpHeaders.keySet() )
-            {
-                builder.addHeader( key.toString(), httpHeaders.getProperty( key.toString() ) );
-            }
-        }
+    public void setValidatorStore( File validatorStore )
+    {
+        this.validatorStore = validatorStore;
     }
 
-    @Override
+    public void setClientLinger( long clientLinger )
+    {
+        this.clientLinger = clientLinger;
+    }
+
+    public void setPutBufferSize( int putBufferSize )
+    {
+        this.putBufferSize = putBufferSize;
+    }
+
+    public void setExpectContinue( boolean expectContinue )
+    {
+        this.expectContinue = expectContinue;
+    }
+
+    public void setExpectContinueTimeout( long expectContinueTimeout )
+    {
+        this.expectContinueTimeout = expectContinueTimeout;
+    }
+
+    public void setMaxConnectionsPerHost( int maxConnectionsPerHost )
+    {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsTotal( int maxConnectionsTotal )
+    {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    public void setKeepAlive( boolean keepAlive )
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setConnectionIdleTimeout( int connectionIdleTimeout )
+    {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    public void setMaxConnectionLifetime( long maxConnectionLifetime )
+    {
+        this.maxConnectionLifetime = maxConnectionLifetime;
+    }
+
+    public void setPrewarmConnections( int prewarmConnections )
+    {
+        this.prewarmConnections = prewarmConnections;
+    }
+
+    public void setSslSessionCacheSize( int sslSessionCacheSize )
+    {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+    }
+
+    public void setSslSessionTimeout( long sslSessionTimeout )
+    {
+        this.sslSessionTimeout = sslSessionTimeout;
+    }
+
+    public void setSslCipherSuites( String sslCipherSuites )
+    {
+        this.sslCipherSuites = sslCipherSuites;
+    }
+
+    public void setConnectionTimeout( int connectionTimeout )
+    {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public void setReadTimeout( int readTimeout )
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setHeaderTimeout( int headerTimeout )
+    {
+        this.headerTimeout = headerTimeout;
+    }
+
+    public void setTransferTimeout( long transferTimeout )
+    {
+        this.transferTimeout = transferTimeout;
+    }
+
+    public void setMinThroughput( long minThroughput )
+    {
+        this.minThroughput = minThroughput;
+    }
+
+    public void setMinThroughputPeriod( long minThroughputPeriod )
+    {
+        this.minThroughputPeriod = minThroughputPeriod;
+    }
+
+    public void setStalledTransferRetries( int stalledTransferRetries )
+    {
+        this.stalledTransferRetries = stalledTransferRetries;
+    }
+
+    public void setMaxRetries( int maxRetries )
+    {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setRetryBackoff( long retryBackoff )
+    {
+        this.retryBackoff = retryBackoff;
+    }
+
+    public void setRetryMaxBackoff( long retryMaxBackoff )
+    {
+        this.retryMaxBackoff = retryMaxBackoff;
+    }
+
+    public void setRetryStatusCodes( String retryStatusCodes )
+    {
+        this.retryStatusCodes = retryStatusCodes;
+    }
+
+    public void setRetryExceptions( String retryExceptions )
+    {
+        this.retryExceptions = retryExceptions;
+    }
+
+    public void setNoRetryExceptions( String noRetryExceptions )
+    {
+        this.noRetryExceptions = noRetryExceptions;
+    }
+
+    public void setRetryBudgetRatio( double retryBudgetRatio )
+    {
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+
+    public void setRetryBudgetReserve( int retryBudgetReserve )
+    {
+        this.retryBudgetReserve = retryBudgetReserve;
+    }
+
+    public void setAdaptiveMaxConcurrency( int adaptiveMaxConcurrency )
+    {
+        this.adaptiveMaxConcurrency = adaptiveMaxConcurrency;
+    }
+
+    public void setLatencyTolerance( double latencyTolerance )
+    {
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    public void setMaxRetryAfter( long maxRetryAfter )
+    {
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    public void setMirrors( String mirrors )
+    {
+        this.mirrors = mirrors;
+    }
+
+    public void setMirrorProbeInterval( long mirrorProbeInterval )
+    {
+        this.mirrorProbeInterval = mirrorProbeInterval;
+    }
+
+    public void setHedgePercentile( double hedgePercentile )
+    {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    private int getHeaderTimeout()
+    {
+        if ( headerTimeout > 0 )
+        {
+            return headerTimeout;
+        }
+        return ( readTimeout > 0 ) ? readTimeout : getTimeout();
+    }
+
+    /**
+     * Gets the connection usage of the HTTP client of this wagon, which is shared with other wagons of equal settings.
+     * 
+     * @return The connection statistics or {@code null} if the wagon isn't connected.
+     */
+    public ConnectionStatistics getConnectionStatistics()
+    {
+        return ( httpClient != null ) ? getProvider().getStatistics() : null;
+    }
+
+    public void setUseCache( boolean useCache )
+    {
+        this.useCache = useCache;
+    }
+
+    public void setCacheDirectory( File cacheDirectory )
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setMaxCacheSize( long maxCacheSize )
+    {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    public void setMemoryCacheTtl( long memoryCacheTtl )
+    {
+        this.memoryCacheTtl = memoryCacheTtl;
+    }
+
+    public void setMemoryCacheMaxEntrySize( int memoryCacheMaxEntrySize )
+    {
+        this.memoryCacheMaxEntrySize = memoryCacheMaxEntrySize;
+    }
+
+    public void setMemoryCacheMaxSize( long memoryCacheMaxSize )
+    {
+        this.memoryCacheMaxSize = memoryCacheMaxSize;
+    }
+
+    public void setNotFoundCacheTtl( long notFoundCacheTtl )
+    {
+        this.notFoundCacheTtl = notFoundCacheTtl;
+    }
+
+    public void setNotFoundCacheMaxEntries( int notFoundCacheMaxEntries )
+    {
+        this.notFoundCacheMaxEntries = notFoundCacheMaxEntries;
+    }
+
+    public void setCoalesceRequests( boolean coalesceRequests )
+    {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    private NotFoundCache getNotFoundCache()
+    {
+        if ( notFoundCacheTtl <= 0 )
+        {
+            return null;
+        }
+
+        return NotFoundCache.getInstance( getRepository().getUrl(), notFoundCacheMaxEntries );
+    }
+
+    /**
+     * Drops all cached knowledge about a resource after it has been deployed.
+     */
+    private void invalidate( String url )
+    {
+        MemoryCache.getInstance().removeAll( url );
+        NotFoundCache notFoundCache = getNotFoundCache();
+        if ( notFoundCache != null )
+        {
+            notFoundCache.remove( url );
+        }
+    }
+
+    private MemoryCache getMemoryCache()
+    {
+        if ( memoryCacheTtl <= 0 )
+        {
+            return null;
+        }
+
+        MemoryCache cache = MemoryCache.getInstance();
+        cache.setMaxSize( memoryCacheMaxSize );
+        return cache;
+    }
+
+    /**
+     * Gets the key of a resource in the memory cache, which depends on the credentials of the wagon.
+     */
+    private String getMemoryCacheKey( String url )
+    {
+        if ( authenticationInfo != null )
+        {
+            return MemoryCache.getKey( url, authenticationInfo.getUserName(), authenticationInfo.getPassword() );
+        }
+        return url;
+    }
+
+    /**
+     * Gets the key under which concurrent requests for a resource are coalesced. Besides the credentials, the key
+     * includes the request headers as they might select a different variant of the resource.
+     */
+    private String getCoalescingKey( String url )
+    {
+        return getMemoryCacheKey( url ) + '\n' + new TreeMap<String, String>( getRequestHeaders() );
+    }
+
+    /**
+     * Joins the transfer of a concurrent request for the same resource.
+     *
+     * @return The transfer or {@code null} if none is in flight or coalescing is disabled.
+     */
+    private RequestCoalescer.Transfer joinTransfer( String key )
+    {
+        return coalesceRequests ? RequestCoalescer.getInstance().join( key ) : null;
+    }
+
+    /**
+     * Registers an unconditional request for other wagons to join.
+     *
+     * @return The transfer or {@code null} if coalescing is disabled or another request got registered first.
+     */
+    private RequestCoalescer.Transfer createTransfer( String key )
+    {
+        return coalesceRequests ? RequestCoalescer.getInstance().create( key ) : null;
+    }
+
+    /**
+     * Waits for the status of a joined transfer. Unless the status is 200, the transfer is released.
+     */
+    private static int awaitTransfer( RequestCoalescer.Transfer transfer )
+        throws InterruptedException
+    {
+        int statusCode = -1;
+        try
+        {
+            statusCode = transfer.await();
+            return statusCode;
+        }
+        finally
+        {
+            if ( statusCode != HttpURLConnection.HTTP_OK )
+            {
+                transfer.release();
+            }
+        }
+    }
+
+    private ResponseCache getResponseCache()
+    {
+        if ( !useCache )
+        {
+            return null;
+        }
+
+        File directory = cacheDirectory;
+        if ( directory == null )
+        {
+            directory = new File( System.getProperty( "user.home" ), ".m2/wagon-ahc/cache" );
+        }
+        return ResponseCache.getInstance( directory, maxCacheSize );
+    }
+
+    /**
+     * Gets the headers sent along with a GET request as far as they can select a variant of a cached response.
+     */
+    private Map<String, String> getRequestHeaders()
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put( "accept-encoding", "gzip" );
+        headers.put( "user-agent", "Apache-Maven" );
+
+        if ( httpHeaders != null )
+        {
+            for ( Object key : httpHeaders.keySet() )
+            {
+                headers.put( key.toString().toLowerCase( Locale.ENGLISH ), httpHeaders.getProperty( key.toString() ) );
+            }
+        }
+
+        return headers;
+    }
+
+    /**
+     * Indicates whether requests carry credentials for the server, be it via the authentication info of the wagon or
+     * via a configured {@code Authorization} header.
+     */
+    private boolean isAuthenticated()
+    {
+        if ( authenticationInfo != null && authenticationInfo.getUserName() != null )
+        {
+            return true;
+        }
+
+        if ( httpHeaders != null )
+        {
+            for ( Object key : httpHeaders.keySet() )
+            {
+                if ( "Authorization".equalsIgnoreCase( key.toString() ) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void addHeaders( BoundRequestBuilder builder )
+    {
+        builder.addHeader( "Accept-Encoding", "gzip" );
+
+        if ( !useCache )
+        {
+            builder.addHeader( "Pragma", "no-cache" );
+            builder.addHeader( "Cache-Control", "no-cache, no-store" );
+        }
+
+        if ( httpHeaders != null )
+        {
+            for ( Object key : httpHeaders.keySet() )
+            {
+                builder.addHeader( key.toString(), httpHeaders.getProperty( key.toString() ) );
+            }
+        }
+    }
+
+    /**
+     * Adds the headers for a conditional request which the server answers with 304 if the resource has not been
+     * modified since the specified timestamp or still matches the entity tag recorded for the destination file.
+     */
+    private void addConditions( BoundRequestBuilder builder, String url, File destination, long timestamp )
+    {
+        if ( timestamp <= 0 )
+        {
+            return;
+        }
+
+        builder.addHeader( "If-Modified-Since", DateUtil.formatDate( new Date( timestamp ) ) );
+
+        ValidatorStore.Entry entry = ( destination != null ) ? validators.get( url ) : null;
+        if ( entry != null && entry.getEntityTag() != null && entry.matches( destination ) )
+        {
+            builder.addHeader( "If-None-Match", entry.getEntityTag() );
+        }
+    }
+
+    /**
+     * Adds the headers to revalidate a cached response.
+     */
+    private void addConditions( BoundRequestBuilder builder, ResponseCache.Entry cached )
+    {
+        if ( cached.getLastModified() > 0 )
+        {
+            builder.addHeader( "If-Modified-Since", DateUtil.formatDate( new Date( cached.getLastModified() ) ) );
+        }
+        if ( cached.getEntityTag() != null )
+        {
+            builder.addHeader( "If-None-Match", cached.getEntityTag() );
+        }
+    }
+
+    @Override
     public boolean resourceExists( String resourceName )
         throws TransferFailedException, AuthorizationException
     {
+        Lookup lookup = null;
+
+        try
+        {
+            String url = UrlUtils.buildUrl( getRepository().getUrl(), resourceName );
+
+            lookup = new Lookup( url );
+            if ( lookup.isMissing() )
+            {
+                return false;
+            }
+
+            int joined = lookup.joinCheck();
+            if ( joined == HttpURLConnection.HTTP_OK )
+            {
+                return true;
+            }
+            if ( joined == HttpURLConnection.HTTP_NOT_FOUND )
+            {
+                return false;
+            }
+
+            BoundRequestBuilder builder = httpClient.prepareHead( url );
+            addHeaders( builder );
+            Response response = execute( builder, resourceName, newBufferedSender() ).get();
+            
+            int statusCode = response.getStatusCode();
+            lookup.checked( statusCode );
+            switch ( statusCode )
+            {
+                case HttpURLConnection.HTTP_OK:
+                    return true;
+                    
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    return false;
+                    
+                case HttpURLConnection.HTTP_UNAUTHORIZED:                    
+                case HttpURLConnection.HTTP_FORBIDDEN:
+                    throw new AuthorizationException( "Access denied to: " + url + " (" + statusCode + ")" );
+                
+                default:
+                    throw new TransferFailedException( "Failed to check for existence of resource " + url + " ("
+                        + statusCode + ")" );
+            }
+        }
+        catch ( URISyntaxException e )
+        {
+            return false;
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+        }
+        catch ( RuntimeException e )
+        {
+            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+        }
+        finally
+        {
+            if ( lookup != null )
+            {
+                lookup.end();
+            }
+        }
+    }
+
+    @Override
+    public void fillInputData( InputData inputData )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        Resource resource = inputData.getResource();
+
+        Lookup lookup = null;
+
+        try
+        {
+            String url = UrlUtils.buildUrl( getRepository().getUrl(), resource.getName() );
+
+            lookup = new Lookup( url );
+            if ( lookup.isMissing() )
+            {
+                throw new ResourceDoesNotExistException( "Unable to locate resource in repository" );
+            }
+
+            MemoryCache.Entry entry = lookup.getFromMemory();
+            if ( entry != null )
+            {
+                inputData.setInputStream( new ByteArrayInputStream( entry.getContent() ) );
+                resource.setLastModified( entry.getLastModified() );
+                resource.setContentLength( entry.getContent().length );
+                return;
+            }
+
+            ResponseCache.Entry cached = lookup.getCached();
+            if ( cached != null && cached.isFresh() )
+            {
+                readFromCache( inputData, cached );
+                return;
+            }
+
+            RequestCoalescer.Transfer transfer = lookup.join( resource.getLastModified() );
+            if ( transfer != null )
+            {
+                inputData.setInputStream( transfer.newInputStream() );
+                resource.setLastModified( transfer.getLastModified() );
+                resource.setContentLength( transfer.getContentLength() );
+                return;
+            }
+
+            BoundRequestBuilder builder = httpClient.prepareGet( url );
+            builder.setFollowRedirects( true );
+            addHeaders( builder );
+            lookup.addConditions( builder, null, resource.getLastModified() );
+
+            GetExchange exchange = execute( builder, resource.getName(), newStreamingSender( url ) );
+
+            int statusCode = exchange.getStatusCode();
+            if ( statusCode != HttpURLConnection.HTTP_OK && statusCode != HttpURLConnection.HTTP_NOT_MODIFIED )
+            {
+                // nobody is going to read the error page, don't let it fill up the exchange
+                exchange.getInputStream().close();
+            }
+            lookup.received( statusCode );
+
+            if ( statusCode == HttpURLConnection.HTTP_NOT_MODIFIED )
+            {
+                exchange.getInputStream().close();
+
+                cached = lookup.revalidated( exchange.getHeaders() );
+                if ( cached != null )
+                {
+                    readFromCache( inputData, cached );
+                    return;
+                }
+
+                // the resource keeps the timestamp of the conditional request so the caller won't read the stream
+                inputData.setInputStream( new ByteArrayInputStream( new byte[0] ) );
+                return;
+            }
+
+            InputStream is = exchange.getInputStream();
+            for ( CacheWriter writer : lookup.newWriters( exchange.getHeaders(), exchange.getLastModified(),
+                                                          exchange.getContentLength() ) )
+            {
+                // the writers are done once the consumer has read the body
+                is = new CachingInputStream( is, writer );
+            }
+
+            inputData.setInputStream( is );
+            resource.setLastModified( exchange.getLastModified() );
+            resource.setContentLength( exchange.getContentLength() );
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new ResourceDoesNotExistException( "Invalid repository URL", e );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = ( e.getCause() != null ) ? e.getCause() : e;
+            throw new TransferFailedException( "Error transferring file: " + cause.getMessage(), cause );
+        }
+        finally
+        {
+            if ( lookup != null )
+            {
+                lookup.end();
+            }
+        }
+    }
+
+    private void readFromCache( InputData inputData, ResponseCache.Entry cached )
+        throws IOException
+    {
+        inputData.setInputStream( new FileInputStream( cached.getFile() ) );
+        inputData.getResource().setLastModified( cached.getLastModified() );
+        inputData.getResource().setContentLength( cached.getContentLength() );
+    }
+
+    @Override
+    public boolean getIfNewerToStream( String resourceName, OutputStream stream, long timestamp )
+        throws ResourceDoesNotExistException, TransferFailedException, AuthorizationException
+    {
+        Resource resource = new Resource( resourceName );
+
+        fireGetInitiated( resource, null );
+
+        // NOTE: fillInputData() turns the timestamp into a conditional request
+        resource.setLastModified( timestamp );
+
+        InputStream is = getInputStream( resource );
+
+        if ( timestamp != 0 && timestamp >= resource.getLastModified() )
+        {
+            IOUtil.close( is );
+            return false;
+        }
+
+        checkInputStream( is, resource );
+
+        fireGetStarted( resource, null );
+
+        getTransfer( resource, stream, is, true, Integer.MAX_VALUE );
+
+        fireGetCompleted( resource, null );
+
+        return true;
+    }
+
+    @Override
+    public boolean getIfNewer( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        Resource resource = new Resource( resourceName );
+
+        fireGetInitiated( resource, destination );
+
+        resource.setLastModified( timestamp );
+
+        try
+        {
+            return getToFile( resource, destination, timestamp );
+        }
+        catch ( TransferFailedException e )
+        {
+            fireTransferError( resource, e, TransferEvent.REQUEST_GET );
+            throw e;
+        }
+        catch ( ResourceDoesNotExistException e )
+        {
+            fireTransferError( resource, e, TransferEvent.REQUEST_GET );
+            throw e;
+        }
+        catch ( AuthorizationException e )
+        {
+            fireTransferError( resource, e, TransferEvent.REQUEST_GET );
+            throw e;
+        }
+    }
+
+    private boolean getToFile( Resource resource, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        FileGetHandler handler = null;
+
+        Lookup lookup = null;
+
+        try
+        {
+            String url = UrlUtils.buildUrl( getRepository().getUrl(), resource.getName() );
+
+            lookup = new Lookup( url );
+            if ( lookup.isMissing() )
+            {
+                throw new ResourceDoesNotExistException( "Unable to locate resource in repository" );
+            }
+
+            MemoryCache.Entry entry = lookup.getFromMemory();
+            if ( entry != null )
+            {
+                handler = new FileGetHandler( this, resource, destination, timestamp, null, 0 );
+                return getFromMemory( handler, entry );
+            }
+
+            ResponseCache.Entry cached = lookup.getCached();
+            if ( cached != null && cached.isFresh() )
+            {
+                handler = new FileGetHandler( this, resource, destination, timestamp, null, 0 );
+                return getFromCache( url, handler, cached );
+            }
+
+            RequestCoalescer.Transfer transfer = lookup.join( timestamp );
+            if ( transfer != null )
+            {
+                handler = new FileGetHandler( this, resource, destination, timestamp, null, 0 );
+                return getFromTransfer( handler, transfer );
+            }
+
+            DownloadJournal journal = new DownloadJournal( destination, url );
+
+            MirrorSelector.Route route = newRoute();
+            String requestUrl;
+            boolean started = false;
+            retryPolicy.requested();
+            for ( int retries = stalledTransferRetries, retry = 1;; )
+            {
+                requestUrl = UrlUtils.buildUrl( route.next().getUrl(), resource.getName() );
+                try
+                {
+                    if ( journal.load() )
+                    {
+                        // resume the previously interrupted download unless the entity has changed in the meantime
+                        long offset = journal.getLength();
+                        handler = new FileGetHandler( this, resource, destination, timestamp, journal, offset );
+                        handler.setStarted( started );
+                        getToFile( lookup, requestUrl, handler, "bytes=" + offset + "-", journal.getValidator() );
+                    }
+                    else
+                    {
+                        handler = new FileGetHandler( this, resource, destination, timestamp, journal, 0 );
+                        handler.setSegmentThreshold( segmentedDownloadThreshold );
+                        getToFile( lookup, requestUrl, handler, null, null );
+                    }
+
+                    if ( handler.getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR )
+                    {
+                        // the duration of a download says more about the size of the file than about the mirror
+                        route.succeeded( false );
+                    }
+                    else if ( route.failover() )
+                    {
+                        handler.discard();
+                        continue;
+                    }
+                    if ( !retryPolicy.isRetryable( handler.getStatusCode() ) || !retryPolicy.retry( retry++ ) )
+                    {
+                        break;
+                    }
+                    handler.discard();
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof StalledTransferException && retries > 0 && journal.load() )
+                    {
+                        // the stalled connection is gone, pick up where it left off on a fresh one, preferably from
+                        // another mirror
+                        retries--;
+                        route.failover();
+                    }
+                    else if ( ( handler.isTransferring() && !journal.load() )
+                        || ( !failover( route, e.getCause() ) && ( !retryPolicy.isRetryable( e.getCause() )
+                            || !retryPolicy.retry( retry++ ) ) ) )
+                    {
+                        // NOTE: a download that has already reported progress can only be continued, not restarted
+                        throw e;
+                    }
+                    started |= handler.isTransferring();
+                    handler.discard();
+                }
+            }
+
+            if ( handler.getStatusCode() == HTTP_RANGE_NOT_SATISFIABLE )
+            {
+                // a shrunken resource can't satisfy the range of a resumed download, fetch it without
+                handler.discard();
+                handler = new FileGetHandler( this, resource, destination, timestamp, journal, 0 );
+                getToFile( lookup, requestUrl, handler, null, null );
+            }
+
+            int statusCode = handler.getStatusCode();
+            lookup.received( statusCode );
+
+            if ( statusCode == HttpURLConnection.HTTP_NOT_MODIFIED )
+            {
+                ResponseCache.Entry revalidated = lookup.revalidated( handler.getHeaders() );
+                if ( revalidated != null )
+                {
+                    handler.discard();
+                    handler = new FileGetHandler( this, resource, destination, timestamp, null, 0 );
+                    return getFromCache( url, handler, revalidated );
+                }
+                return false;
+            }
+
+            if ( handler.isPartial() && handler.isTransferring() )
+            {
+                getSegments( requestUrl, handler );
+            }
+
+            if ( !handler.isTransferring() )
+            {
+                return false;
+            }
+
+            handler.commit();
+
+            validators.put( url, new ValidatorStore.Entry( handler.getEntityTag(), resource.getLastModified(),
+                                                           destination.length(), handler.getChecksum() ) );
+
+            for ( CacheWriter writer : lookup.newWriters( handler.getHeaders(), resource.getLastModified(),
+                                                          destination.length() ) )
+            {
+                addToCache( writer, destination );
+            }
+
+            fireGetCompleted( resource, destination );
+
+            return true;
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new ResourceDoesNotExistException( "Invalid repository URL", e );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = ( e.getCause() != null ) ? e.getCause() : e;
+            throw new TransferFailedException( "Error transferring file: " + cause.getMessage(), cause );
+        }
+        finally
+        {
+            if ( handler != null )
+            {
+                handler.discard();
+            }
+            if ( lookup != null )
+            {
+                lookup.end();
+            }
+        }
+    }
+
+    private void getToFile( Lookup lookup, String requestUrl, FileGetHandler handler, String range, String ifRange )
+        throws IOException, InterruptedException, ExecutionException
+    {
+        BoundRequestBuilder builder = httpClient.prepareGet( requestUrl );
+        builder.setFollowRedirects( true );
+        addHeaders( builder );
+        lookup.addConditions( builder, handler.getDestination(), handler.getTimestamp() );
+
+        if ( range != null )
+        {
+            addRange( builder, range, ifRange );
+        }
+
+        builder.execute( handler ).get();
+    }
+
+    private static void addRange( BoundRequestBuilder builder, String range, String ifRange )
+    {
+        // NOTE: the connection asks for the unencoded entity, see RangeEncodingHandler
+        builder.addHeader( "Range", range );
+        if ( ifRange != null )
+        {
+            builder.addHeader( "If-Range", ifRange );
+        }
+    }
+
+    private boolean getFromMemory( FileGetHandler handler, MemoryCache.Entry entry )
+        throws IOException
+    {
+        byte[] content = entry.getContent();
+        if ( !handler.transferFrom( new ByteArrayInputStream( content ), entry.getLastModified(), content.length ) )
+        {
+            return false;
+        }
+
+        handler.commit();
+
+        fireGetCompleted( handler.getResource(), handler.getDestination() );
+
+        return true;
+    }
+
+    private boolean getFromCache( String url, FileGetHandler handler, ResponseCache.Entry cached )
+        throws IOException
+    {
+        InputStream is = new FileInputStream( cached.getFile() );
         try
         {
-            String url = UrlUtils.buildUrl( getRepository().getUrl(), resourceName );
+            if ( !handler.transferFrom( is, cached.getLastModified(), cached.getContentLength() ) )
+            {
+                return false;
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
 
-            BoundRequestBuilder builder = httpClient.prepareHead( url );
-            addHeaders( builder );
-            Response response = builder.execute().get();
-            
-            int statusCode = response.getStatusCode();
-            switch ( statusCode )
+        handler.commit();
+
+        validators.put( url, new ValidatorStore.Entry( cached.getEntityTag(), cached.getLastModified(),
+                                                       handler.getDestination().length(), handler.getChecksum() ) );
+
+        fireGetCompleted( handler.getResource(), handler.getDestination() );
+
+        return true;
+    }
+
+    private boolean getFromTransfer( FileGetHandler handler, RequestCoalescer.Transfer transfer )
+        throws IOException
+    {
+        InputStream is = transfer.newInputStream();
+        try
+        {
+            if ( !handler.transferFrom( is, transfer.getLastModified(), transfer.getContentLength() ) )
             {
-                case HttpURLConnection.HTTP_OK:
-                    return true;
-                    
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    return false;
-                    
-                case HttpURLConnection.HTTP_UNAUTHORIZED:                    
-                case HttpURLConnection.HTTP_FORBIDDEN:
-                    throw new AuthorizationException( "Access denied to: " + url + " (" + statusCode + ")" );
-                
-                default:
-                    throw new TransferFailedException( "Failed to check for existence of resource " + url + " ("
-                        + statusCode + ")" );
+                return false;
             }
         }
-        catch ( URISyntaxException e )
+        finally
         {
-            return false;
+            IOUtil.close( is );
+        }
+
+        handler.commit();
+
+        fireGetCompleted( handler.getResource(), handler.getDestination() );
+
+        return true;
+    }
+
+    private void addToCache( CacheWriter writer, File file )
+    {
+        InputStream is = null;
+        try
+        {
+            if ( writer != null )
+            {
+                is = new FileInputStream( file );
+                IOUtil.copy( is, writer );
+                writer.commit();
+                writer = null;
+            }
         }
         catch ( IOException e )
         {
-            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+            // NOTE: the cache is merely an optimization, a failure to populate it must not fail the transfer
         }
-        catch ( InterruptedException e )
+        finally
         {
-            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+            IOUtil.close( is );
+            if ( writer != null )
+            {
+                writer.abort();
+            }
         }
-        catch ( ExecutionException e )
+    }
+
+    private void getSegments( String url, FileGetHandler handler )
+        throws IOException, InterruptedException, ExecutionException
+    {
+        if ( handler.getValidator() == null )
         {
-            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+            // NOTE: without If-Range, the segments could be taken from different versions of the resource
+            throw new IOException( "Server sent partial content without entity tag or modification date" );
         }
-        catch ( RuntimeException e )
+
+        long total = handler.getTotalLength();
+        long offset = handler.getRangeEnd() + 1;
+
+        List<FileSegmentHandler> segments = new ArrayList<FileSegmentHandler>();
+        if ( total < 0 )
         {
-            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+            // without a known length, the remainder can only be fetched in one go
+            segments.add( new FileSegmentHandler( handler.getChannel(), offset, -1 ) );
+        }
+        else
+        {
+            long size = ( total - offset + Math.max( downloadSegments, 1 ) - 1 ) / Math.max( downloadSegments, 1 );
+            for ( long first = offset; first < total; first += size )
+            {
+                segments.add( new FileSegmentHandler( handler.getChannel(), first, Math.min( first + size, total ) - 1 ) );
+            }
+        }
+
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        try
+        {
+            for ( FileSegmentHandler segment : segments )
+            {
+                BoundRequestBuilder builder = httpClient.prepareGet( url );
+                builder.setFollowRedirects( true );
+                addHeaders( builder );
+                addRange( builder, segment.getRange(), handler.getValidator() );
+
+                futures.add( builder.execute( segment ) );
+            }
+
+            for ( int i = 0; i < segments.size(); i++ )
+            {
+                futures.get( i ).get();
+
+                FileSegmentHandler segment = segments.get( i );
+                handler.fireTransferProgressed( segment.getFirst(), segment.getPosition() );
+                if ( total < 0 )
+                {
+                    handler.truncate( segment.getPosition() );
+                }
+            }
+        }
+        finally
+        {
+            for ( Future<String> future : futures )
+            {
+                if ( !future.isDone() )
+                {
+                    future.cancel( true );
+                }
+            }
         }
     }
 
     @Override
-    public void fillInputData( InputData inputData )
-        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    public void fillOutputData( OutputData outputData )
+        throws TransferFailedException
     {
-        Resource resource = inputData.getResource();
+        Resource resource = outputData.getResource();
 
         try
         {
             String url = UrlUtils.buildUrl( getRepository().getUrl(), resource.getName() );
 
-            BoundRequestBuilder builder = httpClient.prepareGet( url );
-            builder.setFollowRedirects( true );
+            BoundRequestBuilder builder = httpClient.preparePut( url );
             addHeaders( builder );
+                                    
+            PutOutputStream pos;
+            if ( isChallengeExpected() )
+            {
+                pos = new BufferedPutOutputStream( builder, url, putBufferSize );
+            }
+            else
+            {
+                pos = new StreamingPutOutputStream( builder, url, resource.getContentLength() );
+            }
+
+            if ( expectContinue )
+            {
+                pos.expectContinue( getProvider(), expectContinueTimeout );
+            }
+
+            outputData.setOutputStream( pos );
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new TransferFailedException( "Invalid repository URL", e );
+        }
+    }
 
-            GetExchange exchange = new GetExchange( httpClient );
+    private FlowControlNettyAsyncHttpProvider getProvider()
+    {
+        return (FlowControlNettyAsyncHttpProvider) httpClient.getProvider();
+    }
 
-            builder.execute( new GetExchangeHandler( exchange ) );
+    /**
+     * Indicates whether requests might get challenged for credentials, which requires to send their body again.
+     */
+    private boolean isChallengeExpected()
+    {
+        AsyncHttpClientConfig config = httpClient.getConfig();
+        return ( config.getRealm() != null && config.getRealm().getPrincipal() != null )
+            || ( config.getProxyServer() != null && config.getProxyServer().getPrincipal() != null );
+    }
 
-            exchange.await();
+    @Override
+    protected void finishPutTransfer( Resource resource, InputStream input, OutputStream output )
+        throws TransferFailedException, AuthorizationException, ResourceDoesNotExistException
+    {
+        PutOutputStream pos = (PutOutputStream) output;
 
-            if ( exchange.getError() != null )
+        try
+        {
+            Response response;
+            retryPolicy.requested();
+            for ( int retry = 1;; retry++ )
             {
-                throw (IOException) new IOException( exchange.getError().getMessage() ).initCause( exchange.getError() );
+                try
+                {
+                    response = ( retry > 1 ) ? pos.resend() : pos.send();
+                }
+                catch ( IOException e )
+                {
+                    if ( pos.isReplayable() && retryPolicy.isRetryable( e ) && retryPolicy.retry( retry ) )
+                    {
+                        continue;
+                    }
+                    throw e;
+                }
+
+                if ( !pos.isReplayable() || !retryPolicy.isRetryable( response.getStatusCode() )
+                    || !retryPolicy.retry( retry ) )
+                {
+                    break;
+                }
             }
 
-            int statusCode = exchange.getStatusCode();
-            switch ( statusCode )
+            handleStatusCode( response.getStatusCode(), pos.getUrl() );
+
+            invalidate( pos.getUrl() );
+        }
+        catch ( IOException e )
+        {
+            fireTransferError( resource, e, TransferEvent.REQUEST_PUT );
+
+            throw new TransferFailedException( "Error transferring file", e );
+        }
+        catch ( InterruptedException e )
+        {
+            fireTransferError( resource, e, TransferEvent.REQUEST_PUT );
+
+            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+        }
+    }
+
+    public void put( File source, String resourceName )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        Resource resource = new Resource( resourceName );
+
+        firePutInitiated( resource, source );
+
+        resource.setContentLength( source.length() );
+
+        resource.setLastModified( source.lastModified() );
+
+        try
+        {
+            String url = UrlUtils.buildUrl( getRepository().getUrl(), resource.getName() );
+
+            BoundRequestBuilder builder = httpClient.preparePut( url );
+            addHeaders( builder );
+            builder.setBody( new ProgressingFileBodyGenerator( source, resource, this ) );
+            if ( expectContinue )
             {
-                case HttpURLConnection.HTTP_OK:
-                case HttpURLConnection.HTTP_NOT_MODIFIED:
-                    break;
-                    
-                case HttpURLConnection.HTTP_UNAUTHORIZED:
-                case HttpURLConnection.HTTP_FORBIDDEN:
-                    throw new AuthorizationException( "Access denied to: " + url + " (" + statusCode + ")" );
-                
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    throw new ResourceDoesNotExistException( "Unable to locate resource in repository" );
-                
-                default:
-                    throw new TransferFailedException( "Error transferring file, server returned status code " + statusCode );
+                builder.setHeader( "Expect", "100-continue" );
             }
 
-            inputData.setInputStream( exchange.getInputStream() );
-            resource.setLastModified( exchange.getLastModified() );
-            resource.setContentLength( exchange.getContentLength() );
+            // the body is read from the file again for each attempt
+            Response response = execute( builder, expectContinue );
+
+            handleStatusCode( response.getStatusCode(), url );
+
+            invalidate( url );
+
+            firePutCompleted( resource, source );
         }
         catch ( URISyntaxException e )
         {
-            throw new ResourceDoesNotExistException( "Invalid repository URL", e );
+            throw new TransferFailedException( "Invalid repository URL", e );
         }
         catch ( IOException e )
         {
@@ -304,96 +1897,371 @@ public class AhcWagon
         {
             throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
         }
+        catch ( ExecutionException e )
+        {
+            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
+        }
+        catch ( RuntimeException e )
+        {
+            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Executes the specified request, sending it again as permitted by the retry policy. Hence, the request must be
+     * idempotent and its body, if any, must be repeatable.
+     */
+    private Response execute( BoundRequestBuilder builder, boolean expectContinue )
+        throws IOException, InterruptedException, ExecutionException
+    {
+        retryPolicy.requested();
+        for ( int retry = 1;; retry++ )
+        {
+            try
+            {
+                ListenableFuture<Response> future = builder.execute();
+                if ( expectContinue )
+                {
+                    getProvider().expectContinue( future, expectContinueTimeout );
+                }
+
+                Response response = future.get();
+                if ( !retryPolicy.isRetryable( response.getStatusCode() ) || !retryPolicy.retry( retry ) )
+                {
+                    return response;
+                }
+            }
+            catch ( IOException e )
+            {
+                if ( !retryPolicy.isRetryable( e ) || !retryPolicy.retry( retry ) )
+                {
+                    throw e;
+                }
+            }
+            catch ( ExecutionException e )
+            {
+                if ( !retryPolicy.isRetryable( e.getCause() ) || !retryPolicy.retry( retry ) )
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the specified request against the mirrors of the repository, failing over to another mirror when one
+     * fails, hedging it when its response is late and sending it again as permitted by the retry policy.
+     *
+     * @return The exchange whose response is to be used, never {@code null}.
+     */
+    private <T> T execute( BoundRequestBuilder builder, String resourceName, RequestSender<T> sender )
+        throws IOException, InterruptedException, ExecutionException, URISyntaxException
+    {
+        MirrorSelector.Route route = newRoute();
+        retryPolicy.requested();
+        for ( int retry = 1;; )
+        {
+            builder.setUrl( UrlUtils.buildUrl( route.next().getUrl(), resourceName ) );
+            BlockingQueue<T> race = new LinkedBlockingQueue<T>();
+            T exchange;
+            try
+            {
+                exchange = sender.send( builder, race, false );
+
+                exchange = hedge( exchange, race, sender, builder, route, resourceName );
+
+                sender.await( exchange );
+            }
+            catch ( IOException e )
+            {
+                if ( failover( route, e ) || ( retryPolicy.isRetryable( e ) && retryPolicy.retry( retry++ ) ) )
+                {
+                    continue;
+                }
+                throw e;
+            }
+            catch ( ExecutionException e )
+            {
+                if ( failover( route, e.getCause() )
+                    || ( retryPolicy.isRetryable( e.getCause() ) && retryPolicy.retry( retry++ ) ) )
+                {
+                    continue;
+                }
+                throw e;
+            }
+
+            int statusCode = sender.getStatusCode( exchange );
+            if ( statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR )
+            {
+                route.succeeded( true );
+            }
+            else if ( route.failover() )
+            {
+                sender.discard( exchange );
+                continue;
+            }
+            if ( !retryPolicy.isRetryable( statusCode ) || !retryPolicy.retry( retry++ ) )
+            {
+                return exchange;
+            }
+            sender.discard( exchange );
+        }
+    }
+
+    /**
+     * Gets the time after which a request still waiting for its response gets hedged.
+     *
+     * @return The time in milliseconds or {@code -1} to not hedge the request.
+     */
+    private long getHedgeDelay()
+    {
+        return ( hedgePercentile > 0 ) ? mirrorSelector.getLatency( hedgePercentile ) : -1;
     }
 
-    @Override
-    public void fillOutputData( OutputData outputData )
-        throws TransferFailedException
+    /**
+     * Sends a second copy of the specified request if its response takes unusually long to arrive and a connection is
+     * available right away, and picks the exchange that gets a usable response first, cancelling the other one.
+     *
+     * @param exchange The exchange of the request, must not be {@code null}.
+     * @param race The queue that the exchange reports its response to, must not be {@code null}.
+     * @return The exchange to get the response from, never {@code null}.
+     */
+    private <T> T hedge( T exchange, BlockingQueue<T> race, RequestSender<T> sender, BoundRequestBuilder builder,
+                         MirrorSelector.Route route, String resourceName )
+        throws IOException, InterruptedException, URISyntaxException
     {
-        Resource resource = outputData.getResource();
+        long delay = getHedgeDelay();
+        if ( delay <= 0 )
+        {
+            return exchange;
+        }
 
+        T hedged = null;
         try
         {
-            String url = UrlUtils.buildUrl( getRepository().getUrl(), resource.getName() );
+            if ( race.poll( delay, TimeUnit.MILLISECONDS ) != null )
+            {
+                return exchange;
+            }
 
-            BoundRequestBuilder builder = httpClient.preparePut( url );
-            addHeaders( builder );
-                                    
-            PutOutputStream pos = new PutOutputStream( builder, url, resource.getContentLength() );
+            builder.setUrl( UrlUtils.buildUrl( route.hedge().getUrl(), resourceName ) );
+            try
+            {
+                hedged = sender.send( builder, race, true );
+            }
+            catch ( IOException e )
+            {
+                // hedging is merely an optimization, let the original request be
+                return exchange;
+            }
+            if ( hedged == null )
+            {
+                // no connection to spare, the hedge would only queue up behind the original request
+                return exchange;
+            }
 
-            outputData.setOutputStream( pos );
+            // the first usable response wins, a failure only counts once both requests failed
+            long timeout = getHeaderTimeout();
+            for ( Set<T> done = new HashSet<T>(); done.size() < 2; )
+            {
+                T first = ( timeout > 0 ) ? race.poll( timeout, TimeUnit.MILLISECONDS ) : race.take();
+                if ( first == null )
+                {
+                    sender.cancel( exchange );
+                    sender.cancel( hedged );
+                    throw new IOException( "No response received within " + timeout + " ms" );
+                }
+                if ( sender.isUsable( first ) )
+                {
+                    sender.cancel( ( first == exchange ) ? hedged : exchange );
+                    if ( first == hedged )
+                    {
+                        route.hedgeWon();
+                    }
+                    return first;
+                }
+                done.add( first );
+            }
+
+            sender.cancel( hedged );
+            return exchange;
         }
-        catch ( URISyntaxException e )
+        catch ( InterruptedException e )
         {
-            throw new TransferFailedException( "Invalid repository URL", e );
+            sender.cancel( exchange );
+            if ( hedged != null )
+            {
+                sender.cancel( hedged );
+            }
+            throw e;
         }
     }
 
-    @Override
-    protected void finishPutTransfer( Resource resource, InputStream input, OutputStream output )
-        throws TransferFailedException, AuthorizationException, ResourceDoesNotExistException
+    /**
+     * Creates the sender of a download whose body is streamed to the caller.
+     */
+    private RequestSender<GetExchange> newStreamingSender( final String url )
     {
-        PutOutputStream pos = (PutOutputStream) output;
-
-        try
+        return new RequestSender<GetExchange>()
         {
-            Response response = pos.send();
+            public GetExchange send( BoundRequestBuilder builder, BlockingQueue<GetExchange> race, boolean optional )
+                throws IOException
+            {
+                GetExchange exchange = new GetExchange( httpClient, race );
+                GetExchangeHandler handler = new GetExchangeHandler( exchange, validators, url );
+                ListenableFuture<String> future =
+                    optional ? getProvider().tryExecute( builder.build(), handler ) : builder.execute( handler );
+                if ( future == null )
+                {
+                    return null;
+                }
+                exchange.setFuture( future );
+                return exchange;
+            }
 
-            handleStatusCode( response.getStatusCode(), pos.getUrl() );
-        }
-        catch ( IOException e )
-        {
-            fireTransferError( resource, e, TransferEvent.REQUEST_PUT );
+            public void await( GetExchange exchange )
+                throws IOException, InterruptedException
+            {
+                exchange.await( getHeaderTimeout() );
 
-            throw new TransferFailedException( "Error transferring file", e );
-        }
-    }
+                if ( exchange.getError() != null )
+                {
+                    Throwable error = exchange.getError();
+                    throw (IOException) new IOException( error.getMessage() ).initCause( error );
+                }
+            }
 
-    public void put( File source, String resourceName )
-        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
-    {
-        Resource resource = new Resource( resourceName );
+            public int getStatusCode( GetExchange exchange )
+            {
+                return exchange.getStatusCode();
+            }
 
-        firePutInitiated( resource, source );
+            public boolean isUsable( GetExchange exchange )
+            {
+                return exchange.getError() == null
+                    && exchange.getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR;
+            }
 
-        resource.setContentLength( source.length() );
+            public void discard( GetExchange exchange )
+                throws IOException
+            {
+                exchange.getInputStream().close();
+            }
 
-        resource.setLastModified( source.lastModified() );
+            public void cancel( GetExchange exchange )
+                throws IOException
+            {
+                exchange.cancel();
+                exchange.getInputStream().close();
+            }
+        };
+    }
 
-        try
+    /**
+     * Creates the sender of a request whose response is buffered as a whole.
+     */
+    private RequestSender<ListenableFuture<Response>> newBufferedSender()
+    {
+        return new RequestSender<ListenableFuture<Response>>()
         {
-            String url = UrlUtils.buildUrl( getRepository().getUrl(), resource.getName() );
+            public ListenableFuture<Response> send( BoundRequestBuilder builder,
+                                                    final BlockingQueue<ListenableFuture<Response>> race,
+                                                    boolean optional )
+                throws IOException
+            {
+                final ListenableFuture<Response> future =
+                    optional ? getProvider().tryExecute( builder.build(), new AsyncCompletionHandlerBase() )
+                                    : builder.execute();
+                if ( future != null )
+                {
+                    future.addListener( new Runnable()
+                    {
+                        public void run()
+                        {
+                            race.offer( future );
+                        }
+                    }, SameThreadExecutor.INSTANCE );
+                }
+                return future;
+            }
 
-            BoundRequestBuilder builder = httpClient.preparePut( url );
-            addHeaders( builder );
-            builder.setBody( new ProgressingFileBodyGenerator( source, resource, this ) );
+            public void await( ListenableFuture<Response> future )
+                throws InterruptedException, ExecutionException
+            {
+                future.get();
+            }
 
-            Response response = builder.execute().get();
+            public int getStatusCode( ListenableFuture<Response> future )
+                throws InterruptedException, ExecutionException
+            {
+                return future.get().getStatusCode();
+            }
 
-            handleStatusCode( response.getStatusCode(), url );
+            public boolean isUsable( ListenableFuture<Response> future )
+                throws InterruptedException
+            {
+                try
+                {
+                    return future.get().getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR;
+                }
+                catch ( ExecutionException e )
+                {
+                    return false;
+                }
+            }
 
-            firePutCompleted( resource, source );
-        }
-        catch ( URISyntaxException e )
-        {
-            throw new TransferFailedException( "Invalid repository URL", e );
-        }
-        catch ( IOException e )
-        {
-            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
-        }
-        catch ( InterruptedException e )
-        {
-            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
-        }
-        catch ( ExecutionException e )
-        {
-            throw new TransferFailedException( "Transfer was aborted by client: " + e.getMessage(), e );
-        }
-        catch ( RuntimeException e )
+            public void discard( ListenableFuture<Response> future )
+            {
+                // the response has been read completely
+            }
+
+            public void cancel( ListenableFuture<Response> future )
+            {
+                future.cancel( true );
+            }
+        };
+    }
+
+    private static boolean failover( MirrorSelector.Route route, Throwable error )
+    {
+        return !RetryPolicy.isInterruption( error ) && route.failover();
+    }
+
+    /**
+     * Starts the selection of mirrors for a new download. Mirrors that are out of rotation and due for a health probe
+     * get probed in the background, bringing them back once they answer without a server error.
+     */
+    private MirrorSelector.Route newRoute()
+    {
+        // NOTE: requests beyond the connection limits get queued, the probes don't hold up the caller
+        for ( final MirrorSelector.Mirror mirror : mirrorSelector.getProbes( mirrorProbeInterval ) )
         {
-            throw new TransferFailedException( "Error transferring file: " + e.getMessage(), e );
+            try
+            {
+                BoundRequestBuilder builder = httpClient.prepareHead( UrlUtils.buildUrl( mirror.getUrl(), "" ) );
+                addHeaders( builder );
+                builder.execute( new AsyncCompletionHandler<Response>()
+                {
+                    @Override
+                    public Response onCompleted( Response response )
+                    {
+                        mirror.probed( response.getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR );
+                        return response;
+                    }
+
+                    @Override
+                    public void onThrowable( Throwable t )
+                    {
+                        mirror.probed( false );
+                    }
+                } );
+            }
+            catch ( Exception e )
+            {
+                mirror.probed( false );
+            }
         }
+        return mirrorSelector.newRoute();
     }
 
     private void handleStatusCode( int statusCode, String url )
@@ -419,6 +2287,11 @@ public class AhcWagon
         }
     }
 
+    void fireGetStarted( File destination, Resource resource )
+    {
+        fireGetStarted( resource, destination );
+    }
+
     void firePutStarted( File source, Resource resource )
     {
         firePutStarted( resource, source );
@@ -429,4 +2302,275 @@ public class AhcWagon
         fireTransferProgress( event, buffer, count );
     }
 
+    /**
+     * Consults what is known about a resource before a request for it goes to the network, cheapest first: the cache
+     * of missing resources, the memory cache, the response cache and the transfers of concurrent requests for the same
+     * resource. Once the response has been received, the outcome is recorded in the same places.
+     */
+    class Lookup
+    {
+
+        private final String url;
+
+        private final NotFoundCache notFoundCache = getNotFoundCache();
+
+        private final MemoryCache memoryCache = getMemoryCache();
+
+        private final ResponseCache cache = getResponseCache();
+
+        private final Map<String, String> requestHeaders = ( cache != null ) ? getRequestHeaders() : null;
+
+        private ResponseCache.Entry cached;
+
+        private RequestCoalescer.Transfer shared;
+
+        Lookup( String url )
+        {
+            this.url = url;
+        }
+
+        /**
+         * Indicates whether the resource was recently found to be missing.
+         */
+        public boolean isMissing()
+        {
+            return notFoundCache != null && notFoundCache.isMissing( url );
+        }
+
+        /**
+         * Gets the resource from the memory cache.
+         *
+         * @return The cached resource or {@code null} if none.
+         */
+        public MemoryCache.Entry getFromMemory()
+        {
+            return ( memoryCache != null ) ? memoryCache.get( getMemoryCacheKey( url ) ) : null;
+        }
+
+        /**
+         * Gets the response cached for the resource. A stale response that can't be revalidated is ignored.
+         *
+         * @return The cached response, fresh or to be revalidated by the request, or {@code null} if none.
+         */
+        public ResponseCache.Entry getCached()
+        {
+            if ( cache != null )
+            {
+                cached = cache.get( url, requestHeaders );
+                if ( cached != null && !cached.isFresh() && !cached.isRevalidatable() )
+                {
+                    cached = null;
+                }
+            }
+            return cached;
+        }
+
+        /**
+         * Joins the download of a concurrent request for the resource. Without one, an unconditional download gets
+         * registered for others to join.
+         *
+         * @param timestamp The timestamp the download is conditional on, non-positive if none.
+         * @return The transfer of the concurrent request or {@code null} if there is no successful one.
+         * @throws ResourceDoesNotExistException If the concurrent request found the resource to be missing.
+         */
+        public RequestCoalescer.Transfer join( long timestamp )
+            throws InterruptedException, ResourceDoesNotExistException
+        {
+            if ( !coalesceRequests )
+            {
+                return null;
+            }
+
+            String key = getCoalescingKey( url );
+            RequestCoalescer.Transfer transfer = joinTransfer( key );
+            if ( transfer != null )
+            {
+                int statusCode = awaitTransfer( transfer );
+                if ( statusCode == HttpURLConnection.HTTP_OK )
+                {
+                    return transfer;
+                }
+                if ( statusCode == HttpURLConnection.HTTP_NOT_FOUND )
+                {
+                    throw new ResourceDoesNotExistException( "Unable to locate resource in repository" );
+                }
+            }
+            else if ( cached == null && timestamp <= 0 )
+            {
+                // only the response to an unconditional request is of use to others
+                shared = createTransfer( key );
+            }
+            return null;
+        }
+
+        /**
+         * Joins a concurrent download or existence check of the resource, whose status answers the question of
+         * existence just as well. Without one, the check gets registered for others to join.
+         *
+         * @return The status code of the concurrent request or {@code -1} if none.
+         */
+        public int joinCheck()
+            throws InterruptedException
+        {
+            if ( !coalesceRequests )
+            {
+                return -1;
+            }
+
+            String key = getCoalescingKey( url );
+            RequestCoalescer.Transfer transfer = joinTransfer( key );
+            if ( transfer == null )
+            {
+                transfer = joinTransfer( "HEAD " + key );
+            }
+            if ( transfer == null )
+            {
+                shared = createTransfer( "HEAD " + key );
+                return -1;
+            }
+
+            int statusCode = awaitTransfer( transfer );
+            if ( statusCode == HttpURLConnection.HTTP_OK )
+            {
+                // the body is of no interest
+                transfer.release();
+            }
+            return statusCode;
+        }
+
+        /**
+         * Adds the headers to revalidate the cached response or, in lack of one, the conditions of the caller.
+         */
+        public void addConditions( BoundRequestBuilder builder, File destination, long timestamp )
+        {
+            if ( cached != null )
+            {
+                AhcWagon.this.addConditions( builder, cached );
+            }
+            else
+            {
+                AhcWagon.this.addConditions( builder, url, destination, timestamp );
+            }
+        }
+
+        /**
+         * Records the status of the response to an existence check, passing it on to the requests that joined it.
+         */
+        public void checked( int statusCode )
+        {
+            if ( shared != null )
+            {
+                shared.complete( statusCode );
+            }
+            if ( statusCode == HttpURLConnection.HTTP_NOT_FOUND && notFoundCache != null )
+            {
+                notFoundCache.addMissing( url, notFoundCacheTtl );
+            }
+        }
+
+        /**
+         * Records the status of the response to a download. Unless the status indicates success, it is passed on to
+         * the requests that joined the download and the download fails.
+         */
+        public void received( int statusCode )
+            throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+        {
+            switch ( statusCode )
+            {
+                case HttpURLConnection.HTTP_OK:
+                case FileSegmentHandler.HTTP_PARTIAL:
+                    return;
+
+                default:
+                    if ( shared != null )
+                    {
+                        shared.complete( statusCode );
+                    }
+            }
+
+            switch ( statusCode )
+            {
+                case HttpURLConnection.HTTP_NOT_MODIFIED:
+                    return;
+
+                case HttpURLConnection.HTTP_UNAUTHORIZED:
+                case HttpURLConnection.HTTP_FORBIDDEN:
+                    throw new AuthorizationException( "Access denied to: " + url + " (" + statusCode + ")" );
+
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    if ( notFoundCache != null )
+                    {
+                        notFoundCache.addMissing( url, notFoundCacheTtl );
+                    }
+                    throw new ResourceDoesNotExistException( "Unable to locate resource in repository" );
+
+                default:
+                    throw new TransferFailedException( "Error transferring file, server returned status code "
+                        + statusCode );
+            }
+        }
+
+        /**
+         * Refreshes the cached response after the server confirmed it is still valid.
+         *
+         * @return The cached response or {@code null} if the request didn't revalidate one.
+         */
+        public ResponseCache.Entry revalidated( FluentCaseInsensitiveStringsMap headers )
+        {
+            if ( cached != null )
+            {
+                cache.refresh( url, cached, headers );
+            }
+            return cached;
+        }
+
+        /**
+         * Gets the writers which add the body of a successful download to the caches and hand it to the requests
+         * that joined the download. The download is no longer shared once the writers are done.
+         */
+        public List<CacheWriter> newWriters( FluentCaseInsensitiveStringsMap headers, long lastModified, long length )
+        {
+            List<CacheWriter> writers = new ArrayList<CacheWriter>();
+            if ( cache != null )
+            {
+                try
+                {
+                    CacheWriter writer = cache.newWriter( url, requestHeaders, isAuthenticated(), headers );
+                    if ( writer != null )
+                    {
+                        writers.add( writer );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    // NOTE: the cache is merely an optimization, a failure to populate it must not fail the transfer
+                }
+            }
+            if ( memoryCache != null && length <= memoryCacheMaxEntrySize )
+            {
+                writers.add( memoryCache.newWriter( getMemoryCacheKey( url ), lastModified, memoryCacheTtl,
+                                                    memoryCacheMaxEntrySize ) );
+            }
+            if ( shared != null )
+            {
+                shared.start( HttpURLConnection.HTTP_OK, lastModified, length );
+                writers.add( shared.getWriter() );
+                shared = null;
+            }
+            return writers;
+        }
+
+        /**
+         * Ends the sharing of a download that didn't get to hand its body to the requests that joined it.
+         */
+        public void end()
+        {
+            if ( shared != null )
+            {
+                shared.end();
+            }
+        }
+
+    }
+
 }
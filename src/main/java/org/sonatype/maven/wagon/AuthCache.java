@@ -0,0 +1,335 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ning.http.client.Realm;
+import com.ning.http.util.Base64;
+
+/**
+ * Remembers the authentication scheme each server has challenged the clients of the JVM with, so that later requests
+ * to the same server, even from other wagons, can authenticate preemptively instead of paying for an extra round trip.
+ * Credentials are only ever sent to servers that asked for them with the scheme in question. Digest nonces are reused
+ * with an increasing nonce count until the server issues a new one.
+ */
+class AuthCache
+{
+
+    static final String BASIC = "basic";
+
+    static final String DIGEST = "digest";
+
+    private static final AuthCache INSTANCE = new AuthCache();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    static class Challenge
+    {
+
+        final String scheme;
+
+        final String realm;
+
+        final String nonce;
+
+        final String opaque;
+
+        final String algorithm;
+
+        final boolean qop;
+
+        final AtomicInteger nonceCount;
+
+        Challenge( String scheme, String realm, String nonce, String opaque, String algorithm, boolean qop,
+                   int nonceCount )
+        {
+            this.scheme = scheme;
+            this.realm = realm;
+            this.nonce = nonce;
+            this.opaque = opaque;
+            this.algorithm = algorithm;
+            this.qop = qop;
+            this.nonceCount = new AtomicInteger( nonceCount );
+        }
+
+    }
+
+    private final Map<String, Challenge> challenges = new HashMap<String, Challenge>();
+
+    public static AuthCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the challenges from a {@code 401} response, replacing whatever the server has asked for before.
+     *
+     * @param uri The URI of the challenged request, must not be {@code null}.
+     * @param headers The values of the {@code WWW-Authenticate} headers, must not be {@code null}.
+     */
+    public void challenged( URI uri, List<String> headers )
+    {
+        Challenge challenge = null;
+
+        for ( String header : headers )
+        {
+            Challenge c = parseChallenge( header );
+            if ( c != null && ( challenge == null || DIGEST.equals( c.scheme ) ) )
+            {
+                challenge = c;
+            }
+        }
+
+        synchronized ( challenges )
+        {
+            if ( challenge != null )
+            {
+                challenges.put( UrlUtils.getOrigin( uri ), challenge );
+            }
+            else
+            {
+                challenges.remove( UrlUtils.getOrigin( uri ) );
+            }
+        }
+    }
+
+    /**
+     * Records the next nonce the server has offered in an {@code Authentication-Info} header.
+     *
+     * @param uri The URI of the authenticated request, must not be {@code null}.
+     * @param header The value of the {@code Authentication-Info} header, must not be {@code null}.
+     */
+    public void authenticated( URI uri, String header )
+    {
+        String nextNonce = parseParams( header, 0 ).get( "nextnonce" );
+        if ( nextNonce == null )
+        {
+            return;
+        }
+
+        String key = UrlUtils.getOrigin( uri );
+        synchronized ( challenges )
+        {
+            Challenge c = challenges.get( key );
+            if ( c != null && DIGEST.equals( c.scheme ) && !nextNonce.equals( c.nonce ) )
+            {
+                challenges.put( key, new Challenge( c.scheme, c.realm, nextNonce, c.opaque, c.algorithm, c.qop, 0 ) );
+            }
+        }
+    }
+
+    /**
+     * Gets the {@code Authorization} header to send along with the specified request.
+     *
+     * @param method The method of the request, must not be {@code null}.
+     * @param uri The URI of the request, must not be {@code null}.
+     * @param realm The credentials of the client, must not be {@code null}.
+     * @return The header value or {@code null} if the server hasn't challenged for a supported scheme yet.
+     */
+    public String getAuthorization( String method, URI uri, Realm realm )
+    {
+        Challenge c;
+        synchronized ( challenges )
+        {
+            c = challenges.get( UrlUtils.getOrigin( uri ) );
+        }
+
+        try
+        {
+            if ( c == null )
+            {
+                return null;
+            }
+            else if ( BASIC.equals( c.scheme ) )
+            {
+                String credentials = realm.getPrincipal() + ":" + realm.getPassword();
+                return "Basic " + Base64.encode( credentials.getBytes( realm.getEncoding() ) );
+            }
+            else
+            {
+                return getDigestAuthorization( c, method, uri, realm );
+            }
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            return null;
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            return null;
+        }
+    }
+
+    private static String getDigestAuthorization( Challenge c, String method, URI uri, Realm realm )
+        throws UnsupportedEncodingException, NoSuchAlgorithmException
+    {
+        String digestUri = uri.getRawPath();
+        if ( uri.getRawQuery() != null )
+        {
+            digestUri += '?' + uri.getRawQuery();
+        }
+
+        String ha1 = md5( realm.getPrincipal() + ':' + c.realm + ':' + realm.getPassword() );
+        String ha2 = md5( method + ':' + digestUri );
+
+        StringBuilder buffer = new StringBuilder( 256 );
+        buffer.append( "Digest username=\"" ).append( realm.getPrincipal() ).append( '"' );
+        buffer.append( ", realm=\"" ).append( c.realm ).append( '"' );
+        buffer.append( ", nonce=\"" ).append( c.nonce ).append( '"' );
+        buffer.append( ", uri=\"" ).append( digestUri ).append( '"' );
+        if ( c.algorithm != null )
+        {
+            buffer.append( ", algorithm=" ).append( c.algorithm );
+        }
+        if ( c.qop )
+        {
+            String nc = String.format( "%08x", Integer.valueOf( c.nonceCount.incrementAndGet() ) );
+            byte[] bytes = new byte[8];
+            RANDOM.nextBytes( bytes );
+            String cnonce = toHex( bytes );
+
+            String response = md5( ha1 + ':' + c.nonce + ':' + nc + ':' + cnonce + ":auth:" + ha2 );
+            buffer.append( ", response=\"" ).append( response ).append( '"' );
+            buffer.append( ", qop=auth, nc=" ).append( nc );
+            buffer.append( ", cnonce=\"" ).append( cnonce ).append( '"' );
+        }
+        else
+        {
+            buffer.append( ", response=\"" ).append( md5( ha1 + ':' + c.nonce + ':' + ha2 ) ).append( '"' );
+        }
+        if ( c.opaque != null )
+        {
+            buffer.append( ", opaque=\"" ).append( c.opaque ).append( '"' );
+        }
+
+        return buffer.toString();
+    }
+
+    static Challenge parseChallenge( String header )
+    {
+        int space = header.indexOf( ' ' );
+        String scheme = ( space < 0 ? header : header.substring( 0, space ) ).toLowerCase( Locale.ENGLISH );
+        Map<String, String> params = parseParams( header, space < 0 ? header.length() : space + 1 );
+
+        if ( BASIC.equals( scheme ) )
+        {
+            return new Challenge( BASIC, params.get( "realm" ), null, null, null, false, 0 );
+        }
+        else if ( DIGEST.equals( scheme ) )
+        {
+            String algorithm = params.get( "algorithm" );
+            if ( params.get( "nonce" ) == null || ( algorithm != null && !"MD5".equalsIgnoreCase( algorithm ) ) )
+            {
+                // NOTE: MD5-sess and friends are left to the regular challenge/response
+                return null;
+            }
+
+            String qop = params.get( "qop" );
+            boolean auth = false;
+            if ( qop != null )
+            {
+                for ( String option : qop.split( "," ) )
+                {
+                    auth |= "auth".equalsIgnoreCase( option.trim() );
+                }
+                if ( !auth )
+                {
+                    return null;
+                }
+            }
+
+            // NOTE: the client has answered this challenge with the first nonce count already
+            return new Challenge( DIGEST, params.get( "realm" ), params.get( "nonce" ), params.get( "opaque" ),
+                                  algorithm, auth, 1 );
+        }
+
+        return null;
+    }
+
+    /**
+     * Parses a comma-separated list of {@code name=value} pairs whose values may be quoted.
+     */
+    static Map<String, String> parseParams( String header, int offset )
+    {
+        Map<String, String> params = new HashMap<String, String>();
+
+        int pos = offset;
+        while ( pos < header.length() )
+        {
+            int eq = header.indexOf( '=', pos );
+            if ( eq < 0 )
+            {
+                break;
+            }
+            String name = header.substring( pos, eq ).trim().toLowerCase( Locale.ENGLISH );
+
+            StringBuilder value = new StringBuilder();
+            pos = eq + 1;
+            while ( pos < header.length() && header.charAt( pos ) == ' ' )
+            {
+                pos++;
+            }
+            if ( pos < header.length() && header.charAt( pos ) == '"' )
+            {
+                for ( pos++; pos < header.length() && header.charAt( pos ) != '"'; pos++ )
+                {
+                    if ( header.charAt( pos ) == '\\' && pos + 1 < header.length() )
+                    {
+                        pos++;
+                    }
+                    value.append( header.charAt( pos ) );
+                }
+                pos = header.indexOf( ',', pos );
+            }
+            else
+            {
+                int comma = header.indexOf( ',', pos );
+                value.append( header.substring( pos, comma < 0 ? header.length() : comma ).trim() );
+                pos = comma;
+            }
+
+            params.put( name, value.toString() );
+
+            if ( pos < 0 )
+            {
+                break;
+            }
+            pos++;
+        }
+
+        return params;
+    }
+
+    private static String md5( String s )
+        throws UnsupportedEncodingException, NoSuchAlgorithmException
+    {
+        return toHex( MessageDigest.getInstance( "MD5" ).digest( s.getBytes( "ISO-8859-1" ) ) );
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder buffer = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            buffer.append( Integer.toHexString( ( b & 0xFF ) | 0x100 ).substring( 1 ) );
+        }
+        return buffer.toString();
+    }
+
+}
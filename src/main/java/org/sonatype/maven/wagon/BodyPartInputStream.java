@@ -0,0 +1,288 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.channel.Channel;
+
+import com.ning.http.client.HttpResponseBodyPart;
+
+/**
+ * Hands the buffers of received body parts over to a single reader thread without copying them into an intermediate
+ * ring buffer like a {@link java.io.PipedInputStream} would. Once more than {@link #CAPACITY} bytes are buffered, reading
+ * from the socket is suspended until the reader has drained the buffer down to {@link #RESUME_THRESHOLD} bytes. The
+ * reader sleeps until a body part arrives or the transfer ends, a failure (including the shutdown of the client, see
+ * {@link FlowControlNettyAsyncHttpProvider#close()}) is expected to be reported via {@link #setError(Throwable)}.
+ */
+class BodyPartInputStream
+    extends InputStream
+{
+
+    private static final int CAPACITY = 1024 * 128;
+
+    private static final int RESUME_THRESHOLD = CAPACITY / 2;
+
+    private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger buffered = new AtomicInteger();
+
+    // NOTE: The Netty provider allocates fresh buffers for every body part and writes their backing arrays directly
+    // to the output stream, so we can keep references to those arrays instead of copying the bytes
+    private final OutputStream collector = new OutputStream()
+    {
+
+        @Override
+        public void write( int b )
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+            if ( len > 0 )
+            {
+                chunks.offer( ByteBuffer.wrap( b, off, len ) );
+                buffered.addAndGet( len );
+            }
+        }
+
+    };
+
+    private ByteBuffer current;
+
+    private volatile Thread reader;
+
+    private volatile Thread writer;
+
+    private final AtomicReference<Channel> suspended = new AtomicReference<Channel>();
+
+    private volatile boolean complete;
+
+    private volatile boolean closed;
+
+    private volatile Throwable error;
+
+    public boolean append( HttpResponseBodyPart bodyPart )
+        throws IOException
+    {
+        if ( closed )
+        {
+            return false;
+        }
+
+        bodyPart.writeTo( collector );
+
+        LockSupport.unpark( reader );
+
+        if ( buffered.get() > CAPACITY )
+        {
+            Channel channel = FlowControlNettyAsyncHttpProvider.getCurrentChannel();
+            if ( channel != null )
+            {
+                suspend( channel );
+                return !closed;
+            }
+        }
+
+        // NOTE: Without access to the channel, the only remaining means of flow control is to block the I/O thread
+        while ( buffered.get() > CAPACITY && !closed )
+        {
+            writer = Thread.currentThread();
+            if ( buffered.get() > CAPACITY && !closed )
+            {
+                LockSupport.park();
+            }
+            writer = null;
+
+            if ( Thread.interrupted() )
+            {
+                throw new InterruptedIOException( "Interrupted while waiting for reader to consume data" );
+            }
+        }
+
+        return !closed;
+    }
+
+    private void suspend( Channel channel )
+    {
+        if ( suspended.get() == null )
+        {
+            // NOTE: Only publish the channel after it has been suspended, the reader must not resume it before that
+            channel.setReadable( false );
+            suspended.set( channel );
+
+            if ( buffered.get() <= RESUME_THRESHOLD || closed )
+            {
+                resume();
+            }
+        }
+    }
+
+    private void resume()
+    {
+        Channel channel = suspended.getAndSet( null );
+        if ( channel != null )
+        {
+            channel.setReadable( true );
+        }
+    }
+
+    public void complete()
+    {
+        complete = true;
+        resume();
+        LockSupport.unpark( reader );
+    }
+
+    public void setError( Throwable t )
+    {
+        if ( error == null )
+        {
+            error = t;
+        }
+        complete();
+    }
+
+    private void checkError()
+        throws IOException
+    {
+        if ( error != null )
+        {
+            throw (IOException) new IOException( error.getMessage() ).initCause( error );
+        }
+    }
+
+    private ByteBuffer nextChunk()
+        throws IOException
+    {
+        while ( true )
+        {
+            checkError();
+
+            if ( closed )
+            {
+                throw new IOException( "Stream closed" );
+            }
+
+            if ( current != null && current.hasRemaining() )
+            {
+                return current;
+            }
+
+            current = chunks.poll();
+            if ( current != null )
+            {
+                continue;
+            }
+
+            if ( complete )
+            {
+                current = chunks.poll();
+                if ( current == null )
+                {
+                    checkError();
+                    return null;
+                }
+                continue;
+            }
+
+            reader = Thread.currentThread();
+            if ( chunks.isEmpty() && !complete )
+            {
+                LockSupport.park();
+            }
+            reader = null;
+
+            if ( Thread.interrupted() )
+            {
+                throw new InterruptedIOException( "Interrupted while waiting for data" );
+            }
+        }
+    }
+
+    private void consumed( int count )
+    {
+        int remaining = buffered.addAndGet( -count );
+        if ( remaining <= RESUME_THRESHOLD && suspended.get() != null )
+        {
+            resume();
+        }
+        if ( remaining <= CAPACITY )
+        {
+            LockSupport.unpark( writer );
+        }
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        ByteBuffer chunk = nextChunk();
+        if ( chunk == null )
+        {
+            return -1;
+        }
+
+        int b = chunk.get() & 0xFF;
+        consumed( 1 );
+        return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+        throws IOException
+    {
+        if ( len <= 0 )
+        {
+            return 0;
+        }
+
+        ByteBuffer chunk = nextChunk();
+        if ( chunk == null )
+        {
+            return -1;
+        }
+
+        int count = Math.min( len, chunk.remaining() );
+        chunk.get( b, off, count );
+        consumed( count );
+        return count;
+    }
+
+    @Override
+    public int available()
+        throws IOException
+    {
+        checkError();
+        return ( current != null ) ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        current = null;
+        chunks.clear();
+        buffered.set( 0 );
+        resume();
+        LockSupport.unpark( writer );
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Adapts the request bodies written by the provider to the {@link ChunkedWriteHandler} of a channel. A body that has
+ * no data available yet reads zero bytes, which suspends the write instead of sending an empty chunk over and over.
+ * While reading, the body can obtain a callback via {@link #getResumer()} to resume the write once it has more data.
+ * A body of unknown length is sent as {@link HttpChunk}s so that the HTTP encoder frames it for the chunked transfer
+ * encoding announced by the request headers.
+ */
+class BodyWriteHandler
+    extends SimpleChannelDownstreamHandler
+{
+
+    private static final ThreadLocal<Runnable> RESUMER = new ThreadLocal<Runnable>();
+
+    private final ChunkedWriteHandler writer;
+
+    private final Runnable resumer = new Runnable()
+    {
+        public void run()
+        {
+            writer.resumeTransfer();
+        }
+    };
+
+    private volatile boolean chunked;
+
+    /**
+     * @param writer The handler that writes the bodies to the channel, must not be {@code null}.
+     */
+    public BodyWriteHandler( ChunkedWriteHandler writer )
+    {
+        this.writer = writer;
+    }
+
+    /**
+     * Gets a callback to resume writing the request body whose data the calling thread is currently reading. The
+     * callback may be invoked from any thread.
+     *
+     * @return The callback or {@code null} if the calling thread is not reading a request body.
+     */
+    public static Runnable getResumer()
+    {
+        return RESUMER.get();
+    }
+
+    @Override
+    public void writeRequested( ChannelHandlerContext ctx, MessageEvent e )
+        throws Exception
+    {
+        Object message = e.getMessage();
+        if ( message instanceof HttpRequest )
+        {
+            String encoding = ( (HttpRequest) message ).getHeader( HttpHeaders.Names.TRANSFER_ENCODING );
+            chunked = HttpHeaders.Values.CHUNKED.equalsIgnoreCase( encoding );
+        }
+        else if ( message instanceof ChunkedInput )
+        {
+            message = new SuspendableInput( (ChunkedInput) message, chunked );
+            Channels.write( ctx, e.getFuture(), message, e.getRemoteAddress() );
+            return;
+        }
+        super.writeRequested( ctx, e );
+    }
+
+    class SuspendableInput
+        implements ChunkedInput
+    {
+
+        private final ChunkedInput input;
+
+        private final boolean chunked;
+
+        private boolean ended;
+
+        SuspendableInput( ChunkedInput input, boolean chunked )
+        {
+            this.input = input;
+            this.chunked = chunked;
+        }
+
+        public boolean hasNextChunk()
+            throws Exception
+        {
+            return !isEndOfInput();
+        }
+
+        public Object nextChunk()
+            throws Exception
+        {
+            Runnable previous = RESUMER.get();
+            RESUMER.set( resumer );
+            try
+            {
+                if ( input.isEndOfInput() )
+                {
+                    if ( chunked && !ended )
+                    {
+                        ended = true;
+                        return HttpChunk.LAST_CHUNK;
+                    }
+                    return null;
+                }
+
+                Object chunk = input.nextChunk();
+                if ( chunk instanceof ChannelBuffer && !( (ChannelBuffer) chunk ).readable() )
+                {
+                    // nothing available right now, the body resumes the write once it has more data
+                    return null;
+                }
+                return ( chunked && chunk instanceof ChannelBuffer ) ? new DefaultHttpChunk( (ChannelBuffer) chunk )
+                                : chunk;
+            }
+            finally
+            {
+                RESUMER.set( previous );
+            }
+        }
+
+        public boolean isEndOfInput()
+            throws Exception
+        {
+            if ( chunked )
+            {
+                return ended;
+            }
+
+            Runnable previous = RESUMER.get();
+            RESUMER.set( resumer );
+            try
+            {
+                return input.isEndOfInput();
+            }
+            finally
+            {
+                RESUMER.set( previous );
+            }
+        }
+
+        public void close()
+            throws Exception
+        {
+            input.close();
+        }
+
+    }
+
+}
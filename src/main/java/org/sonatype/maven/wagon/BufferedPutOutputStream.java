@@ -0,0 +1,249 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+import com.ning.http.client.Response;
+import com.ning.http.client.generators.FileBodyGenerator;
+
+/**
+ * Buffers the entire body before the request is sent, allowing it to be sent again in response to an authentication
+ * challenge. Bodies up to the configured threshold are kept in memory, using chunks from a pool shared by all streams.
+ * Larger bodies are spilled to a temporary file which the I/O thread can send via zero-copy transfers.
+ */
+class BufferedPutOutputStream
+    extends PutOutputStream
+{
+
+    private static final int CHUNK_SIZE = 1024 * 16;
+
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final LinkedList<byte[]> POOL = new LinkedList<byte[]>();
+
+    private final int threshold;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+    private int count;
+
+    private File file;
+
+    private OutputStream out;
+
+    private Future<Response> future;
+
+    /**
+     * @param threshold The size in bytes up to which the body is kept in memory.
+     */
+    public BufferedPutOutputStream( BoundRequestBuilder builder, String url, int threshold )
+    {
+        super( builder, url );
+        this.threshold = threshold;
+    }
+
+    private static byte[] borrowChunk()
+    {
+        synchronized ( POOL )
+        {
+            if ( !POOL.isEmpty() )
+            {
+                return POOL.removeFirst();
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private static void recycleChunks( List<byte[]> chunks )
+    {
+        synchronized ( POOL )
+        {
+            for ( byte[] chunk : chunks )
+            {
+                if ( POOL.size() >= MAX_POOLED_CHUNKS )
+                {
+                    break;
+                }
+                POOL.addFirst( chunk );
+            }
+        }
+        chunks.clear();
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        if ( out == null && count + (long) len > threshold )
+        {
+            spill();
+        }
+
+        if ( out != null )
+        {
+            out.write( b, off, len );
+            return;
+        }
+
+        while ( len > 0 )
+        {
+            int pos = count % CHUNK_SIZE;
+            if ( pos == 0 && count / CHUNK_SIZE >= chunks.size() )
+            {
+                chunks.add( borrowChunk() );
+            }
+            int n = Math.min( len, CHUNK_SIZE - pos );
+            System.arraycopy( b, off, chunks.get( count / CHUNK_SIZE ), pos, n );
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void spill()
+        throws IOException
+    {
+        file = File.createTempFile( "wagon-ahc-put-", ".tmp" );
+        out = new FileOutputStream( file );
+
+        for ( int i = 0, remaining = count; remaining > 0; i++ )
+        {
+            int n = Math.min( remaining, CHUNK_SIZE );
+            out.write( chunks.get( i ), 0, n );
+            remaining -= n;
+        }
+
+        recycleChunks( chunks );
+        count = 0;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        if ( out != null )
+        {
+            out.flush();
+        }
+    }
+
+    @Override
+    protected Future<Response> execute()
+        throws IOException
+    {
+        if ( out != null )
+        {
+            out.close();
+            out = null;
+        }
+
+        if ( file != null )
+        {
+            builder.setBody( new FileBodyGenerator( file ) );
+        }
+        else
+        {
+            builder.setBody( new BufferBodyGenerator() );
+        }
+
+        future = executeRequest();
+        return future;
+    }
+
+    @Override
+    public boolean isReplayable()
+    {
+        return true;
+    }
+
+    /**
+     * Releases the buffered body.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if ( out != null )
+        {
+            out.close();
+            out = null;
+        }
+
+        if ( future == null || future.isDone() )
+        {
+            // NOTE: chunks still read by a pending request are left to the garbage collector
+            recycleChunks( chunks );
+        }
+
+        if ( file != null )
+        {
+            if ( !file.delete() )
+            {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+
+    class BufferBodyGenerator
+        implements BodyGenerator
+    {
+
+        public Body createBody()
+        {
+            return new BufferBody();
+        }
+
+    }
+
+    class BufferBody
+        implements Body
+    {
+
+        private int position;
+
+        public long getContentLength()
+        {
+            return count;
+        }
+
+        public long read( ByteBuffer buffer )
+        {
+            if ( position >= count )
+            {
+                return -1;
+            }
+
+            int pos = position % CHUNK_SIZE;
+            int n = Math.min( buffer.remaining(), Math.min( CHUNK_SIZE - pos, count - position ) );
+            buffer.put( chunks.get( position / CHUNK_SIZE ), pos, n );
+            position += n;
+            return n;
+        }
+
+        public void close()
+        {
+            // nothing to release
+        }
+
+    }
+
+}
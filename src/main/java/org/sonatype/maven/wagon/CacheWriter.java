@@ -0,0 +1,43 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives the body of a response that is about to be added to a cache.
+ */
+abstract class CacheWriter
+    extends OutputStream
+{
+
+    @Override
+    public void write( int b )
+        throws IOException
+    {
+        write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public abstract void write( byte[] b, int off, int len )
+        throws IOException;
+
+    /**
+     * Adds the response to the cache.
+     */
+    public abstract void commit()
+        throws IOException;
+
+    /**
+     * Discards the response, e.g. because it has not been received completely.
+     */
+    public abstract void abort();
+
+}
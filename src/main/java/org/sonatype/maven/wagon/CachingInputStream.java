@@ -0,0 +1,102 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Copies the response body into the cache while it is read by the consumer. The response is only added to the cache if
+ * the consumer has read the body up to its end.
+ */
+class CachingInputStream
+    extends FilterInputStream
+{
+
+    private CacheWriter writer;
+
+    public CachingInputStream( InputStream in, CacheWriter writer )
+    {
+        super( in );
+        this.writer = writer;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        byte[] b = new byte[1];
+        return ( read( b, 0, 1 ) < 0 ) ? -1 : ( b[0] & 0xFF );
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+        throws IOException
+    {
+        int read = super.read( b, off, len );
+
+        if ( writer != null )
+        {
+            try
+            {
+                if ( read < 0 )
+                {
+                    CacheWriter writer = this.writer;
+                    this.writer = null;
+                    writer.commit();
+                }
+                else
+                {
+                    writer.write( b, off, read );
+                }
+            }
+            catch ( IOException e )
+            {
+                // caching is merely an optimization, don't let it fail the transfer
+                abort();
+            }
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip( long n )
+        throws IOException
+    {
+        // skipped content can't be cached
+        abort();
+        return super.skip( n );
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        abort();
+        super.close();
+    }
+
+    private void abort()
+    {
+        if ( writer != null )
+        {
+            writer.abort();
+            writer = null;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent requests per host and in total. Unlike the connection limits of the client which
+ * fail requests beyond the limit, requests that aren't admitted are merely held back by the {@link RequestThrottle}
+ * until others finish. As every request in progress occupies one connection, this bounds the number of connections in
+ * use.
+ */
+class ConnectionLimiter
+{
+
+    private final int maxPerHost;
+
+    private final Semaphore total;
+
+    private final Map<String, Semaphore> hosts = new HashMap<String, Semaphore>();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param maxPerHost The maximum number of concurrent requests per host, non-positive for no limit.
+     * @param maxTotal The maximum number of concurrent requests across all hosts, non-positive for no limit.
+     */
+    public ConnectionLimiter( int maxPerHost, int maxTotal )
+    {
+        this.maxPerHost = maxPerHost;
+        this.total = ( maxTotal > 0 ) ? new Semaphore( maxTotal ) : null;
+    }
+
+    /**
+     * Admits a request to the specified host if neither limit is reached.
+     *
+     * @param host The origin of the request, must not be {@code null}.
+     * @return The callback to invoke once the request is finished or {@code null} if the request isn't admitted now.
+     */
+    public Runnable tryAcquire( String host )
+    {
+        final Semaphore perHost = getSemaphore( host );
+
+        if ( !tryAcquire( total ) )
+        {
+            return null;
+        }
+        if ( !tryAcquire( perHost ) )
+        {
+            release( total );
+            return null;
+        }
+
+        active.incrementAndGet();
+        requests.incrementAndGet();
+
+        return new Runnable()
+        {
+            private boolean released;
+
+            public synchronized void run()
+            {
+                if ( !released )
+                {
+                    released = true;
+                    active.decrementAndGet();
+                    release( perHost );
+                    release( total );
+                }
+            }
+        };
+    }
+
+    private synchronized Semaphore getSemaphore( String host )
+    {
+        if ( maxPerHost <= 0 )
+        {
+            return null;
+        }
+        Semaphore semaphore = hosts.get( host );
+        if ( semaphore == null )
+        {
+            semaphore = new Semaphore( maxPerHost );
+            hosts.put( host, semaphore );
+        }
+        return semaphore;
+    }
+
+    private static boolean tryAcquire( Semaphore semaphore )
+    {
+        return semaphore == null || semaphore.tryAcquire();
+    }
+
+    private static void release( Semaphore semaphore )
+    {
+        if ( semaphore != null )
+        {
+            semaphore.release();
+        }
+    }
+
+    public int getActiveRequests()
+    {
+        return active.get();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+}
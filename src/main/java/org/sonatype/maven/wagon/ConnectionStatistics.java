@@ -0,0 +1,98 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+/**
+ * A snapshot of the connection usage of an HTTP client. As clients are shared among wagons with equal settings, the
+ * numbers cover all those wagons.
+ */
+public class ConnectionStatistics
+{
+
+    private final int openConnections;
+
+    private final long openedConnections;
+
+    private final long expiredConnections;
+
+    private final int activeRequests;
+
+    private final int waitingRequests;
+
+    private final long requests;
+
+    ConnectionStatistics( int openConnections, long openedConnections, long expiredConnections, int activeRequests,
+                          int waitingRequests, long requests )
+    {
+        this.openConnections = openConnections;
+        this.openedConnections = openedConnections;
+        this.expiredConnections = expiredConnections;
+        this.activeRequests = activeRequests;
+        this.waitingRequests = waitingRequests;
+        this.requests = requests;
+    }
+
+    /**
+     * Gets the number of currently open connections, either in use or pooled.
+     */
+    public int getOpenConnections()
+    {
+        return openConnections;
+    }
+
+    /**
+     * Gets the number of connections opened since the client was created. Compared to the number of requests, this
+     * tells how well connections get reused.
+     */
+    public long getOpenedConnections()
+    {
+        return openedConnections;
+    }
+
+    /**
+     * Gets the number of connections that were closed because they exceeded their maximum lifetime.
+     */
+    public long getExpiredConnections()
+    {
+        return expiredConnections;
+    }
+
+    /**
+     * Gets the number of requests currently in progress.
+     */
+    public int getActiveRequests()
+    {
+        return activeRequests;
+    }
+
+    /**
+     * Gets the number of requests currently waiting for the connection limits to admit them.
+     */
+    public int getWaitingRequests()
+    {
+        return waitingRequests;
+    }
+
+    /**
+     * Gets the number of requests issued since the client was created.
+     */
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "connections: " + openConnections + " open, " + openedConnections + " opened, " + expiredConnections
+            + " expired; requests: " + activeRequests + " active, " + waitingRequests + " waiting, " + requests
+            + " total";
+    }
+
+}
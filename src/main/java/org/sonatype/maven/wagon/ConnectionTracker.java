@@ -0,0 +1,97 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Keeps track of the open connections of a client for its statistics and retires connections which have exceeded
+ * their maximum lifetime, e.g. to let a load balancer redistribute the connections.
+ */
+class ConnectionTracker
+{
+
+    private final ChannelGroup channels = new DefaultChannelGroup( "wagon-ahc" );
+
+    private final ChannelLocal<Long> openTimes = new ChannelLocal<Long>();
+
+    private final AtomicLong openedConnections = new AtomicLong();
+
+    private final AtomicLong expiredConnections = new AtomicLong();
+
+    private final long maxConnectionLifetime;
+
+    /**
+     * @param maxConnectionLifetime The time in milliseconds after which a connection is no longer reused, non-positive
+     *            to reuse connections for as long as the server keeps them open.
+     */
+    public ConnectionTracker( long maxConnectionLifetime )
+    {
+        this.maxConnectionLifetime = maxConnectionLifetime;
+    }
+
+    /**
+     * Records a newly opened connection. Closed connections are forgotten automatically.
+     */
+    public void opened( Channel channel )
+    {
+        channels.add( channel );
+        openTimes.set( channel, Long.valueOf( System.currentTimeMillis() ) );
+        openedConnections.incrementAndGet();
+    }
+
+    /**
+     * Marks the specified (final) response to close its connection afterwards if the connection has exceeded its
+     * lifetime.
+     */
+    public void responded( Channel channel, HttpResponse response )
+    {
+        if ( maxConnectionLifetime <= 0 )
+        {
+            return;
+        }
+
+        Long openTime = openTimes.get( channel );
+        String connection = response.getHeader( HttpHeaders.Names.CONNECTION );
+        if ( openTime != null && System.currentTimeMillis() - openTime.longValue() > maxConnectionLifetime
+            && !HttpHeaders.Values.CLOSE.equalsIgnoreCase( connection ) )
+        {
+            // makes the provider close the connection instead of returning it to the pool
+            response.setHeader( HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE );
+            expiredConnections.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the connections which are currently open.
+     */
+    public Set<Channel> getChannels()
+    {
+        return channels;
+    }
+
+    public long getOpenedConnections()
+    {
+        return openedConnections.get();
+    }
+
+    public long getExpiredConnections()
+    {
+        return expiredConnections.get();
+    }
+
+}
@@ -0,0 +1,218 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+import com.ning.http.client.providers.netty.NettyResponseFuture;
+
+/**
+ * Tracks the requests of a provider which carry the header {@code Expect: 100-continue}. Servers which don't implement
+ * the expectation would keep such a request waiting until it times out, so its body is sent anyway after a while, see
+ * {@link #expect(Future, long)}. Interim responses arriving after the body has been sent must then be ignored.
+ */
+class ContinueExpectations
+{
+
+    static final int CONTINUE = 100;
+
+    private static final String EXPECT = "Expect";
+
+    private static final Object PENDING = "pending";
+
+    private static final Object CONTINUED = "continued";
+
+    private static final Object RESPONDED = "responded";
+
+    private static final Object CONTINUED_EARLY = "continued early";
+
+    private final FlowControlNettyAsyncHttpProvider provider;
+
+    private final ScheduledExecutorService reaper;
+
+    private final Map<Object, Object> expectations = new WeakHashMap<Object, Object>();
+
+    /**
+     * @param provider The provider to send the bodies with, must not be {@code null}.
+     * @param reaper The scheduler to time the expectations with, must not be {@code null}.
+     */
+    public ContinueExpectations( FlowControlNettyAsyncHttpProvider provider, ScheduledExecutorService reaper )
+    {
+        this.provider = provider;
+        this.reaper = reaper;
+    }
+
+    /**
+     * Sends the body of a request which carries the header {@code Expect: 100-continue} if the server hasn't responded
+     * within the specified time. An interim response arriving after the body has been sent is ignored, one arriving
+     * before this method got called makes it send the body right away. Hence, this method must be called for every
+     * request with the expectation once it has been issued.
+     *
+     * @param future The pending response of the request, must not be {@code null}.
+     * @param timeout The time in milliseconds to wait for a response before the body is sent.
+     */
+    public void expect( final Future<?> future, final long timeout )
+    {
+        if ( !( future instanceof NettyResponseFuture<?> ) )
+        {
+            return;
+        }
+
+        boolean continued;
+        synchronized ( expectations )
+        {
+            Object state = expectations.get( future );
+            if ( state != null && state != CONTINUED_EARLY )
+            {
+                // the server has already responded
+                return;
+            }
+            expectations.put( future, PENDING );
+            continued = state == CONTINUED_EARLY;
+        }
+
+        if ( continued )
+        {
+            sendBody( (NettyResponseFuture<?>) future );
+            return;
+        }
+
+        Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                if ( !future.isDone() && !sendBody( (NettyResponseFuture<?>) future ) )
+                {
+                    expect( future, timeout );
+                }
+            }
+        };
+
+        try
+        {
+            reaper.schedule( task, timeout, TimeUnit.MILLISECONDS );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // the client has been closed, the request will fail on its own
+        }
+    }
+
+    /**
+     * Writes the body of the specified request unless the server has responded in the meantime.
+     *
+     * @return {@code false} if the request is still connecting and the attempt needs to be repeated later.
+     */
+    boolean sendBody( NettyResponseFuture<?> future )
+    {
+        Channel channel = provider.findChannel( future );
+
+        synchronized ( expectations )
+        {
+            if ( expectations.get( future ) != PENDING )
+            {
+                return true;
+            }
+            if ( channel == null )
+            {
+                expectations.remove( future );
+                return false;
+            }
+            expectations.put( future, CONTINUED );
+        }
+
+        provider.writeBody( channel, future );
+
+        return true;
+    }
+
+    /**
+     * Updates the expectation of the specified request with a response received for it.
+     *
+     * @return {@code true} if the response is to be processed as usual, {@code false} if it is to be ignored.
+     */
+    public boolean responded( NettyResponseFuture<?> future, HttpResponse response )
+    {
+        if ( future.getNettyRequest().getHeader( EXPECT ) == null )
+        {
+            return true;
+        }
+
+        Object state;
+        synchronized ( expectations )
+        {
+            if ( response.getStatus().getCode() == CONTINUE && !expectations.containsKey( future ) )
+            {
+                /*
+                 * The thread issuing the request might still be writing it and send the body on its own once it sees
+                 * the interim response, the body is sent by expect() afterwards instead.
+                 */
+                expectations.put( future, CONTINUED_EARLY );
+                return false;
+            }
+            state = expectations.put( future, RESPONDED );
+        }
+        if ( ( state == CONTINUED || state == RESPONDED ) && response.getStatus().getCode() == CONTINUE )
+        {
+            // the body is already on its way, sending it again would corrupt the request
+            return false;
+        }
+        if ( ( state == null || state == PENDING || state == CONTINUED_EARLY )
+            && response.getStatus().getCode() != CONTINUE )
+        {
+            // the body has been withheld, the server would take whatever comes next on this connection for it
+            response.setHeader( HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE );
+        }
+        return true;
+    }
+
+    /**
+     * Creates a handler that passes interim responses around the content decoder of a channel, which would otherwise
+     * send them the wrong way and fail.
+     */
+    public ChannelHandler newBypass()
+    {
+        return new ContinueBypass();
+    }
+
+    class ContinueBypass
+        extends SimpleChannelUpstreamHandler
+    {
+
+        @Override
+        public void messageReceived( ChannelHandlerContext ctx, MessageEvent e )
+            throws Exception
+        {
+            if ( e.getMessage() instanceof HttpResponse
+                && ( (HttpResponse) e.getMessage() ).getStatus().getCode() == CONTINUE )
+            {
+                provider.messageReceived( ctx.getPipeline().getContext( provider ), e );
+            }
+            else
+            {
+                super.messageReceived( ctx, e );
+            }
+        }
+
+    }
+
+}
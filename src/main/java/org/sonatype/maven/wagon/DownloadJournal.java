@@ -0,0 +1,146 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Keeps track of an interrupted download so that it can later be resumed. The bytes received so far are kept in a
+ * {@code .part} file next to the destination, accompanied by a small properties file which records the URL, the
+ * validator of the entity (its strong ETag or Last-Modified date) and the number of valid bytes in the {@code .part}
+ * file. The byte count needs to be recorded separately since the {@code .part} file is preallocated.
+ */
+class DownloadJournal
+{
+
+    private static final String KEY_URL = "url";
+
+    private static final String KEY_VALIDATOR = "validator";
+
+    private static final String KEY_LENGTH = "length";
+
+    private final String url;
+
+    private final File partFile;
+
+    private final File journalFile;
+
+    private String validator;
+
+    private long length;
+
+    public DownloadJournal( File destination, String url )
+    {
+        this.url = url;
+        File parent = destination.getAbsoluteFile().getParentFile();
+        this.partFile = new File( parent, destination.getName() + ".part" );
+        this.journalFile = new File( parent, destination.getName() + ".part.properties" );
+    }
+
+    public File getPartFile()
+    {
+        return partFile;
+    }
+
+    /**
+     * Loads the journal of a previously interrupted download of the same URL.
+     *
+     * @return {@code true} if there is a partial download which can be resumed, {@code false} otherwise.
+     */
+    public boolean load()
+    {
+        if ( !journalFile.isFile() || !partFile.isFile() )
+        {
+            return false;
+        }
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( journalFile );
+            props.load( in );
+        }
+        catch ( IOException e )
+        {
+            return false;
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        try
+        {
+            validator = props.getProperty( KEY_VALIDATOR );
+            length = Long.parseLong( props.getProperty( KEY_LENGTH, "0" ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            return false;
+        }
+
+        return url.equals( props.getProperty( KEY_URL ) ) && validator != null && length > 0
+            && partFile.length() >= length;
+    }
+
+    public String getValidator()
+    {
+        return validator;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Records the state of an interrupted download.
+     */
+    public void save( String validator, long length )
+        throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty( KEY_URL, url );
+        props.setProperty( KEY_VALIDATOR, validator );
+        props.setProperty( KEY_LENGTH, String.valueOf( length ) );
+
+        OutputStream out = new FileOutputStream( journalFile );
+        try
+        {
+            props.store( out, null );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        this.validator = validator;
+        this.length = length;
+    }
+
+    /**
+     * Forgets about any previous download, e.g. after it has been completed or its data proved to be stale.
+     */
+    public void delete()
+    {
+        journalFile.delete();
+        validator = null;
+        length = 0;
+    }
+
+}
@@ -0,0 +1,699 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.zip.CRC32;
+
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.resource.Resource;
+import org.jboss.netty.channel.Channel;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+
+/**
+ * Writes the body of a GET response directly from the I/O thread into a temporary file next to the destination, which
+ * gets renamed to the destination once the transfer has completed. If the request asked for a range and the server
+ * only delivered a part of the resource, the file is preallocated for the entire resource and the remaining bytes are
+ * expected to be filled in by {@link FileSegmentHandler}s. Likewise, the body of a complete response to a plain request
+ * can be cut off after a given number of bytes if the server supports ranges, see {@link #setSegmentThreshold(long)}.
+ * When given a {@link DownloadJournal}, the temporary file is the journal's {@code .part} file which is kept along with
+ * the journal if the transfer fails midway, allowing a later request to resume the download from the given offset.
+ */
+class FileGetHandler
+    implements AsyncHandler<String>
+{
+
+    private final AhcWagon wagon;
+
+    private final Resource resource;
+
+    private final File destination;
+
+    private final long timestamp;
+
+    private final TransferEvent event;
+
+    private DownloadJournal journal;
+
+    private long offset;
+
+    private final OutputStream sink = new OutputStream()
+    {
+
+        @Override
+        public void write( int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            FileGetHandler.this.write( b, off, len );
+        }
+
+    };
+
+    private final CRC32 checksum = new CRC32();
+
+    private byte[] bytes;
+
+    private volatile int statusCode;
+
+    private File tmpFile;
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    private volatile boolean transferring;
+
+    private volatile boolean partial;
+
+    private long totalLength = -1;
+
+    private long rangeEnd = -1;
+
+    private String validator;
+
+    private String entityTag;
+
+    private boolean encoded;
+
+    private FluentCaseInsensitiveStringsMap headers;
+
+    private volatile boolean keepPartFile;
+
+    private boolean started;
+
+    private boolean muted;
+
+    private long segmentThreshold;
+
+    /**
+     * @param journal The journal of the download, may be {@code null} to use an ordinary temporary file.
+     * @param offset The offset of the first byte requested from the server, must be {@code 0} unless resuming the
+     *            download recorded by the journal.
+     */
+    public FileGetHandler( AhcWagon wagon, Resource resource, File destination, long timestamp,
+                           DownloadJournal journal, long offset )
+    {
+        this.wagon = wagon;
+        this.resource = resource;
+        this.destination = destination;
+        this.timestamp = timestamp;
+        this.journal = journal;
+        this.offset = offset;
+        this.keepPartFile = offset > 0;
+
+        event = new TransferEvent( wagon, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET );
+        event.setTimestamp( System.currentTimeMillis() );
+    }
+
+    /**
+     * Marks the transfer listeners as already notified about the start of the transfer and the bytes up to the offset,
+     * e.g. when resuming a stalled download within the same request. Those bytes then only go into the checksum.
+     */
+    public void setStarted( boolean started )
+    {
+        this.started = started;
+    }
+
+    /**
+     * Stops receiving the body of a resource longer than the given number of bytes after that many bytes, leaving the
+     * remainder to range requests. This only applies if the server doesn't refuse ranges and provides a validator to
+     * ensure those requests address the same entity.
+     *
+     * @param segmentThreshold The number of bytes to receive, a non-positive value to always receive the entire body.
+     */
+    public void setSegmentThreshold( long segmentThreshold )
+    {
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    public Resource getResource()
+    {
+        return resource;
+    }
+
+    public File getDestination()
+    {
+        return destination;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    /**
+     * Indicates whether the response body was written to the temporary file, i.e. the remote resource is newer than
+     * the requested timestamp.
+     */
+    public boolean isTransferring()
+    {
+        return transferring;
+    }
+
+    /**
+     * Indicates whether the server answered with only a part of the resource.
+     */
+    public boolean isPartial()
+    {
+        return partial;
+    }
+
+    /**
+     * Gets the length of the entire resource as reported by the {@code Content-Range} of a partial response.
+     *
+     * @return The length of the resource or {@code -1} if unknown.
+     */
+    public long getTotalLength()
+    {
+        return totalLength;
+    }
+
+    /**
+     * Gets the offset of the last byte received by a partial response.
+     */
+    public long getRangeEnd()
+    {
+        return rangeEnd;
+    }
+
+    /**
+     * Gets a validator suitable for an {@code If-Range} header to ensure further range requests address the same
+     * entity as the initial response.
+     *
+     * @return The strong entity tag or last modification date of the response or {@code null} if none.
+     */
+    public String getValidator()
+    {
+        return validator;
+    }
+
+    /**
+     * Gets the entity tag of the response, weak or strong.
+     *
+     * @return The entity tag or {@code null} if none.
+     */
+    public String getEntityTag()
+    {
+        return entityTag;
+    }
+
+    /**
+     * Gets the headers of the response.
+     *
+     * @return The response headers or {@code null} if not received (yet).
+     */
+    public FluentCaseInsensitiveStringsMap getHeaders()
+    {
+        return headers;
+    }
+
+    public FileChannel getChannel()
+    {
+        return channel;
+    }
+
+    public AsyncHandler.STATE onStatusReceived( HttpResponseStatus responseStatus )
+        throws Exception
+    {
+        statusCode = responseStatus.getStatusCode();
+
+        if ( statusCode == HttpURLConnection.HTTP_OK || statusCode == FileSegmentHandler.HTTP_PARTIAL
+            || statusCode == HttpURLConnection.HTTP_NOT_MODIFIED )
+        {
+            return STATE.CONTINUE;
+        }
+        return STATE.ABORT;
+    }
+
+    public AsyncHandler.STATE onHeadersReceived( HttpResponseHeaders headers )
+        throws Exception
+    {
+        if ( transferring )
+        {
+            // NOTE: the client replays a request whose connection dropped without reporting the status again, but
+            // the listeners have already seen a part of the body, leave it to the wagon to resume or fail
+            throw new IOException( "Connection closed before transfer was completed" );
+        }
+
+        FluentCaseInsensitiveStringsMap h = headers.getHeaders();
+
+        this.headers = h;
+        if ( statusCode == HttpURLConnection.HTTP_NOT_MODIFIED )
+        {
+            // the headers are only of interest to refresh a cached response
+            return STATE.ABORT;
+        }
+
+        long contentLength = GetExchange.parseContentLength( h.getFirstValue( "Content-Length" ) );
+
+        // NOTE: a decompressed body still carries a Content-Encoding, the decoder rewrites it to identity
+        encoded = h.getFirstValue( "Content-Encoding" ) != null;
+
+        String etag = h.getFirstValue( "ETag" );
+        entityTag = etag;
+        validator = ( etag != null && !etag.startsWith( "W/" ) ) ? etag : h.getFirstValue( "Last-Modified" );
+
+        if ( statusCode == FileSegmentHandler.HTTP_PARTIAL )
+        {
+            String contentRange = h.getFirstValue( "Content-Range" );
+            if ( encoded )
+            {
+                throw new IOException( "Server sent encoded range " + contentRange );
+            }
+            long[] range = GetExchange.parseContentRange( contentRange );
+            if ( range == null || range[0] != offset )
+            {
+                throw new IOException( "Server sent unexpected range " + contentRange );
+            }
+
+            rangeEnd = range[1];
+            totalLength = range[2];
+            partial = totalLength < 0 || rangeEnd + 1 < totalLength;
+            contentLength = totalLength;
+        }
+        else if ( started )
+        {
+            // the listeners have seen the beginning of another entity already
+            throw new IOException( "Resource changed while resuming the download" );
+        }
+        else
+        {
+            // the entity has changed (If-Range) or the server doesn't support ranges, the partial data is useless
+            offset = 0;
+
+            if ( segmentThreshold > 0 && contentLength > segmentThreshold && validator != null && !encoded
+                && !"none".equalsIgnoreCase( h.getFirstValue( "Accept-Ranges" ) ) )
+            {
+                rangeEnd = segmentThreshold - 1;
+                totalLength = contentLength;
+                partial = true;
+            }
+        }
+
+        resource.setLastModified( GetExchange.parseLastModified( h.getFirstValue( "Last-Modified" ), 0 ) );
+        resource.setContentLength( contentLength );
+
+        // always get if timestamp is 0 (ie, target doesn't exist), otherwise only if older than the remote file
+        if ( timestamp != 0 && timestamp >= resource.getLastModified() )
+        {
+            return STATE.ABORT;
+        }
+
+        open( contentLength );
+
+        transferring = true;
+
+        if ( !started )
+        {
+            wagon.fireGetStarted( destination, resource );
+        }
+
+        if ( offset > 0 )
+        {
+            // listeners like checksum observers expect to see the entire content, exactly once
+            muted = started;
+            try
+            {
+                fireTransferProgressed( 0, offset );
+            }
+            finally
+            {
+                muted = false;
+            }
+        }
+
+        return STATE.CONTINUE;
+    }
+
+    private void open( long contentLength )
+        throws IOException
+    {
+        File parent = destination.getAbsoluteFile().getParentFile();
+        if ( parent != null && !parent.isDirectory() && !parent.mkdirs() )
+        {
+            throw new IOException( "Specified destination directory cannot be created: " + parent );
+        }
+
+        if ( journal != null )
+        {
+            tmpFile = journal.getPartFile();
+            file = new RandomAccessFile( tmpFile, "rw" );
+            if ( !lock( file ) )
+            {
+                file.close();
+                file = null;
+                tmpFile = null;
+                if ( offset > 0 )
+                {
+                    throw new IOException( "Partial download " + journal.getPartFile()
+                        + " is in use by another process" );
+                }
+                journal = null;
+            }
+            else if ( offset <= 0 )
+            {
+                journal.delete();
+            }
+        }
+
+        if ( file == null )
+        {
+            tmpFile = File.createTempFile( destination.getName() + "-", ".tmp", parent );
+            file = new RandomAccessFile( tmpFile, "rw" );
+        }
+
+        // from now on, the file contents are about to be overwritten
+        keepPartFile = false;
+
+        channel = file.getChannel();
+
+        if ( contentLength > 0 )
+        {
+            file.setLength( contentLength );
+        }
+        else if ( offset <= 0 )
+        {
+            file.setLength( 0 );
+        }
+
+        channel.position( offset );
+    }
+
+    private static boolean lock( RandomAccessFile file )
+        throws IOException
+    {
+        try
+        {
+            // NOTE: the lock is released when the file gets closed
+            FileLock lock = file.getChannel().tryLock();
+            return lock != null;
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Fills the temporary file from a cached response instead of a response from the server.
+     *
+     * @param in The stream to read the cached content from, must not be {@code null}.
+     * @param lastModified The last modification date of the cached resource.
+     * @param contentLength The length of the cached content.
+     * @return {@code true} if the cached response has been transferred, {@code false} if it is not newer than the
+     *         timestamp.
+     */
+    public boolean transferFrom( InputStream in, long lastModified, long contentLength )
+        throws IOException
+    {
+        resource.setLastModified( lastModified );
+        resource.setContentLength( contentLength );
+
+        if ( timestamp != 0 && timestamp >= resource.getLastModified() )
+        {
+            return false;
+        }
+
+        // a partial download of the same resource is left for another time
+        journal = null;
+        offset = 0;
+
+        open( contentLength );
+
+        transferring = true;
+
+        wagon.fireGetStarted( destination, resource );
+
+        byte[] buffer = new byte[1024 * 16];
+        for ( int read = in.read( buffer ); read >= 0; read = in.read( buffer ) )
+        {
+            write( buffer, 0, read );
+        }
+
+        channel.truncate( channel.position() );
+        close();
+
+        return true;
+    }
+
+    public AsyncHandler.STATE onBodyPartReceived( HttpResponseBodyPart bodyPart )
+        throws Exception
+    {
+        if ( channel != null )
+        {
+            if ( partial && statusCode == HttpURLConnection.HTTP_OK )
+            {
+                return cutOff( bodyPart.getBodyPartBytes() );
+            }
+            bodyPart.writeTo( sink );
+        }
+
+        return STATE.CONTINUE;
+    }
+
+    private AsyncHandler.STATE cutOff( byte[] b )
+        throws IOException
+    {
+        write( b, 0, (int) Math.min( b.length, rangeEnd + 1 - channel.position() ) );
+        if ( channel.position() <= rangeEnd )
+        {
+            return STATE.CONTINUE;
+        }
+
+        Channel connection = FlowControlNettyAsyncHttpProvider.getCurrentChannel();
+        if ( connection != null )
+        {
+            // NOTE: the client closes a connection that is not readable once the response is done instead of reading
+            // the rest of the body
+            connection.setReadable( false );
+        }
+        return STATE.ABORT;
+    }
+
+    void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+
+        if ( off == 0 )
+        {
+            progressed( b, len );
+        }
+        else
+        {
+            if ( bytes == null || bytes.length < len )
+            {
+                bytes = new byte[Math.max( len, 1024 * 16 )];
+            }
+            System.arraycopy( b, off, bytes, 0, len );
+            progressed( bytes, len );
+        }
+    }
+
+    public String onCompleted()
+        throws Exception
+    {
+        if ( partial )
+        {
+            if ( channel.position() != rangeEnd + 1 )
+            {
+                throw new IOException( "Server sent " + ( channel.position() - offset ) + " bytes for range "
+                    + offset + "-" + rangeEnd );
+            }
+        }
+        else if ( channel != null )
+        {
+            // the preallocated length is only a hint, e.g. the content might have been decompressed on the fly
+            channel.truncate( channel.position() );
+            close();
+        }
+
+        return "";
+    }
+
+    public void onThrowable( Throwable t )
+    {
+        suspend();
+        discard();
+    }
+
+    /**
+     * Records the bytes received so far in the journal so that the download can be resumed later. This is only possible
+     * if the bytes have been received in order and the server provided a validator to detect a change of the entity.
+     * The bytes of an encoded body have been decoded on the fly and can't be matched with a range of the entity.
+     */
+    private void suspend()
+    {
+        FileChannel channel = this.channel;
+        if ( journal == null || !transferring || partial || encoded || validator == null || channel == null )
+        {
+            return;
+        }
+
+        try
+        {
+            long length = channel.position();
+            if ( length > 0 )
+            {
+                channel.force( false );
+                journal.save( validator, length );
+                keepPartFile = true;
+            }
+        }
+        catch ( IOException e )
+        {
+            // ignored, the next request will simply start over
+        }
+    }
+
+    /**
+     * Replays the bytes written by the segments of a partial download as progress events, listeners like checksum
+     * observers expect to see the content in order.
+     */
+    public void fireTransferProgressed( long position, long end )
+        throws IOException
+    {
+        if ( bytes == null || bytes.length < 1024 * 16 )
+        {
+            bytes = new byte[1024 * 16];
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap( bytes );
+        while ( position < end )
+        {
+            buffer.clear();
+            buffer.limit( (int) Math.min( buffer.capacity(), end - position ) );
+            int read = channel.read( buffer, position );
+            if ( read < 0 )
+            {
+                break;
+            }
+            position += read;
+            progressed( bytes, read );
+        }
+    }
+
+    private void progressed( byte[] buffer, int length )
+    {
+        checksum.update( buffer, 0, length );
+        if ( !muted )
+        {
+            wagon.fireTransferProgressed( event, length, buffer );
+        }
+    }
+
+    /**
+     * Gets the CRC-32 of the content that has been reported to the transfer listeners so far, i.e. of the entire
+     * content once the download has been completed.
+     */
+    public long getChecksum()
+    {
+        return checksum.getValue();
+    }
+
+    /**
+     * Cuts the file at the given length, e.g. after a download of unknown length.
+     */
+    public void truncate( long length )
+        throws IOException
+    {
+        channel.truncate( length );
+    }
+
+    private void close()
+        throws IOException
+    {
+        if ( file != null )
+        {
+            channel = null;
+            file.close();
+            file = null;
+        }
+    }
+
+    /**
+     * Moves the completely received body into the destination.
+     */
+    public void commit()
+        throws IOException
+    {
+        close();
+
+        if ( !tmpFile.renameTo( destination ) )
+        {
+            // NOTE: File.renameTo() can't replace existing files on all platforms
+            destination.delete();
+            if ( !tmpFile.renameTo( destination ) )
+            {
+                throw new IOException( "Failed to move " + tmpFile + " to " + destination );
+            }
+        }
+
+        if ( journal != null )
+        {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Deletes the temporary file after a failed transfer unless it holds a partial download that can be resumed.
+     */
+    public void discard()
+    {
+        try
+        {
+            close();
+        }
+        catch ( IOException e )
+        {
+            // ignored
+        }
+
+        if ( keepPartFile )
+        {
+            return;
+        }
+
+        if ( tmpFile != null && tmpFile.exists() && !tmpFile.delete() )
+        {
+            tmpFile.deleteOnExit();
+        }
+    }
+
+}
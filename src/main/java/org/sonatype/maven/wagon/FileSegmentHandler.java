@@ -0,0 +1,154 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+
+/**
+ * Receives the response to a {@code Range} request and writes its body at the corresponding offset into a file that is
+ * shared with the other segments of the same download.
+ */
+class FileSegmentHandler
+    implements AsyncHandler<String>
+{
+
+    static final int HTTP_PARTIAL = 206;
+
+    private final FileChannel channel;
+
+    private final long first;
+
+    private final long last;
+
+    private final OutputStream sink = new OutputStream()
+    {
+
+        @Override
+        public void write( int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            FileSegmentHandler.this.write( b, off, len );
+        }
+
+    };
+
+    private volatile long position;
+
+    /**
+     * @param channel The channel to write the received bytes to, must not be {@code null}.
+     * @param first The offset of the first byte of the segment.
+     * @param last The offset of the last byte of the segment or {@code -1} to receive everything up to the end of the
+     *            resource.
+     */
+    public FileSegmentHandler( FileChannel channel, long first, long last )
+    {
+        this.channel = channel;
+        this.first = first;
+        this.last = last;
+        this.position = first;
+    }
+
+    public String getRange()
+    {
+        return "bytes=" + first + "-" + ( ( last >= 0 ) ? String.valueOf( last ) : "" );
+    }
+
+    public long getFirst()
+    {
+        return first;
+    }
+
+    /**
+     * Gets the offset following the last byte written so far.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    public AsyncHandler.STATE onStatusReceived( HttpResponseStatus responseStatus )
+        throws Exception
+    {
+        if ( responseStatus.getStatusCode() != HTTP_PARTIAL )
+        {
+            throw new IOException( "Server did not honor range request " + getRange() + ", status code "
+                + responseStatus.getStatusCode() );
+        }
+
+        return STATE.CONTINUE;
+    }
+
+    public AsyncHandler.STATE onHeadersReceived( HttpResponseHeaders headers )
+        throws Exception
+    {
+        String contentRange = headers.getHeaders().getFirstValue( "Content-Range" );
+        long[] range = GetExchange.parseContentRange( contentRange );
+        if ( range == null || range[0] != first || ( last >= 0 && range[1] != last ) )
+        {
+            throw new IOException( "Server sent range " + contentRange + " for request " + getRange() );
+        }
+
+        return STATE.CONTINUE;
+    }
+
+    public AsyncHandler.STATE onBodyPartReceived( HttpResponseBodyPart bodyPart )
+        throws Exception
+    {
+        bodyPart.writeTo( sink );
+
+        return STATE.CONTINUE;
+    }
+
+    void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        if ( last >= 0 && position + len > last + 1 )
+        {
+            throw new IOException( "Server sent more data than requested by " + getRange() );
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+        while ( buffer.hasRemaining() )
+        {
+            position += channel.write( buffer, position );
+        }
+    }
+
+    public String onCompleted()
+        throws Exception
+    {
+        if ( last >= 0 && position != last + 1 )
+        {
+            throw new IOException( "Server sent " + ( position - first ) + " bytes for request " + getRange() );
+        }
+
+        return "";
+    }
+
+    public void onThrowable( Throwable t )
+    {
+        // the caller learns about the error from the future
+    }
+
+}
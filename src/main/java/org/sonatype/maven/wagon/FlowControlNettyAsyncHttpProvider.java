@@ -0,0 +1,320 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Future;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Request;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProvider;
+import com.ning.http.client.providers.netty.NettyResponseFuture;
+
+/**
+ * Exposes the channel that is delivering the current response to the async handler callbacks so that those can
+ * suspend reading from the socket instead of blocking the I/O thread when their consumer can't keep up. The remaining
+ * concerns of the provider are left to collaborators: {@link ContinueExpectations} for requests expecting
+ * {@code 100-continue}, {@link PreemptiveAuthenticator} for the credentials of servers that have challenged before,
+ * {@link RequestThrottle} for the limits on concurrent requests, {@link ConnectionTracker} for the statistics and the
+ * lifetime of connections and {@link TransferMonitor} for the transfer timeout and the minimum throughput. The server
+ * a connection is opened to is announced to the {@link SharedSslEngineFactory} for TLS session resumption.
+ */
+class FlowControlNettyAsyncHttpProvider
+    extends NettyAsyncHttpProvider
+{
+
+    private static final ThreadLocal<Channel> CURRENT_CHANNEL = new ThreadLocal<Channel>();
+
+    private static final String INFLATER = "inflater";
+
+    private static final String CHUNKED_WRITER = "chunkedWriter";
+
+    private final AsyncHttpClientConfig config;
+
+    private final ConnectionTracker connections;
+
+    private final RequestThrottle throttle;
+
+    private final PreemptiveAuthenticator authenticator;
+
+    private final ContinueExpectations expectations;
+
+    private final TransferMonitor monitor;
+
+    public FlowControlNettyAsyncHttpProvider( AsyncHttpClientConfig config )
+    {
+        super( config );
+        this.config = config;
+
+        NettyProviderConfig providerConfig = new NettyProviderConfig();
+        if ( config.getAsyncHttpProviderConfig() instanceof NettyProviderConfig )
+        {
+            providerConfig = (NettyProviderConfig) config.getAsyncHttpProviderConfig();
+        }
+        this.connections = new ConnectionTracker( providerConfig.getMaxConnectionLifetime() );
+        this.throttle =
+            new RequestThrottle( new ConnectionLimiter( config.getMaxConnectionPerHost(),
+                                                        providerConfig.getMaxConnectionsTotal() ),
+                                 new AdaptiveLimiter( providerConfig.getAdaptiveMaxConcurrency(),
+                                                      providerConfig.getLatencyTolerance(),
+                                                      providerConfig.getMaxRetryAfter() ),
+                                 config.getRequestTimeoutInMs(), config.reaper(), config.executorService() );
+        this.authenticator = new PreemptiveAuthenticator( this, config.getRealm() );
+        this.expectations = new ContinueExpectations( this, config.reaper() );
+        this.monitor = new TransferMonitor( this, config.reaper(), providerConfig );
+    }
+
+    /**
+     * Gets the channel whose response is currently being processed by the calling I/O thread.
+     *
+     * @return The current channel or {@code null} if the calling thread is not processing a response.
+     */
+    public static Channel getCurrentChannel()
+    {
+        return CURRENT_CHANNEL.get();
+    }
+
+    @Override
+    public <T> ListenableFuture<T> execute( Request request, AsyncHandler<T> handler )
+        throws IOException
+    {
+        URI uri = URI.create( request.getUrl() );
+        return throttle.execute( UrlUtils.getOrigin( uri ), newDispatcher( uri, request, handler ) );
+    }
+
+    /**
+     * Sends the specified request only if the limits on concurrent requests admit it right away. Unlike
+     * {@link #execute(Request, AsyncHandler)}, the request is never queued, which suits optional requests that
+     * shouldn't compete with the requests waiting for a connection.
+     *
+     * @return The pending response of the request or {@code null} if the request wasn't admitted.
+     */
+    public <T> ListenableFuture<T> tryExecute( Request request, AsyncHandler<T> handler )
+        throws IOException
+    {
+        URI uri = URI.create( request.getUrl() );
+        return throttle.tryExecute( UrlUtils.getOrigin( uri ), newDispatcher( uri, request, handler ) );
+    }
+
+    private <T> RequestThrottle.Dispatcher<T> newDispatcher( final URI uri, Request request,
+                                                              final AsyncHandler<T> handler )
+    {
+        final Request authenticated = authenticator.authenticate( request, uri );
+
+        return new RequestThrottle.Dispatcher<T>()
+        {
+            public ListenableFuture<T> dispatch( AdaptiveLimiter.Permit permit )
+                throws IOException
+            {
+                SharedSslEngineFactory.setPeer( uri.getHost(), UrlUtils.getPort( uri ) );
+                try
+                {
+                    AsyncHandler<T> reporter = new RequestThrottle.ResponseReporter<T>( handler, permit );
+                    ListenableFuture<T> future =
+                        FlowControlNettyAsyncHttpProvider.super.execute( authenticated, reporter );
+                    monitor.watch( future );
+                    return future;
+                }
+                finally
+                {
+                    SharedSslEngineFactory.setPeer( null, -1 );
+                }
+            }
+
+            public void failed( Throwable cause )
+            {
+                handler.onThrowable( cause );
+            }
+        };
+    }
+
+    /**
+     * Gets a snapshot of the connection usage of this provider.
+     */
+    public ConnectionStatistics getStatistics()
+    {
+        return new ConnectionStatistics( connections.getChannels().size(), connections.getOpenedConnections(),
+                                         connections.getExpiredConnections(), throttle.getActiveRequests(),
+                                         throttle.getWaitingRequests(), throttle.getRequests() );
+    }
+
+    /**
+     * Fails the requests still in progress or waiting to be sent before shutting down. The base provider would merely close their
+     * connections without notifying their handlers, leaving readers of the response bodies waiting forever.
+     */
+    @Override
+    public void close()
+    {
+        IOException cause = new IOException( "Connection closed before transfer was completed" );
+        for ( Channel channel : connections.getChannels() )
+        {
+            ChannelHandlerContext ctx = channel.getPipeline().getContext( this );
+            if ( ctx != null && ctx.getAttachment() instanceof NettyResponseFuture<?> )
+            {
+                ( (NettyResponseFuture<?>) ctx.getAttachment() ).abort( cause );
+            }
+        }
+        throttle.close( cause );
+
+        super.close();
+    }
+
+    /**
+     * Fails the specified request and closes its connection, which is in an unknown state.
+     */
+    void abort( NettyResponseFuture<?> future, Throwable cause )
+    {
+        Channel channel = findChannel( future );
+        future.abort( cause );
+        if ( channel != null )
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Gets the channel the specified request is currently using.
+     *
+     * @return The channel or {@code null} if the request isn't associated with a channel (yet).
+     */
+    Channel findChannel( NettyResponseFuture<?> future )
+    {
+        for ( Channel c : connections.getChannels() )
+        {
+            ChannelHandlerContext ctx = c.getPipeline().getContext( this );
+            if ( ctx != null && ctx.getAttachment() == future )
+            {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the withheld body of the specified request to its channel.
+     */
+    void writeBody( Channel channel, NettyResponseFuture<?> future )
+    {
+        // same as the provider does when receiving the interim response
+        future.getAndSetWriteHeaders( false );
+        future.getAndSetWriteBody( true );
+        writeRequest( channel, config, future, future.getNettyRequest() );
+    }
+
+    /**
+     * Sends the body of a request which carries the header {@code Expect: 100-continue} if the server hasn't responded
+     * within the specified time, see {@link ContinueExpectations#expect(Future, long)}.
+     *
+     * @param future The pending response of the request, must not be {@code null}.
+     * @param timeout The time in milliseconds to wait for a response before the body is sent.
+     */
+    public void expectContinue( Future<?> future, final long timeout )
+    {
+        if ( future instanceof RequestThrottle.QueuedRequest<?> )
+        {
+            // the wait for the server starts once the request is actually sent
+            final RequestThrottle.QueuedRequest<?> request = (RequestThrottle.QueuedRequest<?>) future;
+            request.addDispatchListener( new Runnable()
+            {
+                public void run()
+                {
+                    expectations.expect( request.getDelegate(), timeout );
+                }
+            } );
+            return;
+        }
+        expectations.expect( future, timeout );
+    }
+
+    @Override
+    public void channelOpen( ChannelHandlerContext ctx, ChannelStateEvent e )
+        throws Exception
+    {
+        connections.opened( ctx.getChannel() );
+        if ( ctx.getPipeline().get( INFLATER ) != null )
+        {
+            ctx.getPipeline().addBefore( INFLATER, "continueBypass", expectations.newBypass() );
+        }
+        ChunkedWriteHandler writer = (ChunkedWriteHandler) ctx.getPipeline().get( CHUNKED_WRITER );
+        if ( writer != null )
+        {
+            ctx.getPipeline().addAfter( CHUNKED_WRITER, "bodyWriter", new BodyWriteHandler( writer ) );
+            ctx.getPipeline().addBefore( CHUNKED_WRITER, "rangeEncoding", new RangeEncodingHandler() );
+            ctx.getPipeline().addBefore( CHUNKED_WRITER, "redirectGuard", authenticator.newRedirectGuard() );
+        }
+        super.channelOpen( ctx, e );
+    }
+
+    @Override
+    public void messageReceived( ChannelHandlerContext ctx, MessageEvent e )
+        throws Exception
+    {
+        if ( e.getMessage() instanceof HttpResponse && ctx.getAttachment() instanceof NettyResponseFuture<?> )
+        {
+            NettyResponseFuture<?> future = (NettyResponseFuture<?>) ctx.getAttachment();
+            HttpResponse response = (HttpResponse) e.getMessage();
+
+            authenticator.responded( ctx, future, response );
+
+            if ( response.getStatus().getCode() != ContinueExpectations.CONTINUE )
+            {
+                connections.responded( ctx.getChannel(), response );
+            }
+
+            if ( !expectations.responded( future, response ) )
+            {
+                return;
+            }
+        }
+
+        monitor.received( ctx.getAttachment(), ctx.getChannel(), e.getMessage() );
+
+        if ( ctx.getAttachment() instanceof NettyResponseFuture<?> )
+        {
+            HttpRequest request = ( (NettyResponseFuture<?>) ctx.getAttachment() ).getNettyRequest();
+            if ( HttpMethod.CONNECT.equals( request.getMethod() ) )
+            {
+                // the tunnel gets upgraded to TLS while the response is processed
+                SharedSslEngineFactory.setTunnelPeer( request.getUri() );
+            }
+        }
+
+        CURRENT_CHANNEL.set( ctx.getChannel() );
+        try
+        {
+            super.messageReceived( ctx, e );
+        }
+        finally
+        {
+            CURRENT_CHANNEL.remove();
+            SharedSslEngineFactory.setPeer( null, -1 );
+        }
+    }
+
+    @Override
+    public void channelInterestChanged( ChannelHandlerContext ctx, ChannelStateEvent e )
+        throws Exception
+    {
+        monitor.interestChanged( ctx.getAttachment(), ctx.getChannel() );
+        super.channelInterestChanged( ctx, e );
+    }
+
+}
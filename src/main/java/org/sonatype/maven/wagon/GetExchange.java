@@ -10,11 +10,14 @@ package org.sonatype.maven.wagon;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PipedOutputStream;
+import java.util.Queue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.util.DateUtil;
 
 
@@ -31,19 +34,31 @@ class GetExchange
 
     private long lastModified;
 
-    private PipedErrorInputStream inputStream;
+    private FluentCaseInsensitiveStringsMap headers;
 
-    private PipedOutputStream outputStream;
+    private BodyPartInputStream inputStream;
 
     private Throwable error;
 
+    private volatile ListenableFuture<String> future;
+
+    private final Queue<GetExchange> race;
+
     public GetExchange( AsyncHttpClient httpClient )
-        throws IOException
+    {
+        this( httpClient, null );
+    }
+
+    /**
+     * @param race The queue to which the exchange adds itself once its response headers have been received or the
+     *            request failed, may be {@code null}. This allows to wait for the first of several exchanges.
+     */
+    public GetExchange( AsyncHttpClient httpClient, Queue<GetExchange> race )
     {
         this.httpClient = httpClient;
         this.latch = new CountDownLatch( 1 );
-        this.inputStream = new PipedErrorInputStream();
-        this.outputStream = new PipedOutputStream( inputStream );
+        this.inputStream = new BodyPartInputStream();
+        this.race = race;
     }
 
     public AsyncHttpClient getHttpClient()
@@ -51,15 +66,60 @@ class GetExchange
         return httpClient;
     }
 
-    public void await()
-        throws InterruptedException
+    public void setFuture( ListenableFuture<String> future )
+    {
+        this.future = future;
+    }
+
+    /**
+     * Waits until the response headers have been received or the request failed. The request is cancelled if the
+     * wait ends prematurely, which closes its connection.
+     * 
+     * @param timeout The maximum time in milliseconds to wait, non-positive to wait indefinitely.
+     * @throws IOException If no response has been received in time.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public void await( long timeout )
+        throws IOException, InterruptedException
+    {
+        try
+        {
+            if ( timeout <= 0 )
+            {
+                latch.await();
+            }
+            else if ( !latch.await( timeout, TimeUnit.MILLISECONDS ) )
+            {
+                cancel();
+                throw new IOException( "No response received within " + timeout + " ms" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels the request unless it has already completed.
+     */
+    public void cancel()
     {
-        latch.await();
+        ListenableFuture<String> future = this.future;
+        if ( future != null && !future.isDone() )
+        {
+            future.cancel( true );
+        }
     }
 
     public void start()
     {
         latch.countDown();
+        if ( race != null )
+        {
+            race.offer( this );
+        }
     }
 
     public int getStatusCode()
@@ -72,6 +132,16 @@ class GetExchange
         this.statusCode = statusCode;
     }
 
+    public FluentCaseInsensitiveStringsMap getHeaders()
+    {
+        return headers;
+    }
+
+    public void setHeaders( FluentCaseInsensitiveStringsMap headers )
+    {
+        this.headers = headers;
+    }
+
     public long getLastModified()
     {
         return lastModified;
@@ -83,18 +153,24 @@ class GetExchange
     }
 
     public void setLastModified( String lastModified )
+    {
+        this.lastModified = parseLastModified( lastModified, this.lastModified );
+    }
+
+    static long parseLastModified( String lastModified, long defaultValue )
     {
         if ( lastModified != null && lastModified.length() > 0 )
         {
             try
             {
-                this.lastModified = DateUtil.parseDate( lastModified ).getTime();
+                return DateUtil.parseDate( lastModified ).getTime();
             }
             catch ( DateUtil.DateParseException e )
             {
-                this.lastModified = -1;
+                return -1;
             }
         }
+        return defaultValue;
     }
 
     public void setContentLength( int contentLength )
@@ -103,21 +179,56 @@ class GetExchange
     }
 
     public void setContentLength( String contentLength )
+    {
+        this.contentLength = parseContentLength( contentLength );
+    }
+
+    static long parseContentLength( String contentLength )
     {
         if ( contentLength != null && contentLength.length() > 0 )
         {
             try
             {
-                this.contentLength = Long.parseLong( contentLength );
+                return Long.parseLong( contentLength );
             }
             catch ( NumberFormatException e )
             {
-                this.contentLength = -1;
+                return -1;
             }
         }
-        else
+        return -1;
+    }
+
+    /**
+     * Parses a {@code Content-Range} header of the form {@code bytes first-last/total}.
+     *
+     * @return The first and last byte position and the total length (or {@code -1} if unknown) or {@code null} if the
+     *         header is missing or malformed.
+     */
+    static long[] parseContentRange( String contentRange )
+    {
+        if ( contentRange == null || !contentRange.startsWith( "bytes " ) )
         {
-            this.contentLength = -1;
+            return null;
+        }
+
+        int dash = contentRange.indexOf( '-' );
+        int slash = contentRange.indexOf( '/' );
+        if ( dash < 0 || slash < dash )
+        {
+            return null;
+        }
+
+        try
+        {
+            long first = Long.parseLong( contentRange.substring( 6, dash ).trim() );
+            long last = Long.parseLong( contentRange.substring( dash + 1, slash ).trim() );
+            String total = contentRange.substring( slash + 1 ).trim();
+            return new long[] { first, last, "*".equals( total ) ? -1 : Long.parseLong( total ) };
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
         }
     }
 
@@ -131,9 +242,16 @@ class GetExchange
         return inputStream;
     }
 
-    public OutputStream getOutputStream()
+    public boolean append( HttpResponseBodyPart bodyPart )
+        throws IOException
+    {
+        return inputStream.append( bodyPart );
+    }
+
+    public void complete()
     {
-        return outputStream;
+        inputStream.complete();
+        start();
     }
 
     public void fail( Throwable error )
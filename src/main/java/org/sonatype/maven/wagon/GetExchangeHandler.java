@@ -8,7 +8,7 @@ package org.sonatype.maven.wagon;
  * http://www.eclipse.org/legal/epl-v10.html
  *******************************************************************************/
 
-import java.io.IOException;
+import java.net.HttpURLConnection;
 
 import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.FluentCaseInsensitiveStringsMap;
@@ -22,9 +22,15 @@ class GetExchangeHandler
 
     private GetExchange exchange;
 
-    public GetExchangeHandler( GetExchange exchange )
+    private final ValidatorStore validators;
+
+    private final String url;
+
+    public GetExchangeHandler( GetExchange exchange, ValidatorStore validators, String url )
     {
         this.exchange = exchange;
+        this.validators = validators;
+        this.url = url;
     }
 
     public AsyncHandler.STATE onStatusReceived( HttpResponseStatus responseStatus )
@@ -40,18 +46,42 @@ class GetExchangeHandler
     {
         FluentCaseInsensitiveStringsMap h = headers.getHeaders();
 
+        exchange.setHeaders( h );
+
         exchange.setLastModified( h.getFirstValue( "Last-Modified" ) );
         exchange.setContentLength( h.getFirstValue( "Content-Length" ) );
 
+        if ( exchange.getStatusCode() == HttpURLConnection.HTTP_OK )
+        {
+            updateValidators( h.getFirstValue( "ETag" ) );
+        }
+
         exchange.start();
 
         return STATE.CONTINUE;
     }
 
+    private void updateValidators( String entityTag )
+    {
+        ValidatorStore.Entry entry = validators.get( url );
+        if ( entry != null && entityTag != null && entityTag.equals( entry.getEntityTag() )
+            && entry.getLastModified() == exchange.getLastModified() )
+        {
+            // still the same entity, keep the checksum recorded by a previous download to a file
+            return;
+        }
+
+        validators.put( url, new ValidatorStore.Entry( entityTag, exchange.getLastModified(),
+                                                       exchange.getContentLength(), -1 ) );
+    }
+
     public AsyncHandler.STATE onBodyPartReceived( HttpResponseBodyPart bodyPart )
         throws Exception
     {
-        bodyPart.writeTo( exchange.getOutputStream() );
+        if ( !exchange.append( bodyPart ) )
+        {
+            return STATE.ABORT;
+        }
 
         return STATE.CONTINUE;
     }
@@ -61,8 +91,7 @@ class GetExchangeHandler
     {
         if ( exchange != null )
         {
-            exchange.getOutputStream().close();
-            exchange.start();
+            exchange.complete();
         }
 
         return "";
@@ -74,14 +103,6 @@ class GetExchangeHandler
         {
             exchange.fail( t );
             exchange.start();
-            try
-            {
-                exchange.getOutputStream().close();
-            }
-            catch ( IOException e )
-            {
-                // ignored
-            }
         }
     }
 
@@ -0,0 +1,222 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.ProxyServer;
+import com.ning.http.client.Realm;
+
+/**
+ * Shares HTTP clients among the wagons of the JVM. Maven connects and disconnects wagons all the time, sharing the
+ * clients retains their thread pools and pooled connections (including established TLS sessions) across those
+ * connections. Clients are shared by wagons with an equal configuration and are closed once they have been unused for
+ * the linger time given by the last wagon releasing them.
+ */
+class HttpClientRegistry
+{
+
+    private static class Holder
+    {
+
+        final String key;
+
+        final AsyncHttpClient client;
+
+        int references;
+
+        TimerTask closer;
+
+        Holder( String key, AsyncHttpClient client )
+        {
+            this.key = key;
+            this.client = client;
+        }
+
+    }
+
+    private static final HttpClientRegistry INSTANCE = new HttpClientRegistry();
+
+    private final Map<String, Holder> clients = new HashMap<String, Holder>();
+
+    private final Map<AsyncHttpClient, Holder> holders = new IdentityHashMap<AsyncHttpClient, Holder>();
+
+    private Timer timer;
+
+    public static HttpClientRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a client for the specified configuration, creating it if no client with an equal configuration is
+     * available.
+     *
+     * @param config The client configuration, must not be {@code null}.
+     * @return The client which must eventually be released via {@link #release(AsyncHttpClient, long)}, never
+     *         {@code null}.
+     */
+    public synchronized AsyncHttpClient acquire( AsyncHttpClientConfig config )
+    {
+        String key = getKey( config );
+
+        Holder holder = clients.get( key );
+        if ( holder == null || holder.client.isClosed() )
+        {
+            // NOTE: Explicitly specify provider to workaround class loading bug in ahc:1.4.0
+            AsyncHttpClient client = new AsyncHttpClient( new FlowControlNettyAsyncHttpProvider( config ), config );
+            holder = new Holder( key, client );
+            clients.put( key, holder );
+            holders.put( client, holder );
+        }
+        else if ( holder.closer != null )
+        {
+            holder.closer.cancel();
+            holder.closer = null;
+        }
+
+        holder.references++;
+
+        return holder.client;
+    }
+
+    /**
+     * Releases a client obtained from {@link #acquire(AsyncHttpClientConfig)}.
+     *
+     * @param client The client to release, must not be {@code null}.
+     * @param linger The time in milliseconds to keep the client open for reuse once it is no longer used by any wagon.
+     */
+    public void release( AsyncHttpClient client, long linger )
+    {
+        final Holder holder;
+
+        synchronized ( this )
+        {
+            holder = holders.get( client );
+            if ( holder == null )
+            {
+                client.close();
+                return;
+            }
+            if ( --holder.references > 0 )
+            {
+                return;
+            }
+            if ( linger > 0 )
+            {
+                holder.closer = new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        close( holder, this );
+                    }
+                };
+                getTimer().schedule( holder.closer, linger );
+                return;
+            }
+            remove( holder );
+        }
+
+        holder.client.close();
+    }
+
+    void close( Holder holder, TimerTask closer )
+    {
+        synchronized ( this )
+        {
+            if ( holder.closer != closer )
+            {
+                // the client has been acquired again in the meantime
+                return;
+            }
+            remove( holder );
+        }
+
+        holder.client.close();
+    }
+
+    private void remove( Holder holder )
+    {
+        holder.closer = null;
+        holders.remove( holder.client );
+        if ( clients.get( holder.key ) == holder )
+        {
+            clients.remove( holder.key );
+        }
+    }
+
+    private Timer getTimer()
+    {
+        if ( timer == null )
+        {
+            // NOTE: a daemon thread must not keep the JVM from exiting just because of an idle client
+            timer = new Timer( "wagon-ahc-client-closer", true );
+        }
+        return timer;
+    }
+
+    /**
+     * Gets a key that is equal for configurations which yield clients with the same behavior.
+     */
+    static String getKey( AsyncHttpClientConfig config )
+    {
+        StringBuilder buffer = new StringBuilder( 256 );
+
+        buffer.append( config.getConnectionTimeoutInMs() ).append( ',' );
+        buffer.append( config.getRequestTimeoutInMs() ).append( ',' );
+        buffer.append( config.getIdleConnectionInPoolTimeoutInMs() ).append( ',' );
+        buffer.append( config.getMaxTotalConnections() ).append( ',' );
+        buffer.append( config.getMaxConnectionPerHost() ).append( ',' );
+        buffer.append( config.getAllowPoolingConnection() ).append( ',' );
+        buffer.append( config.isRedirectEnabled() ).append( ',' );
+        buffer.append( config.getMaxRedirects() ).append( ',' );
+        buffer.append( config.isCompressionEnabled() ).append( ',' );
+        buffer.append( config.getUserAgent() ).append( ',' );
+        // NOTE: the default engine factory is created on demand from the SSL context, the default verifier per builder
+        buffer.append( System.identityHashCode( config.getSSLContext() ) ).append( ',' );
+        buffer.append( config.getHostnameVerifier() != null ? config.getHostnameVerifier().getClass().getName() : null );
+
+        if ( config.getSSLEngineFactory() instanceof SharedSslEngineFactory )
+        {
+            buffer.append( "\nssl:" ).append( ( (SharedSslEngineFactory) config.getSSLEngineFactory() ).getKey() );
+        }
+
+        if ( config.getAsyncHttpProviderConfig() instanceof NettyProviderConfig )
+        {
+            buffer.append( "\nprovider:" ).append( ( (NettyProviderConfig) config.getAsyncHttpProviderConfig() ).getKey() );
+        }
+
+        ProxyServer proxy = config.getProxyServer();
+        if ( proxy != null )
+        {
+            buffer.append( "\nproxy:" ).append( proxy.getProtocolAsString() ).append( ',' ).append( proxy.getHost() );
+            buffer.append( ',' ).append( proxy.getPort() ).append( ',' ).append( proxy.getPrincipal() );
+            buffer.append( ',' ).append( proxy.getPassword() ).append( ',' ).append( proxy.getEncoding() );
+            buffer.append( ',' ).append( proxy.getNtlmDomain() );
+        }
+
+        Realm realm = config.getRealm();
+        if ( realm != null )
+        {
+            buffer.append( "\nrealm:" ).append( realm.getPrincipal() ).append( ',' ).append( realm.getPassword() );
+            buffer.append( ',' ).append( realm.getEncoding() ).append( ',' ).append( realm.getUsePreemptiveAuth() );
+            buffer.append( ',' ).append( realm.getAuthScheme() );
+        }
+
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+/**
+ * Records the distribution of recent response times in logarithmic buckets, four per doubling of the time, which keeps
+ * the relative error of a percentile below 20% at constant memory. The counts are halved whenever another window of
+ * samples has been added so that old samples fade out and the percentiles follow changes in the server's behavior.
+ */
+class LatencyHistogram
+{
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+
+    private static final int BUCKETS = 18 * BUCKETS_PER_DOUBLING;
+
+    private static final int MIN_SAMPLES = 20;
+
+    private static final int WINDOW = 256;
+
+    private final double[] counts = new double[BUCKETS];
+
+    private double total;
+
+    private int samples;
+
+    private int added;
+
+    /**
+     * Records the specified response time.
+     *
+     * @param latency The response time in milliseconds.
+     */
+    public synchronized void add( long latency )
+    {
+        counts[getBucket( latency )]++;
+        total++;
+        samples++;
+
+        if ( ++added >= WINDOW )
+        {
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                counts[i] /= 2;
+            }
+            total /= 2;
+            added = 0;
+        }
+    }
+
+    /**
+     * Gets the response time below which the specified percentage of the recent responses arrived.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The response time in milliseconds or {@code -1} if too few responses have been recorded yet.
+     */
+    public synchronized long getPercentile( double percentile )
+    {
+        if ( samples < MIN_SAMPLES )
+        {
+            return -1;
+        }
+
+        double threshold = total * Math.min( Math.max( percentile, 0 ), 100 ) / 100;
+        double sum = 0;
+        for ( int i = 0; i < BUCKETS - 1; i++ )
+        {
+            sum += counts[i];
+            if ( sum >= threshold )
+            {
+                return getUpperBound( i );
+            }
+        }
+        return getUpperBound( BUCKETS - 1 );
+    }
+
+    static int getBucket( long latency )
+    {
+        if ( latency <= 1 )
+        {
+            return 0;
+        }
+        int bucket = (int) Math.ceil( Math.log( latency ) / Math.log( 2 ) * BUCKETS_PER_DOUBLING );
+        return Math.min( bucket, BUCKETS - 1 );
+    }
+
+    static long getUpperBound( int bucket )
+    {
+        return (long) Math.floor( Math.pow( 2, bucket / (double) BUCKETS_PER_DOUBLING ) );
+    }
+
+}
@@ -0,0 +1,262 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the bodies of small resources in memory for a short while, shared by all wagons of the JVM. This spares the
+ * round trips for resources like {@code maven-metadata.xml} that get requested over and over by the modules of a
+ * reactor build. Once the total size of the cached bodies exceeds the configured limit, the least recently used entries
+ * are evicted. Responses to authenticated requests are kept per set of credentials, see
+ * {@link #getKey(String, String, String)}.
+ */
+class MemoryCache
+{
+
+    /**
+     * A cached response.
+     */
+    static class Entry
+    {
+
+        private final byte[] content;
+
+        private final long lastModified;
+
+        private final long expires;
+
+        Entry( byte[] content, long lastModified, long expires )
+        {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        public byte[] getContent()
+        {
+            return content;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+    }
+
+    /**
+     * Collects the body of a response and adds it to the cache unless it exceeds the size limit for entries.
+     */
+    class Writer
+        extends CacheWriter
+    {
+
+        private final String key;
+
+        private final long lastModified;
+
+        private final long ttl;
+
+        private final int maxEntrySize;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        Writer( String key, long lastModified, long ttl, int maxEntrySize )
+        {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.ttl = ttl;
+            this.maxEntrySize = maxEntrySize;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+            if ( buffer != null )
+            {
+                if ( buffer.size() + len > maxEntrySize )
+                {
+                    buffer = null;
+                }
+                else
+                {
+                    buffer.write( b, off, len );
+                }
+            }
+        }
+
+        @Override
+        public void commit()
+        {
+            if ( buffer != null )
+            {
+                put( key, new Entry( buffer.toByteArray(), lastModified, System.currentTimeMillis() + ttl ) );
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void abort()
+        {
+            buffer = null;
+        }
+
+    }
+
+    private static final MemoryCache INSTANCE = new MemoryCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>( 64, 0.75f, true );
+
+    private long size;
+
+    private long maxSize;
+
+    public static MemoryCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the key of a resource in the cache. As the cache is shared by all wagons, the key of a resource requested
+     * with credentials includes a digest of the user name and password so that protected resources neither leak to
+     * other users nor to the same user with a wrong password.
+     *
+     * @param url The URL of the resource, must not be {@code null}.
+     * @param username The user name sent with the request, may be {@code null} if none.
+     * @param password The password sent with the request, may be {@code null} if none.
+     * @return The key, never {@code null}.
+     */
+    public static String getKey( String url, String username, String password )
+    {
+        if ( username == null )
+        {
+            return url;
+        }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+            digest.update( username.getBytes( "UTF-8" ) );
+            digest.update( (byte) 0 );
+            if ( password != null )
+            {
+                digest.update( password.getBytes( "UTF-8" ) );
+            }
+
+            StringBuilder key = new StringBuilder( url.length() + 41 ).append( url ).append( '\n' );
+            for ( byte b : digest.digest() )
+            {
+                key.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) ).append( Character.forDigit( b & 0x0F, 16 ) );
+            }
+            return key.toString();
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Sets the maximum total size of the cached bodies. As the cache is shared, the last configured limit wins.
+     */
+    public synchronized void setMaxSize( long maxSize )
+    {
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /**
+     * Looks up an unexpired response.
+     *
+     * @return The cached response or {@code null} if none.
+     */
+    public synchronized Entry get( String key )
+    {
+        Entry entry = entries.get( key );
+        if ( entry != null && entry.expires <= System.currentTimeMillis() )
+        {
+            remove( key );
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * Begins to add a response to the cache.
+     *
+     * @param key The key of the response, must not be {@code null}.
+     * @param lastModified The last modification date of the resource.
+     * @param ttl The time in milliseconds the response may be served from the cache.
+     * @param maxEntrySize The maximum size of the body, larger bodies don't get cached.
+     * @return The writer to receive the body, never {@code null}.
+     */
+    public Writer newWriter( String key, long lastModified, long ttl, int maxEntrySize )
+    {
+        return new Writer( key, lastModified, ttl, maxEntrySize );
+    }
+
+    synchronized void put( String key, Entry entry )
+    {
+        remove( key );
+        entries.put( key, entry );
+        size += entry.content.length;
+        trim();
+    }
+
+    /**
+     * Forgets the response with the specified key.
+     */
+    public synchronized void remove( String key )
+    {
+        Entry entry = entries.remove( key );
+        if ( entry != null )
+        {
+            size -= entry.content.length;
+        }
+    }
+
+    /**
+     * Forgets the responses for the specified resource regardless of the credentials they were requested with, e.g.
+     * after the resource has been replaced.
+     */
+    public synchronized void removeAll( String url )
+    {
+        String prefix = url + '\n';
+        for ( Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<String, Entry> entry = it.next();
+            if ( entry.getKey().equals( url ) || entry.getKey().startsWith( prefix ) )
+            {
+                size -= entry.getValue().content.length;
+                it.remove();
+            }
+        }
+    }
+
+    private void trim()
+    {
+        for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext() && size > maxSize; )
+        {
+            size -= it.next().content.length;
+            it.remove();
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spreads the downloads from a repository over mirrors that serve the same content. Each request goes to the mirror
+ * with the best score, which combines the moving averages of its response time and its error rate. A mirror that
+ * fails a request is taken out of rotation until a health probe finds it working again, see
+ * {@link #getProbes(long)}. The times to the first response are also collected in a {@link LatencyHistogram} across
+ * all mirrors to tell a slow response from a usual one. The selectors are shared by all wagons of the JVM that access
+ * the same repository via the same mirrors.
+ */
+class MirrorSelector
+{
+
+    private static final Map<String, MirrorSelector> SELECTORS = new HashMap<String, MirrorSelector>();
+
+    private static final double WEIGHT = 0.2;
+
+    private static final double ERROR_PENALTY = 10;
+
+    private final List<Mirror> mirrors = new ArrayList<Mirror>();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private MirrorSelector()
+    {
+        // enforce use of factory method
+    }
+
+    /**
+     * Gets the selector for the specified repository.
+     *
+     * @param repositoryUrl The URL of the repository, must not be {@code null}.
+     * @param mirrorUrls The comma-separated base URLs of the mirrors of the repository, may be {@code null}.
+     * @return The selector, never {@code null}.
+     */
+    public static synchronized MirrorSelector getInstance( String repositoryUrl, String mirrorUrls )
+    {
+        String key = repositoryUrl + '\n' + mirrorUrls;
+        MirrorSelector selector = SELECTORS.get( key );
+        if ( selector == null )
+        {
+            Set<String> urls = new LinkedHashSet<String>();
+            urls.add( repositoryUrl );
+            if ( mirrorUrls != null )
+            {
+                for ( String url : mirrorUrls.split( "," ) )
+                {
+                    if ( url.trim().length() > 0 )
+                    {
+                        urls.add( url.trim() );
+                    }
+                }
+            }
+
+            selector = new MirrorSelector();
+            for ( String url : urls )
+            {
+                selector.mirrors.add( selector.new Mirror( url ) );
+            }
+            SELECTORS.put( key, selector );
+        }
+        return selector;
+    }
+
+    /**
+     * Starts the selection of mirrors for a new request.
+     */
+    public Route newRoute()
+    {
+        return new Route();
+    }
+
+    /**
+     * Gets the time to the first response below which the specified percentage of recent requests got theirs.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The time in milliseconds or {@code -1} if too few requests have been observed yet.
+     */
+    public long getLatency( double percentile )
+    {
+        return latencies.getPercentile( percentile );
+    }
+
+    /**
+     * Gets the mirrors that are out of rotation and due for a health probe. The caller is expected to report the
+     * outcome of each probe via {@link Mirror#probed(boolean)}.
+     *
+     * @param interval The time in milliseconds between two probes of the same mirror.
+     * @return The mirrors to probe, never {@code null}.
+     */
+    public synchronized List<Mirror> getProbes( long interval )
+    {
+        List<Mirror> probes = new ArrayList<Mirror>();
+        if ( mirrors.size() > 1 )
+        {
+            long now = System.currentTimeMillis();
+            for ( Mirror mirror : mirrors )
+            {
+                if ( mirror.down && !mirror.probing && now - mirror.checked >= interval )
+                {
+                    mirror.probing = true;
+                    mirror.checked = now;
+                    probes.add( mirror );
+                }
+            }
+        }
+        return probes;
+    }
+
+    synchronized Mirror select( Set<Mirror> excluded )
+    {
+        Mirror best = null;
+        for ( Mirror mirror : mirrors )
+        {
+            if ( excluded.contains( mirror ) )
+            {
+                continue;
+            }
+            if ( best == null || ( best.down && !mirror.down )
+                || ( best.down == mirror.down && mirror.getScore() < best.getScore() ) )
+            {
+                best = mirror;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A base URL that serves the content of the repository.
+     */
+    class Mirror
+    {
+
+        private final String url;
+
+        private double latency;
+
+        private int samples;
+
+        private double errorRate;
+
+        private boolean down;
+
+        private boolean probing;
+
+        private long checked;
+
+        Mirror( String url )
+        {
+            this.url = url;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        double getScore()
+        {
+            // an unproven mirror scores best so that it gets a chance to establish its latency
+            return ( ( samples > 0 ) ? latency + 1 : 0 ) * ( 1 + errorRate * ERROR_PENALTY ) + errorRate;
+        }
+
+        void succeeded( long latency )
+        {
+            synchronized ( MirrorSelector.this )
+            {
+                down = false;
+                errorRate -= errorRate * WEIGHT;
+                if ( latency >= 0 )
+                {
+                    this.latency = ( samples <= 0 ) ? latency : this.latency + ( latency - this.latency ) * WEIGHT;
+                    samples++;
+                    latencies.add( latency );
+                }
+            }
+        }
+
+        void failed()
+        {
+            synchronized ( MirrorSelector.this )
+            {
+                errorRate += ( 1 - errorRate ) * WEIGHT;
+                if ( !down )
+                {
+                    down = true;
+                    checked = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Records the outcome of a health probe, bringing the mirror back into rotation if it has recovered.
+         */
+        public void probed( boolean healthy )
+        {
+            synchronized ( MirrorSelector.this )
+            {
+                probing = false;
+                if ( healthy )
+                {
+                    down = false;
+                }
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return url;
+        }
+
+    }
+
+    /**
+     * Tracks the mirrors tried by a single request.
+     */
+    class Route
+    {
+
+        private final Set<Mirror> tried = new HashSet<Mirror>();
+
+        private Mirror current;
+
+        private long sent;
+
+        private Mirror hedge;
+
+        private long hedgeSent;
+
+        /**
+         * Selects the mirror for the next attempt of the request. Mirrors that already failed the request are only
+         * tried again once all mirrors have been tried.
+         *
+         * @return The mirror, never {@code null}.
+         */
+        public Mirror next()
+        {
+            current = select( tried );
+            if ( current == null )
+            {
+                tried.clear();
+                current = select( tried );
+            }
+            sent = System.currentTimeMillis();
+            return current;
+        }
+
+        /**
+         * Selects the mirror for a second copy of the current attempt, which is the best mirror not yet tried or, in
+         * lack of such, the mirror of the current attempt.
+         *
+         * @return The mirror, never {@code null}.
+         */
+        public Mirror hedge()
+        {
+            Set<Mirror> excluded = new HashSet<Mirror>( tried );
+            excluded.add( current );
+            hedge = select( excluded );
+            if ( hedge == null )
+            {
+                hedge = current;
+            }
+            hedgeSent = System.currentTimeMillis();
+            return hedge;
+        }
+
+        /**
+         * Records that the second copy of the current attempt got the first response, making it the current attempt.
+         */
+        public void hedgeWon()
+        {
+            current = hedge;
+            sent = hedgeSent;
+        }
+
+        /**
+         * Records the success of the current attempt.
+         *
+         * @param timed Whether the time since the attempt was sent tells the response time of the mirror, i.e. only
+         *            the response headers have been received by now.
+         */
+        public void succeeded( boolean timed )
+        {
+            current.succeeded( timed ? System.currentTimeMillis() - sent : -1 );
+        }
+
+        /**
+         * Records the failure of the current attempt.
+         *
+         * @return {@code true} if another mirror is available to take over the request, {@code false} otherwise.
+         */
+        public boolean failover()
+        {
+            current.failed();
+            tried.add( current );
+            return select( tried ) != null;
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
+
+/**
+ * Carries the settings of {@link FlowControlNettyAsyncHttpProvider} that the client configuration has no notion of.
+ */
+class NettyProviderConfig
+    extends NettyAsyncHttpProviderConfig
+{
+
+    private int maxConnectionsTotal = -1;
+
+    private long maxConnectionLifetime = -1;
+
+    private long transferTimeout = -1;
+
+    private long minThroughput = -1;
+
+    private long minThroughputPeriod = 10 * 1000;
+
+    private int adaptiveMaxConcurrency = -1;
+
+    private double latencyTolerance = -1;
+
+    private long maxRetryAfter = -1;
+
+    public int getMaxConnectionsTotal()
+    {
+        return maxConnectionsTotal;
+    }
+
+    /**
+     * @param maxConnectionsTotal The maximum number of concurrent requests across all hosts, non-positive for no limit.
+     */
+    public NettyProviderConfig setMaxConnectionsTotal( int maxConnectionsTotal )
+    {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+        return this;
+    }
+
+    public long getMaxConnectionLifetime()
+    {
+        return maxConnectionLifetime;
+    }
+
+    /**
+     * @param maxConnectionLifetime The time in milliseconds after which a connection is no longer reused, non-positive
+     *            to reuse connections for as long as the server keeps them open.
+     */
+    public NettyProviderConfig setMaxConnectionLifetime( long maxConnectionLifetime )
+    {
+        this.maxConnectionLifetime = maxConnectionLifetime;
+        return this;
+    }
+
+    public long getTransferTimeout()
+    {
+        return transferTimeout;
+    }
+
+    /**
+     * @param transferTimeout The maximum time in milliseconds a request including its response body may take,
+     *            non-positive for no limit.
+     */
+    public NettyProviderConfig setTransferTimeout( long transferTimeout )
+    {
+        this.transferTimeout = transferTimeout;
+        return this;
+    }
+
+    public long getMinThroughput()
+    {
+        return minThroughput;
+    }
+
+    /**
+     * @param minThroughput The minimum number of bytes per second a response needs to deliver, non-positive for no
+     *            limit.
+     */
+    public NettyProviderConfig setMinThroughput( long minThroughput )
+    {
+        this.minThroughput = minThroughput;
+        return this;
+    }
+
+    public long getMinThroughputPeriod()
+    {
+        return minThroughputPeriod;
+    }
+
+    /**
+     * @param minThroughputPeriod The period in milliseconds over which the throughput of a response is measured.
+     */
+    public NettyProviderConfig setMinThroughputPeriod( long minThroughputPeriod )
+    {
+        this.minThroughputPeriod = Math.max( minThroughputPeriod, 1 );
+        return this;
+    }
+
+    public int getAdaptiveMaxConcurrency()
+    {
+        return adaptiveMaxConcurrency;
+    }
+
+    /**
+     * @param adaptiveMaxConcurrency The maximum number of concurrent requests per host which is adapted to the load
+     *            of the server, non-positive to not adapt the concurrency.
+     */
+    public NettyProviderConfig setAdaptiveMaxConcurrency( int adaptiveMaxConcurrency )
+    {
+        this.adaptiveMaxConcurrency = adaptiveMaxConcurrency;
+        return this;
+    }
+
+    public double getLatencyTolerance()
+    {
+        return latencyTolerance;
+    }
+
+    /**
+     * @param latencyTolerance The factor by which the response time of a server may exceed its average before the
+     *            adaptive concurrency gets reduced, non-positive to ignore response times.
+     */
+    public NettyProviderConfig setLatencyTolerance( double latencyTolerance )
+    {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    public long getMaxRetryAfter()
+    {
+        return maxRetryAfter;
+    }
+
+    /**
+     * @param maxRetryAfter The maximum time in milliseconds to hold back requests to a server that responded with
+     *            {@code Retry-After}, non-positive to ignore the header.
+     */
+    public NettyProviderConfig setMaxRetryAfter( long maxRetryAfter )
+    {
+        this.maxRetryAfter = maxRetryAfter;
+        return this;
+    }
+
+    /**
+     * Gets a key that is equal for configurations which yield providers with the same behavior.
+     */
+    public String getKey()
+    {
+        return maxConnectionsTotal + "," + maxConnectionLifetime + "," + transferTimeout + "," + minThroughput + ","
+            + minThroughputPeriod + "," + adaptiveMaxConcurrency + "," + latencyTolerance + "," + maxRetryAfter;
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the resources of a repository that recently turned out to be missing. Maven looks for artifacts in all
+ * configured repositories, remembering the misses spares the round trips to those repositories that lack the artifact.
+ * The caches are shared by all wagons of the JVM that access the same repository.
+ */
+class NotFoundCache
+{
+
+    private static final Map<String, NotFoundCache> CACHES = new HashMap<String, NotFoundCache>();
+
+    private final Map<String, Long> misses = new LinkedHashMap<String, Long>( 64, 0.75f, true );
+
+    private int maxEntries;
+
+    private NotFoundCache()
+    {
+        // enforce use of factory method
+    }
+
+    /**
+     * Gets the cache for the specified repository.
+     *
+     * @param repositoryUrl The URL of the repository, must not be {@code null}.
+     * @param maxEntries The maximum number of resources to remember, the least recently used ones are forgotten beyond.
+     * @return The cache, never {@code null}.
+     */
+    public static synchronized NotFoundCache getInstance( String repositoryUrl, int maxEntries )
+    {
+        NotFoundCache cache = CACHES.get( repositoryUrl );
+        if ( cache == null )
+        {
+            cache = new NotFoundCache();
+            CACHES.put( repositoryUrl, cache );
+        }
+        cache.setMaxEntries( maxEntries );
+        return cache;
+    }
+
+    private synchronized void setMaxEntries( int maxEntries )
+    {
+        this.maxEntries = maxEntries;
+        trim();
+    }
+
+    /**
+     * Indicates whether the specified resource is known to be missing.
+     */
+    public synchronized boolean isMissing( String url )
+    {
+        Long expires = misses.get( url );
+        if ( expires == null )
+        {
+            return false;
+        }
+        if ( expires.longValue() <= System.currentTimeMillis() )
+        {
+            misses.remove( url );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the specified resource as missing.
+     *
+     * @param url The URL of the resource, must not be {@code null}.
+     * @param ttl The time in milliseconds to remember the miss.
+     */
+    public synchronized void addMissing( String url, long ttl )
+    {
+        misses.put( url, Long.valueOf( System.currentTimeMillis() + ttl ) );
+        trim();
+    }
+
+    /**
+     * Forgets about the specified resource, e.g. after it has been deployed.
+     */
+    public synchronized void remove( String url )
+    {
+        misses.remove( url );
+    }
+
+    private void trim()
+    {
+        for ( int n = misses.size() - maxEntries; n > 0; n-- )
+        {
+            misses.remove( misses.keySet().iterator().next() );
+        }
+    }
+
+}
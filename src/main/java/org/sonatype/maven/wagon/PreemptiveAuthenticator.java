@@ -0,0 +1,192 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import com.ning.http.client.Realm;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+import com.ning.http.client.providers.netty.NettyResponseFuture;
+
+/**
+ * Authenticates requests to servers that have challenged for credentials before right away, saving the round trip for
+ * the challenge. The challenges and authentication info sent by the servers are recorded in the {@link AuthCache}.
+ * The provider carries the headers of a request over to the requests following its redirects, so credentials are
+ * withheld from the origins a redirect leads to unless those challenge for them.
+ */
+class PreemptiveAuthenticator
+{
+
+    private static final String AUTHORIZATION = "Authorization";
+
+    private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+
+    private static final String AUTHENTICATION_INFO = "Authentication-Info";
+
+    private static final int UNAUTHORIZED = 401;
+
+    private final ChannelHandler provider;
+
+    private final Realm realm;
+
+    private final Map<NettyResponseFuture<?>, Set<String>> origins =
+        new WeakHashMap<NettyResponseFuture<?>, Set<String>>();
+
+    /**
+     * @param provider The provider whose channel context holds the pending response of a channel, must not be
+     *            {@code null}.
+     * @param realm The realm to use for requests without their own, may be {@code null}.
+     */
+    public PreemptiveAuthenticator( ChannelHandler provider, Realm realm )
+    {
+        this.provider = provider;
+        this.realm = realm;
+    }
+
+    /**
+     * Adds the cached credentials for the server to the specified request unless it already carries credentials or
+     * authenticates preemptively on its own.
+     *
+     * @return The request to send, never {@code null}.
+     */
+    public Request authenticate( Request request, URI uri )
+    {
+        Realm realm = request.getRealm() != null ? request.getRealm() : this.realm;
+        if ( realm != null && realm.getPrincipal() != null && !realm.getUsePreemptiveAuth()
+            && request.getHeaders().getFirstValue( AUTHORIZATION ) == null )
+        {
+            String authorization = AuthCache.getInstance().getAuthorization( request.getMethod(), uri, realm );
+            if ( authorization != null )
+            {
+                return new RequestBuilder( request ).setHeader( AUTHORIZATION, authorization ).build();
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Records the challenges or the authentication info of the specified response.
+     */
+    public void responded( ChannelHandlerContext ctx, NettyResponseFuture<?> future, HttpResponse response )
+    {
+        if ( response.getStatus().getCode() == UNAUTHORIZED )
+        {
+            List<String> challenges = response.getHeaders( WWW_AUTHENTICATE );
+            if ( !challenges.isEmpty() )
+            {
+                URI uri = getUri( ctx, future.getNettyRequest() );
+                AuthCache.getInstance().challenged( uri, challenges );
+                trust( future, UrlUtils.getOrigin( uri ) );
+            }
+        }
+        else if ( response.containsHeader( AUTHENTICATION_INFO ) )
+        {
+            String info = response.getHeader( AUTHENTICATION_INFO );
+            AuthCache.getInstance().authenticated( getUri( ctx, future.getNettyRequest() ), info );
+        }
+    }
+
+    /**
+     * Creates a handler that strips the credentials from the requests of a channel that follow a redirect to another
+     * origin.
+     */
+    public ChannelHandler newRedirectGuard()
+    {
+        return new RedirectGuard();
+    }
+
+    /**
+     * Records that the specified origin has challenged the specified exchange and may receive its credentials.
+     */
+    private void trust( NettyResponseFuture<?> future, String origin )
+    {
+        synchronized ( origins )
+        {
+            Set<String> trusted = origins.get( future );
+            if ( trusted == null )
+            {
+                trusted = new HashSet<String>();
+                origins.put( future, trusted );
+            }
+            trusted.add( origin );
+        }
+    }
+
+    /**
+     * Indicates whether the specified origin may receive the credentials of the specified exchange, which is the case
+     * for the origin of its first request and the origins that challenged it.
+     */
+    private boolean isTrusted( NettyResponseFuture<?> future, String origin )
+    {
+        synchronized ( origins )
+        {
+            Set<String> trusted = origins.get( future );
+            if ( trusted == null )
+            {
+                trusted = new HashSet<String>();
+                trusted.add( origin );
+                origins.put( future, trusted );
+                return true;
+            }
+            return trusted.contains( origin );
+        }
+    }
+
+    private static URI getUri( ChannelHandlerContext ctx, HttpRequest request )
+    {
+        String uri = request.getUri();
+        if ( uri.startsWith( "/" ) )
+        {
+            // the request line only carries the absolute URI when going through a proxy
+            String scheme = ctx.getPipeline().get( SslHandler.class ) != null ? "https" : "http";
+            uri = scheme + "://" + request.getHeader( HttpHeaders.Names.HOST ) + uri;
+        }
+        return URI.create( uri );
+    }
+
+    class RedirectGuard
+        extends SimpleChannelDownstreamHandler
+    {
+
+        @Override
+        public void writeRequested( ChannelHandlerContext ctx, MessageEvent e )
+            throws Exception
+        {
+            if ( e.getMessage() instanceof HttpRequest )
+            {
+                HttpRequest request = (HttpRequest) e.getMessage();
+                Object attachment = ctx.getPipeline().getContext( provider ).getAttachment();
+                if ( attachment instanceof NettyResponseFuture<?> && !HttpMethod.CONNECT.equals( request.getMethod() )
+                    && !isTrusted( (NettyResponseFuture<?>) attachment, UrlUtils.getOrigin( getUri( ctx, request ) ) ) )
+                {
+                    request.removeHeader( AUTHORIZATION );
+                }
+            }
+            super.writeRequested( ctx, e );
+        }
+
+    }
+
+}
@@ -8,28 +8,35 @@ package org.sonatype.maven.wagon;
  * http://www.eclipse.org/legal/epl-v10.html
  *******************************************************************************/
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
-import com.ning.http.client.Request;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Response;
 
-public class PutOutputStream
-    extends ByteArrayOutputStream
+/**
+ * Collects the body of a PUT request that is written by {@link org.apache.maven.wagon.StreamWagon}. The request is
+ * completed by {@link #send()}.
+ */
+public abstract class PutOutputStream
+    extends OutputStream
 {
 
-    private final BoundRequestBuilder builder;
+    protected final BoundRequestBuilder builder;
 
     private final String url;
 
     private Response response;
 
-    public PutOutputStream( BoundRequestBuilder builder, String url, long size )
+    private FlowControlNettyAsyncHttpProvider provider;
+
+    private long continueTimeout;
+
+    protected PutOutputStream( BoundRequestBuilder builder, String url )
     {
-        super( Math.max( (int) size, 1024 * 4 ) );
         this.builder = builder;
         this.url = url;
     }
@@ -39,6 +46,30 @@ public class PutOutputStream
         return url;
     }
 
+    /**
+     * Makes the request ask the server whether it accepts the body before the body is sent, allowing the server to
+     * reject the request without receiving the body first.
+     *
+     * @param provider The provider issuing the request, must not be {@code null}.
+     * @param timeout The time in milliseconds to wait for the interim response before the body is sent anyway.
+     */
+    public void expectContinue( FlowControlNettyAsyncHttpProvider provider, long timeout )
+    {
+        builder.setHeader( "Expect", "100-continue" );
+        this.provider = provider;
+        this.continueTimeout = timeout;
+    }
+
+    @Override
+    public void write( int b )
+        throws IOException
+    {
+        write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    /**
+     * Completes the request and waits for the response of the server.
+     */
     public Response send()
         throws IOException
     {
@@ -47,18 +78,11 @@ public class PutOutputStream
             throw new IllegalStateException( "Request already sent" );
         }
 
-        builder.setBody( new Request.EntityWriter()
-        {
-            public void writeEntity( OutputStream out )
-                throws IOException
-            {
-                writeTo( out );
-            }
-        } );        
-                
+        Future<Response> future = execute();
+
         try
         {
-            response = builder.execute().get();
+            response = future.get();
             return response;
         }
         catch ( InterruptedException e )
@@ -71,4 +95,48 @@ public class PutOutputStream
         }
     }
 
+    /**
+     * Sends the completed request once more, e.g. after a transient failure.
+     *
+     * @throws IllegalStateException If the body can't be sent again.
+     */
+    public Response resend()
+        throws IOException
+    {
+        if ( !isReplayable() )
+        {
+            throw new IllegalStateException( "Request body cannot be sent again" );
+        }
+        response = null;
+        return send();
+    }
+
+    /**
+     * Indicates whether the body is still at hand after the request has been sent, allowing to {@link #resend()} it.
+     */
+    public boolean isReplayable()
+    {
+        return false;
+    }
+
+    /**
+     * Issues the request as configured by the builder.
+     */
+    protected ListenableFuture<Response> executeRequest()
+        throws IOException
+    {
+        ListenableFuture<Response> future = builder.execute();
+        if ( provider != null )
+        {
+            provider.expectContinue( future, continueTimeout );
+        }
+        return future;
+    }
+
+    /**
+     * Completes the body and gets the pending response.
+     */
+    protected abstract Future<Response> execute()
+        throws IOException;
+
 }
@@ -0,0 +1,41 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Asks for the unencoded entity when a request has a {@code Range} header. The offsets of a range refer to the
+ * entity as sent by the server, so the bytes of a compressed response would not line up with the file they are written
+ * to once decompressed. The client itself always asks for compression, hence the header is rewritten here.
+ */
+class RangeEncodingHandler
+    extends SimpleChannelDownstreamHandler
+{
+
+    @Override
+    public void writeRequested( ChannelHandlerContext ctx, MessageEvent e )
+        throws Exception
+    {
+        if ( e.getMessage() instanceof HttpRequest )
+        {
+            HttpRequest request = (HttpRequest) e.getMessage();
+            if ( request.containsHeader( HttpHeaders.Names.RANGE ) )
+            {
+                request.setHeader( HttpHeaders.Names.ACCEPT_ENCODING, HttpHeaders.Values.IDENTITY );
+            }
+        }
+        super.writeRequested( ctx, e );
+    }
+
+}
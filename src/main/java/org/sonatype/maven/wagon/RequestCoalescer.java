@@ -0,0 +1,397 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets concurrent requests for the same resource share a single transfer, shared by all wagons of the JVM. Parallel
+ * builds often fetch the same POM or JAR at the same moment, the first wagon issues the request while the others join
+ * its transfer and read the body as it arrives. Bodies beyond {@link #MAX_BUFFER_SIZE} are buffered in a temporary file
+ * rather than in memory.
+ */
+class RequestCoalescer
+{
+
+    /**
+     * A request in flight. The issuing wagon reports the response via {@link #start(int, long, long)} and
+     * {@link #getWriter()}, the joining wagons wait for it via {@link #await()}.
+     */
+    class Transfer
+    {
+
+        private final String key;
+
+        private int statusCode = -1;
+
+        private long lastModified;
+
+        private long contentLength = -1;
+
+        private byte[] buffer = new byte[1024];
+
+        private File file;
+
+        private RandomAccessFile raf;
+
+        private long length;
+
+        private boolean completed;
+
+        private boolean ended;
+
+        private int references = 1;
+
+        Transfer( String key )
+        {
+            this.key = key;
+        }
+
+        /**
+         * Publishes the status of the response, joined wagons can start to read the body from now on.
+         */
+        public synchronized void start( int statusCode, long lastModified, long contentLength )
+        {
+            if ( !ended )
+            {
+                this.statusCode = statusCode;
+                this.lastModified = lastModified;
+                this.contentLength = contentLength;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Publishes the status of a response without body, e.g. of a HEAD request or an error.
+         */
+        public void complete( int statusCode )
+        {
+            start( statusCode, 0, 0 );
+            complete();
+        }
+
+        /**
+         * Gets the writer to receive the body of the response. Committing the writer completes the transfer, aborting
+         * it fails the transfer for all joined wagons.
+         */
+        public CacheWriter getWriter()
+        {
+            return new CacheWriter()
+            {
+
+                @Override
+                public void write( byte[] b, int off, int len )
+                    throws IOException
+                {
+                    append( b, off, len );
+                }
+
+                @Override
+                public void commit()
+                {
+                    complete();
+                }
+
+                @Override
+                public void abort()
+                {
+                    end();
+                }
+
+            };
+        }
+
+        private void complete()
+        {
+            synchronized ( this )
+            {
+                if ( !ended )
+                {
+                    completed = true;
+                    notifyAll();
+                }
+            }
+            end();
+        }
+
+        /**
+         * Ends the transfer on behalf of the issuing wagon, which no longer accepts new wagons to join. Unless the
+         * transfer has been completed, it is considered failed.
+         */
+        public void end()
+        {
+            synchronized ( this )
+            {
+                if ( ended )
+                {
+                    return;
+                }
+                ended = true;
+                notifyAll();
+            }
+            remove( this );
+            release();
+        }
+
+        /**
+         * Waits for the status of the response.
+         *
+         * @return The status code or {@code -1} if the transfer failed and the joined wagon needs to issue its own
+         *         request.
+         */
+        public synchronized int await()
+            throws InterruptedException
+        {
+            while ( statusCode < 0 && !ended )
+            {
+                wait();
+            }
+            return ( ended && !completed ) ? -1 : statusCode;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        public long getContentLength()
+        {
+            return contentLength;
+        }
+
+        /**
+         * Opens a stream to read the body while it is received. The stream takes over the reference to the transfer
+         * obtained by {@link RequestCoalescer#join(String)}, i.e. closing the stream releases the transfer.
+         */
+        public InputStream newInputStream()
+        {
+            return new Reader();
+        }
+
+        synchronized void retain()
+        {
+            references++;
+        }
+
+        /**
+         * Releases a reference obtained by {@link RequestCoalescer#join(String)}.
+         */
+        public synchronized void release()
+        {
+            if ( --references > 0 )
+            {
+                return;
+            }
+
+            buffer = null;
+            if ( raf != null )
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignored
+                }
+                raf = null;
+            }
+            if ( file != null && !file.delete() )
+            {
+                file.deleteOnExit();
+            }
+        }
+
+        synchronized void append( byte[] b, int off, int len )
+            throws IOException
+        {
+            if ( ended )
+            {
+                throw new IOException( "Transfer has already ended" );
+            }
+
+            if ( raf == null && length + len > MAX_BUFFER_SIZE )
+            {
+                file = File.createTempFile( "wagon-ahc-", ".tmp" );
+                raf = new RandomAccessFile( file, "rw" );
+                raf.write( buffer, 0, (int) length );
+                buffer = null;
+            }
+
+            if ( raf != null )
+            {
+                raf.seek( length );
+                raf.write( b, off, len );
+            }
+            else
+            {
+                if ( length + len > buffer.length )
+                {
+                    byte[] bytes = new byte[(int) Math.max( buffer.length * 2, length + len )];
+                    System.arraycopy( buffer, 0, bytes, 0, (int) length );
+                    buffer = bytes;
+                }
+                System.arraycopy( b, off, buffer, (int) length, len );
+            }
+
+            length += len;
+            notifyAll();
+        }
+
+        synchronized int read( long position, byte[] b, int off, int len )
+            throws IOException
+        {
+            while ( position >= length && !ended )
+            {
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw (IOException) new InterruptedIOException( "Transfer was aborted by client" ).initCause( e );
+                }
+            }
+
+            if ( !completed && ended )
+            {
+                throw new IOException( "Shared transfer of " + key + " failed" );
+            }
+            if ( position >= length )
+            {
+                return -1;
+            }
+
+            int n = (int) Math.min( len, length - position );
+            if ( raf != null )
+            {
+                raf.seek( position );
+                raf.readFully( b, off, n );
+            }
+            else
+            {
+                System.arraycopy( buffer, (int) position, b, off, n );
+            }
+            return n;
+        }
+
+        private class Reader
+            extends InputStream
+        {
+
+            private long position;
+
+            private boolean closed;
+
+            @Override
+            public int read()
+                throws IOException
+            {
+                byte[] b = new byte[1];
+                return ( read( b, 0, 1 ) < 0 ) ? -1 : ( b[0] & 0xFF );
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len )
+                throws IOException
+            {
+                if ( closed )
+                {
+                    throw new IOException( "Stream closed" );
+                }
+                if ( len <= 0 )
+                {
+                    return 0;
+                }
+
+                int read = Transfer.this.read( position, b, off, len );
+                if ( read > 0 )
+                {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close()
+            {
+                if ( !closed )
+                {
+                    closed = true;
+                    release();
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * The size in bytes up to which a body is buffered in memory.
+     */
+    static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private static final RequestCoalescer INSTANCE = new RequestCoalescer();
+
+    private final Map<String, Transfer> transfers = new HashMap<String, Transfer>();
+
+    public static RequestCoalescer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Joins the transfer that is in flight for the specified request.
+     *
+     * @param key The key of the request, must not be {@code null}.
+     * @return The transfer which must eventually be released or {@code null} if none.
+     */
+    public synchronized Transfer join( String key )
+    {
+        Transfer transfer = transfers.get( key );
+        if ( transfer != null )
+        {
+            transfer.retain();
+        }
+        return transfer;
+    }
+
+    /**
+     * Registers a new transfer for the specified request that other wagons can join.
+     *
+     * @param key The key of the request, must not be {@code null}.
+     * @return The transfer which must eventually be ended or {@code null} if another transfer is already in flight.
+     */
+    public synchronized Transfer create( String key )
+    {
+        if ( transfers.containsKey( key ) )
+        {
+            return null;
+        }
+
+        Transfer transfer = new Transfer( key );
+        transfers.put( key, transfer );
+        return transfer;
+    }
+
+    synchronized void remove( Transfer transfer )
+    {
+        if ( transfers.get( transfer.key ) == transfer )
+        {
+            transfers.remove( transfer.key );
+        }
+    }
+
+}
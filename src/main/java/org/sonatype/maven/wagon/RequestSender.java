@@ -0,0 +1,71 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+
+/**
+ * Sends the attempts of a request on behalf of the mirror failover, the retries and the hedging of the wagon and
+ * inspects their responses. This hides the kind of exchange, be it a {@link GetExchange} that streams the body of a
+ * download to the caller or the future of a buffered response.
+ */
+interface RequestSender<T>
+{
+
+    /**
+     * Sends the request as currently configured by the specified builder.
+     *
+     * @param race The queue to which the exchange adds itself once its response headers have been received or the
+     *            request failed, must not be {@code null}.
+     * @param optional Whether to send the request only if a connection is available right away.
+     * @return The exchange or {@code null} if the optional request wasn't sent.
+     * @throws IOException If the request failed to be sent.
+     */
+    T send( BoundRequestBuilder builder, BlockingQueue<T> race, boolean optional )
+        throws IOException;
+
+    /**
+     * Waits until the response to the specified exchange has been received.
+     *
+     * @throws IOException If no response has been received in time.
+     * @throws ExecutionException If the request failed.
+     */
+    void await( T exchange )
+        throws IOException, InterruptedException, ExecutionException;
+
+    /**
+     * Gets the status code of the response that has been received for the specified exchange.
+     */
+    int getStatusCode( T exchange )
+        throws InterruptedException, ExecutionException;
+
+    /**
+     * Indicates whether the specified exchange, which has already added itself to its race, got a response other
+     * than a server error.
+     */
+    boolean isUsable( T exchange )
+        throws InterruptedException;
+
+    /**
+     * Drops the response to the specified exchange, which is about to be retried.
+     */
+    void discard( T exchange )
+        throws IOException;
+
+    /**
+     * Cancels the specified exchange and drops its response, if any.
+     */
+    void cancel( T exchange )
+        throws IOException;
+
+}
@@ -0,0 +1,760 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.ListenableFuture;
+
+/**
+ * Admits the requests of a client subject to the limits of a {@link ConnectionLimiter} and an {@link AdaptiveLimiter}
+ * and reports their responses, including a {@code Retry-After}, back to the latter. Requests that aren't admitted
+ * right away are queued without blocking the caller and sent in order once a request to their host finishes or the
+ * {@code Retry-After} of their host has passed.
+ */
+class RequestThrottle
+{
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private final ConnectionLimiter limiter;
+
+    private final AdaptiveLimiter adaptiveLimiter;
+
+    private final long timeout;
+
+    private final ScheduledExecutorService reaper;
+
+    private final Executor executor;
+
+    private final LinkedList<QueuedRequest<?>> queue = new LinkedList<QueuedRequest<?>>();
+
+    private long wakeUp;
+
+    /**
+     * @param timeout The maximum time in milliseconds a request waits to be admitted, non-positive to wait
+     *            indefinitely.
+     * @param reaper The executor to time out queued requests and to end the hold of a {@code Retry-After}, must not be
+     *            {@code null}.
+     * @param executor The executor to send queued requests from once they are admitted, must not be {@code null}.
+     */
+    public RequestThrottle( ConnectionLimiter limiter, AdaptiveLimiter adaptiveLimiter, long timeout,
+                            ScheduledExecutorService reaper, Executor executor )
+    {
+        this.limiter = limiter;
+        this.adaptiveLimiter = adaptiveLimiter;
+        this.timeout = timeout;
+        this.reaper = reaper;
+        this.executor = executor;
+    }
+
+    /**
+     * Sends a request once it is admitted by both limiters, which keep it counted until it is done. A request that is
+     * admitted right away is sent from the calling thread, otherwise it is queued and the returned future stands in
+     * for its response until it is sent.
+     *
+     * @param origin The origin of the request, must not be {@code null}.
+     * @param dispatcher The callback sending the request, must not be {@code null}.
+     * @return The pending response of the request, never {@code null}.
+     * @throws IOException If the request was admitted right away but failed to be sent.
+     */
+    public <T> ListenableFuture<T> execute( String origin, Dispatcher<T> dispatcher )
+        throws IOException
+    {
+        final QueuedRequest<T> request = new QueuedRequest<T>( origin, dispatcher );
+        synchronized ( queue )
+        {
+            queue.add( request );
+        }
+        if ( drain( request ) )
+        {
+            return send( request );
+        }
+
+        if ( timeout > 0 )
+        {
+            request.timer = reaper.schedule( new Runnable()
+            {
+                public void run()
+                {
+                    request.expire();
+                }
+            }, timeout, TimeUnit.MILLISECONDS );
+        }
+        return request;
+    }
+
+    /**
+     * Sends the specified request if it is admitted by both limiters right now.
+     *
+     * @param origin The origin of the request, must not be {@code null}.
+     * @param dispatcher The callback sending the request, must not be {@code null}.
+     * @return The pending response of the request or {@code null} if the request wasn't admitted.
+     * @throws IOException If the request failed to be sent.
+     */
+    public <T> ListenableFuture<T> tryExecute( String origin, Dispatcher<T> dispatcher )
+        throws IOException
+    {
+        QueuedRequest<T> request = new QueuedRequest<T>( origin, dispatcher );
+        synchronized ( queue )
+        {
+            // queued requests to the same host go first
+            for ( QueuedRequest<?> queued : queue )
+            {
+                if ( queued.origin.equals( origin ) )
+                {
+                    return null;
+                }
+            }
+            if ( !request.admit() )
+            {
+                return null;
+            }
+        }
+        return send( request );
+    }
+
+    /**
+     * Admits the queued requests that fit into the limits now and sends them, except for the specified request which
+     * is left to the caller.
+     *
+     * @param caller The request of the caller, may be {@code null}.
+     * @return {@code true} if the request of the caller was admitted, {@code false} otherwise.
+     */
+    private boolean drain( QueuedRequest<?> caller )
+    {
+        boolean admitted = false;
+        List<QueuedRequest<?>> requests = new ArrayList<QueuedRequest<?>>();
+        synchronized ( queue )
+        {
+            long delay = 0;
+            for ( Iterator<QueuedRequest<?>> it = queue.iterator(); it.hasNext(); )
+            {
+                QueuedRequest<?> request = it.next();
+                if ( request.admit() )
+                {
+                    it.remove();
+                    if ( request == caller )
+                    {
+                        admitted = true;
+                    }
+                    else
+                    {
+                        requests.add( request );
+                    }
+                }
+                else
+                {
+                    long d = adaptiveLimiter.getDelay( request.origin );
+                    delay = ( d > 0 && ( delay <= 0 || d < delay ) ) ? d : delay;
+                }
+            }
+            if ( delay > 0 )
+            {
+                scheduleWakeUp( delay );
+            }
+        }
+
+        for ( final QueuedRequest<?> request : requests )
+        {
+            try
+            {
+                executor.execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        request.dispatch();
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                request.release();
+                request.fail( new IOException( "Client is closed" ) );
+            }
+        }
+
+        return admitted;
+    }
+
+    /**
+     * Drains the queue again once the earliest {@code Retry-After} among the queued requests has passed, in case no
+     * finishing request does so before.
+     */
+    private void scheduleWakeUp( long delay )
+    {
+        long time = System.currentTimeMillis() + delay;
+        if ( wakeUp > 0 && wakeUp <= time )
+        {
+            return;
+        }
+        wakeUp = time;
+        try
+        {
+            reaper.schedule( new Runnable()
+            {
+                public void run()
+                {
+                    synchronized ( queue )
+                    {
+                        wakeUp = 0;
+                    }
+                    drain( null );
+                }
+            }, delay, TimeUnit.MILLISECONDS );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // client is closed and fails the queued requests
+            wakeUp = 0;
+        }
+    }
+
+    private <T> ListenableFuture<T> send( QueuedRequest<T> request )
+        throws IOException
+    {
+        final AdaptiveLimiter.Permit permit = request.permit;
+        final Runnable release = request.release;
+        permit.issued();
+        try
+        {
+            ListenableFuture<T> future = request.dispatcher.dispatch( permit );
+            future.addListener( new Runnable()
+            {
+                public void run()
+                {
+                    release.run();
+                    permit.release();
+                    drain( null );
+                }
+            }, SameThreadExecutor.INSTANCE );
+            return future;
+        }
+        catch ( IOException e )
+        {
+            request.release();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            request.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Fails the requests that are still queued.
+     */
+    public void close( Throwable cause )
+    {
+        List<QueuedRequest<?>> requests;
+        synchronized ( queue )
+        {
+            requests = new ArrayList<QueuedRequest<?>>( queue );
+        }
+        for ( QueuedRequest<?> request : requests )
+        {
+            request.fail( cause );
+        }
+    }
+
+    public int getActiveRequests()
+    {
+        return limiter.getActiveRequests();
+    }
+
+    public int getWaitingRequests()
+    {
+        synchronized ( queue )
+        {
+            return queue.size();
+        }
+    }
+
+    public long getRequests()
+    {
+        return limiter.getRequests();
+    }
+
+    /**
+     * Sends a request once it has been admitted.
+     */
+    interface Dispatcher<T>
+    {
+
+        /**
+         * Sends the request.
+         *
+         * @param permit The permit of the request, to be handed to a {@link ResponseReporter} around the handler of
+         *            the request, never {@code null}.
+         */
+        ListenableFuture<T> dispatch( AdaptiveLimiter.Permit permit )
+            throws IOException;
+
+        /**
+         * Notifies the handler of a request that failed or was cancelled before it was sent.
+         */
+        void failed( Throwable cause );
+
+    }
+
+    /**
+     * Stands in for the response of a request while it waits to be admitted and delegates to the actual response
+     * once the request is sent.
+     */
+    class QueuedRequest<T>
+        implements ListenableFuture<T>
+    {
+
+        final String origin;
+
+        final Dispatcher<T> dispatcher;
+
+        volatile Future<?> timer;
+
+        AdaptiveLimiter.Permit permit;
+
+        Runnable release;
+
+        private ListenableFuture<T> delegate;
+
+        private Throwable failure;
+
+        private boolean cancelled;
+
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        private List<Runnable> dispatchListeners = new ArrayList<Runnable>();
+
+        QueuedRequest( String origin, Dispatcher<T> dispatcher )
+        {
+            this.origin = origin;
+            this.dispatcher = dispatcher;
+        }
+
+        /**
+         * Acquires the permits of both limiters if they admit the request now.
+         */
+        boolean admit()
+        {
+            permit = adaptiveLimiter.tryAcquire( origin );
+            if ( permit == null )
+            {
+                return false;
+            }
+            release = limiter.tryAcquire( origin );
+            if ( release == null )
+            {
+                permit.release();
+                permit = null;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gives back the permits of an admitted request that isn't going to be sent.
+         */
+        void release()
+        {
+            release.run();
+            permit.release();
+            drain( null );
+        }
+
+        void dispatch()
+        {
+            if ( timer != null )
+            {
+                timer.cancel( false );
+            }
+            synchronized ( this )
+            {
+                if ( failure != null || cancelled )
+                {
+                    release();
+                    return;
+                }
+            }
+
+            ListenableFuture<T> future;
+            try
+            {
+                future = send( this );
+            }
+            catch ( Throwable e )
+            {
+                fail( e );
+                return;
+            }
+
+            List<Runnable> listeners;
+            List<Runnable> dispatchListeners;
+            synchronized ( this )
+            {
+                if ( failure != null )
+                {
+                    // failed while being sent
+                    listeners = null;
+                    dispatchListeners = null;
+                }
+                else
+                {
+                    delegate = future;
+                    listeners = this.listeners;
+                    dispatchListeners = this.dispatchListeners;
+                    this.listeners = null;
+                    this.dispatchListeners = null;
+                    notifyAll();
+                }
+            }
+            if ( listeners == null )
+            {
+                future.cancel( true );
+                return;
+            }
+            for ( Runnable listener : dispatchListeners )
+            {
+                listener.run();
+            }
+            for ( Runnable listener : listeners )
+            {
+                future.addListener( listener, SameThreadExecutor.INSTANCE );
+            }
+        }
+
+        void expire()
+        {
+            synchronized ( queue )
+            {
+                if ( !queue.contains( this ) )
+                {
+                    return;
+                }
+            }
+            fail( new IOException( "Timed out waiting for a connection to " + origin + ", " + timeout
+                + " ms elapsed" ) );
+        }
+
+        boolean fail( Throwable cause )
+        {
+            if ( settle( cause, false ) )
+            {
+                dispatcher.failed( cause );
+                return true;
+            }
+            return false;
+        }
+
+        private boolean settle( Throwable cause, boolean cancel )
+        {
+            synchronized ( queue )
+            {
+                queue.remove( this );
+            }
+            if ( timer != null )
+            {
+                timer.cancel( false );
+            }
+
+            List<Runnable> listeners;
+            synchronized ( this )
+            {
+                if ( delegate != null || failure != null || cancelled )
+                {
+                    return false;
+                }
+                failure = cause;
+                cancelled = cancel;
+                listeners = this.listeners;
+                this.listeners = null;
+                this.dispatchListeners = null;
+                notifyAll();
+            }
+            for ( Runnable listener : listeners )
+            {
+                listener.run();
+            }
+            return true;
+        }
+
+        /**
+         * Registers a callback to invoke once the request is sent, right away if it has been sent already. The
+         * callback is not invoked if the request fails before it is sent.
+         */
+        public void addDispatchListener( Runnable listener )
+        {
+            synchronized ( this )
+            {
+                if ( delegate == null )
+                {
+                    if ( dispatchListeners != null )
+                    {
+                        dispatchListeners.add( listener );
+                    }
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Gets the pending response of the request once it has been sent.
+         *
+         * @return The pending response or {@code null} if the request hasn't been sent (yet).
+         */
+        public synchronized ListenableFuture<T> getDelegate()
+        {
+            return delegate;
+        }
+
+        public ListenableFuture<T> addListener( final Runnable listener, final Executor exec )
+        {
+            Runnable wrapper = new Runnable()
+            {
+                public void run()
+                {
+                    exec.execute( listener );
+                }
+            };
+            ListenableFuture<T> future;
+            synchronized ( this )
+            {
+                future = delegate;
+                if ( future == null && listeners != null )
+                {
+                    listeners.add( wrapper );
+                    return this;
+                }
+            }
+            if ( future != null )
+            {
+                future.addListener( listener, exec );
+            }
+            else
+            {
+                wrapper.run();
+            }
+            return this;
+        }
+
+        public boolean cancel( boolean mayInterruptIfRunning )
+        {
+            ListenableFuture<T> future = getDelegate();
+            if ( future != null )
+            {
+                return future.cancel( mayInterruptIfRunning );
+            }
+            if ( settle( new CancellationException(), true ) )
+            {
+                dispatcher.failed( new CancellationException() );
+                return true;
+            }
+            future = getDelegate();
+            return future != null && future.cancel( mayInterruptIfRunning );
+        }
+
+        public synchronized boolean isCancelled()
+        {
+            return ( delegate != null ) ? delegate.isCancelled() : cancelled;
+        }
+
+        public synchronized boolean isDone()
+        {
+            return ( delegate != null ) ? delegate.isDone() : failure != null;
+        }
+
+        public T get()
+            throws InterruptedException, ExecutionException
+        {
+            try
+            {
+                return awaitDispatch( false, 0 ).get();
+            }
+            catch ( TimeoutException e )
+            {
+                throw new IllegalStateException( e );
+            }
+        }
+
+        public T get( long timeout, TimeUnit unit )
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos( timeout );
+            ListenableFuture<T> future = awaitDispatch( true, deadline );
+            return future.get( Math.max( deadline - System.nanoTime(), 0 ), TimeUnit.NANOSECONDS );
+        }
+
+        private synchronized ListenableFuture<T> awaitDispatch( boolean timed, long deadline )
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            while ( delegate == null && failure == null )
+            {
+                if ( !timed )
+                {
+                    wait();
+                }
+                else
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if ( remaining <= 0 )
+                    {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait( this, remaining );
+                }
+            }
+            if ( delegate != null )
+            {
+                return delegate;
+            }
+            if ( cancelled )
+            {
+                throw new CancellationException();
+            }
+            throw new ExecutionException( failure );
+        }
+
+        public void abort( Throwable t )
+        {
+            ListenableFuture<T> future = getDelegate();
+            if ( future != null )
+            {
+                future.abort( t );
+            }
+            else if ( !fail( t ) && ( future = getDelegate() ) != null )
+            {
+                future.abort( t );
+            }
+        }
+
+        public void done( Callable callable )
+        {
+            ListenableFuture<T> future = getDelegate();
+            if ( future != null )
+            {
+                future.done( callable );
+            }
+        }
+
+        public void content( T v )
+        {
+            ListenableFuture<T> future = getDelegate();
+            if ( future != null )
+            {
+                future.content( v );
+            }
+        }
+
+        public void touch()
+        {
+            ListenableFuture<T> future = getDelegate();
+            if ( future != null )
+            {
+                future.touch();
+            }
+        }
+
+        public boolean getAndSetWriteHeaders( boolean writeHeader )
+        {
+            ListenableFuture<T> future = getDelegate();
+            return future != null && future.getAndSetWriteHeaders( writeHeader );
+        }
+
+        public boolean getAndSetWriteBody( boolean writeBody )
+        {
+            ListenableFuture<T> future = getDelegate();
+            return future != null && future.getAndSetWriteBody( writeBody );
+        }
+
+    }
+
+    /**
+     * Reports the status and the {@code Retry-After} of the response to a request to its permit before the wrapped
+     * handler gets to see them. As the handler is wrapped before the request is sent, the response can't overtake
+     * the registration of the permit. The status is passed on together with the headers so that a handler aborting on
+     * the status alone doesn't cut off the {@code Retry-After}.
+     */
+    static class ResponseReporter<T>
+        implements AsyncHandler<T>
+    {
+
+        private final AsyncHandler<T> handler;
+
+        private final AdaptiveLimiter.Permit permit;
+
+        private HttpResponseStatus status;
+
+        ResponseReporter( AsyncHandler<T> handler, AdaptiveLimiter.Permit permit )
+        {
+            this.handler = handler;
+            this.permit = permit;
+        }
+
+        public STATE onStatusReceived( HttpResponseStatus responseStatus )
+        {
+            status = responseStatus;
+            return STATE.CONTINUE;
+        }
+
+        public STATE onHeadersReceived( HttpResponseHeaders headers )
+            throws Exception
+        {
+            HttpResponseStatus responseStatus = status;
+            if ( responseStatus == null )
+            {
+                // trailing headers of a chunked response
+                return handler.onHeadersReceived( headers );
+            }
+            status = null;
+            permit.responded( responseStatus.getStatusCode(), headers.getHeaders().getFirstValue( RETRY_AFTER ) );
+            if ( handler.onStatusReceived( responseStatus ) != STATE.CONTINUE )
+            {
+                return STATE.ABORT;
+            }
+            return handler.onHeadersReceived( headers );
+        }
+
+        public STATE onBodyPartReceived( HttpResponseBodyPart bodyPart )
+            throws Exception
+        {
+            return handler.onBodyPartReceived( bodyPart );
+        }
+
+        public T onCompleted()
+            throws Exception
+        {
+            return handler.onCompleted();
+        }
+
+        public void onThrowable( Throwable t )
+        {
+            handler.onThrowable( t );
+        }
+
+    }
+
+}
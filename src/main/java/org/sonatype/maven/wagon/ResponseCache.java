@@ -0,0 +1,662 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+
+/**
+ * A client-side cache for GET responses that is kept on disk and can be shared by concurrent builds. The response
+ * bodies are stored under their SHA-1 such that identical content fetched via different URLs is kept only once. Each
+ * cached URL is described by a properties file which records the validators, the expiration date derived from the
+ * {@code Cache-Control} or {@code Expires} header and the request headers selected by {@code Vary}. The modification
+ * date of this file tracks the last access to the entry, the least recently used entries are evicted once the content
+ * exceeds the configured size. As the cache can be shared by different users, {@code private} responses are never
+ * stored and responses to authenticated requests only if the server explicitly allows it. Unless such a response is
+ * {@code public}, it is revalidated on every use so that the server gets to check the credentials of each request.
+ */
+class ResponseCache
+{
+
+    /**
+     * A cached response.
+     */
+    static class Entry
+    {
+
+        private final File file;
+
+        private final Properties props;
+
+        Entry( File file, Properties props )
+        {
+            this.file = file;
+            this.props = props;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public String getEntityTag()
+        {
+            return props.getProperty( KEY_ETAG );
+        }
+
+        public long getLastModified()
+        {
+            return Long.parseLong( props.getProperty( KEY_LAST_MODIFIED, "0" ) );
+        }
+
+        public long getContentLength()
+        {
+            return file.length();
+        }
+
+        /**
+         * Indicates whether the response may be used without revalidating it with the server.
+         */
+        public boolean isFresh()
+        {
+            return !Boolean.parseBoolean( props.getProperty( KEY_AUTHENTICATED ) )
+                && System.currentTimeMillis() < Long.parseLong( props.getProperty( KEY_EXPIRES, "0" ) );
+        }
+
+        /**
+         * Indicates whether the response can be revalidated with a conditional request.
+         */
+        public boolean isRevalidatable()
+        {
+            return getEntityTag() != null || getLastModified() > 0;
+        }
+
+    }
+
+    /**
+     * Receives the body of a response that is about to be added to the cache.
+     */
+    class Writer
+        extends CacheWriter
+    {
+
+        private final Properties props;
+
+        private final File tmpFile;
+
+        private final OutputStream out;
+
+        private final MessageDigest digest;
+
+        Writer( Properties props )
+            throws IOException
+        {
+            this.props = props;
+            this.digest = newDigest();
+            File tmpDir = new File( directory, "tmp" );
+            tmpDir.mkdirs();
+            this.tmpFile = File.createTempFile( "content-", ".tmp", tmpDir );
+            this.out = new FileOutputStream( tmpFile );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            out.write( b, off, len );
+            digest.update( b, off, len );
+        }
+
+        @Override
+        public void commit()
+            throws IOException
+        {
+            out.close();
+
+            try
+            {
+                String content = toHex( digest.digest() );
+                File file = getContentFile( content );
+                file.getParentFile().mkdirs();
+                if ( file.exists() || !tmpFile.renameTo( file ) )
+                {
+                    // the same content has already been cached via another URL (or another build)
+                    tmpFile.delete();
+                    if ( !file.exists() )
+                    {
+                        throw new IOException( "Failed to move " + tmpFile + " to " + file );
+                    }
+                }
+                else
+                {
+                    added( file.length() );
+                }
+
+                props.setProperty( KEY_CONTENT, content );
+                writeEntry( props );
+            }
+            finally
+            {
+                tmpFile.delete();
+            }
+
+            trim();
+        }
+
+        @Override
+        public void abort()
+        {
+            IOUtil.close( out );
+            tmpFile.delete();
+        }
+
+    }
+
+    private static final String KEY_URL = "url";
+
+    private static final String KEY_CONTENT = "content";
+
+    private static final String KEY_ETAG = "etag";
+
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    private static final String KEY_EXPIRES = "expires";
+
+    private static final String KEY_VARY = "vary";
+
+    private static final String KEY_AUTHENTICATED = "authenticated";
+
+    private static final Map<File, ResponseCache> CACHES = new HashMap<File, ResponseCache>();
+
+    private final File directory;
+
+    private volatile long maxSize;
+
+    private long size = -1;
+
+    private ResponseCache( File directory, long maxSize )
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the cache residing in the specified directory.
+     *
+     * @param directory The base directory of the cache, must not be {@code null}.
+     * @param maxSize The maximum size in bytes of the cached content.
+     * @return The cache, never {@code null}.
+     */
+    public static synchronized ResponseCache getInstance( File directory, long maxSize )
+    {
+        directory = directory.getAbsoluteFile();
+        ResponseCache cache = CACHES.get( directory );
+        if ( cache == null )
+        {
+            cache = new ResponseCache( directory, maxSize );
+            CACHES.put( directory, cache );
+        }
+        cache.maxSize = maxSize;
+        return cache;
+    }
+
+    /**
+     * Looks up a cached response for the specified request.
+     *
+     * @param url The URL of the request, must not be {@code null}.
+     * @param requestHeaders The headers of the request keyed by their lower-case names, must not be {@code null}.
+     * @return The cached response or {@code null} if none.
+     */
+    public Entry get( String url, Map<String, String> requestHeaders )
+    {
+        File entryFile = getEntryFile( url );
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( entryFile );
+            props.load( in );
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        if ( !url.equals( props.getProperty( KEY_URL ) ) || props.getProperty( KEY_CONTENT ) == null )
+        {
+            return null;
+        }
+
+        String vary = props.getProperty( KEY_VARY, "" );
+        for ( String name : vary.split( "," ) )
+        {
+            name = name.trim().toLowerCase( Locale.ENGLISH );
+            if ( name.length() > 0
+                && !String.valueOf( requestHeaders.get( name ) ).equals( props.getProperty( KEY_VARY + "." + name,
+                                                                                            "null" ) ) )
+            {
+                return null;
+            }
+        }
+
+        File file = getContentFile( props.getProperty( KEY_CONTENT ) );
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+
+        // NOTE: the modification date of the entry denotes its last use
+        entryFile.setLastModified( System.currentTimeMillis() );
+
+        return new Entry( file, props );
+    }
+
+    /**
+     * Begins to add a response to the cache.
+     *
+     * @param url The URL of the request, must not be {@code null}.
+     * @param requestHeaders The headers of the request keyed by their lower-case names, must not be {@code null}.
+     * @param authenticated Whether the request carried credentials for the server.
+     * @param headers The headers of the response with status 200, must not be {@code null}.
+     * @return The writer to receive the response body or {@code null} if the response must not be cached.
+     */
+    public Writer newWriter( String url, Map<String, String> requestHeaders, boolean authenticated,
+                             FluentCaseInsensitiveStringsMap headers )
+        throws IOException
+    {
+        long expires = getExpiration( headers, System.currentTimeMillis() );
+        String vary = join( headers.get( "Vary" ) );
+        if ( expires < 0 || "*".equals( vary.trim() ) )
+        {
+            return null;
+        }
+
+        boolean shared = false;
+        for ( String directive : join( headers.get( "Cache-Control" ) ).split( "," ) )
+        {
+            directive = directive.trim().toLowerCase( Locale.ENGLISH );
+            if ( directive.equals( "private" ) || directive.startsWith( "private=" ) )
+            {
+                return null;
+            }
+            else if ( directive.equals( "public" ) )
+            {
+                authenticated = false;
+            }
+            else if ( directive.equals( "must-revalidate" ) || directive.startsWith( "s-maxage=" ) )
+            {
+                shared = true;
+            }
+        }
+        if ( authenticated && !shared )
+        {
+            return null;
+        }
+
+        Properties props = new Properties();
+        props.setProperty( KEY_URL, url );
+        props.setProperty( KEY_EXPIRES, String.valueOf( expires ) );
+        if ( authenticated )
+        {
+            props.setProperty( KEY_AUTHENTICATED, "true" );
+        }
+
+        String entityTag = headers.getFirstValue( "ETag" );
+        if ( entityTag != null )
+        {
+            props.setProperty( KEY_ETAG, entityTag );
+        }
+
+        long lastModified = GetExchange.parseLastModified( headers.getFirstValue( "Last-Modified" ), 0 );
+        if ( lastModified > 0 )
+        {
+            props.setProperty( KEY_LAST_MODIFIED, String.valueOf( lastModified ) );
+        }
+
+        if ( expires <= System.currentTimeMillis() && entityTag == null && lastModified <= 0 )
+        {
+            // neither fresh nor revalidatable, i.e. useless
+            return null;
+        }
+
+        props.setProperty( KEY_VARY, vary );
+        for ( String name : vary.split( "," ) )
+        {
+            name = name.trim().toLowerCase( Locale.ENGLISH );
+            if ( name.length() > 0 )
+            {
+                props.setProperty( KEY_VARY + "." + name, String.valueOf( requestHeaders.get( name ) ) );
+            }
+        }
+
+        return new Writer( props );
+    }
+
+    /**
+     * Updates a cached response after the server confirmed its validity.
+     *
+     * @param url The URL of the request, must not be {@code null}.
+     * @param entry The cached response, must not be {@code null}.
+     * @param headers The headers of the response with status 304, must not be {@code null}.
+     */
+    public void refresh( String url, Entry entry, FluentCaseInsensitiveStringsMap headers )
+    {
+        long expires = getExpiration( headers, System.currentTimeMillis() );
+        entry.props.setProperty( KEY_EXPIRES, String.valueOf( Math.max( expires, 0 ) ) );
+
+        try
+        {
+            writeEntry( entry.props );
+        }
+        catch ( IOException e )
+        {
+            // ignored, the entry will simply be revalidated again next time
+        }
+    }
+
+    /**
+     * Calculates the expiration date of a response from its headers.
+     *
+     * @return The expiration date, {@code 0} if the response needs revalidation before its next use or {@code -1} if
+     *         it must not be stored.
+     */
+    static long getExpiration( FluentCaseInsensitiveStringsMap headers, long now )
+    {
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        for ( String directive : join( headers.get( "Cache-Control" ) ).split( "," ) )
+        {
+            directive = directive.trim().toLowerCase( Locale.ENGLISH );
+            if ( directive.equals( "no-store" ) )
+            {
+                return -1;
+            }
+            else if ( directive.equals( "no-cache" ) )
+            {
+                return 0;
+            }
+            else if ( directive.startsWith( "max-age=" ) )
+            {
+                try
+                {
+                    maxAge = Long.parseLong( directive.substring( 8 ).trim() );
+                }
+                catch ( NumberFormatException e )
+                {
+                    return 0;
+                }
+            }
+            else if ( directive.startsWith( "s-maxage=" ) )
+            {
+                try
+                {
+                    sharedMaxAge = Long.parseLong( directive.substring( 9 ).trim() );
+                }
+                catch ( NumberFormatException e )
+                {
+                    return 0;
+                }
+            }
+        }
+
+        // NOTE: the cache is shared by the builds on the machine so the limit for shared caches takes precedence
+        if ( sharedMaxAge >= 0 )
+        {
+            maxAge = sharedMaxAge;
+        }
+
+        if ( maxAge >= 0 )
+        {
+            long age = 0;
+            try
+            {
+                age = Long.parseLong( String.valueOf( headers.getFirstValue( "Age" ) ).trim() );
+            }
+            catch ( NumberFormatException e )
+            {
+                // no age
+            }
+            return Math.max( now + ( maxAge - age ) * 1000, 0 );
+        }
+
+        long expires = GetExchange.parseLastModified( headers.getFirstValue( "Expires" ), 0 );
+        return Math.max( expires, 0 );
+    }
+
+    private static String join( List<String> values )
+    {
+        StringBuilder buffer = new StringBuilder();
+        if ( values != null )
+        {
+            for ( String value : values )
+            {
+                if ( buffer.length() > 0 )
+                {
+                    buffer.append( ',' );
+                }
+                buffer.append( value );
+            }
+        }
+        return buffer.toString();
+    }
+
+    private File getEntryFile( String url )
+    {
+        String hash;
+        try
+        {
+            hash = toHex( newDigest().digest( url.getBytes( "UTF-8" ) ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        return new File( directory, "entries/" + hash.substring( 0, 2 ) + "/" + hash + ".properties" );
+    }
+
+    private File getContentFile( String content )
+    {
+        return new File( directory, "content/" + content.substring( 0, 2 ) + "/" + content );
+    }
+
+    private void writeEntry( Properties props )
+        throws IOException
+    {
+        File entryFile = getEntryFile( props.getProperty( KEY_URL ) );
+        entryFile.getParentFile().mkdirs();
+
+        File tmpFile = File.createTempFile( "entry-", ".tmp", entryFile.getParentFile() );
+        try
+        {
+            OutputStream out = new FileOutputStream( tmpFile );
+            try
+            {
+                props.store( out, null );
+            }
+            finally
+            {
+                IOUtil.close( out );
+            }
+
+            if ( !tmpFile.renameTo( entryFile ) )
+            {
+                // NOTE: File.renameTo() can't replace existing files on all platforms
+                entryFile.delete();
+                if ( !tmpFile.renameTo( entryFile ) )
+                {
+                    throw new IOException( "Failed to move " + tmpFile + " to " + entryFile );
+                }
+            }
+        }
+        finally
+        {
+            tmpFile.delete();
+        }
+    }
+
+    private synchronized void added( long length )
+    {
+        if ( size >= 0 )
+        {
+            size += length;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cached content fits into the configured size again.
+     */
+    synchronized void trim()
+    {
+        if ( size >= 0 && size <= maxSize )
+        {
+            return;
+        }
+
+        List<File> entryFiles = listFiles( new File( directory, "entries" ) );
+        File[] sorted = entryFiles.toArray( new File[entryFiles.size()] );
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        for ( File entryFile : sorted )
+        {
+            lastUsed.put( entryFile, Long.valueOf( entryFile.lastModified() ) );
+        }
+        Arrays.sort( sorted, new Comparator<File>()
+        {
+            public int compare( File f1, File f2 )
+            {
+                return lastUsed.get( f1 ).compareTo( lastUsed.get( f2 ) );
+            }
+        } );
+
+        // NOTE: content is shared among entries, it can only be deleted if no surviving entry refers to it
+        List<String> contents = new ArrayList<String>();
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        for ( File entryFile : sorted )
+        {
+            String content = readContent( entryFile );
+            contents.add( content );
+            Integer count = references.get( content );
+            references.put( content, Integer.valueOf( ( count != null ) ? count.intValue() + 1 : 1 ) );
+        }
+
+        Map<File, Long> contentFiles = new HashMap<File, Long>();
+        size = 0;
+        for ( File contentFile : listFiles( new File( directory, "content" ) ) )
+        {
+            contentFiles.put( contentFile, Long.valueOf( contentFile.length() ) );
+            size += contentFile.length();
+        }
+
+        for ( int i = 0; i < sorted.length && size > maxSize; i++ )
+        {
+            sorted[i].delete();
+
+            String content = contents.get( i );
+            int count = references.get( content ).intValue() - 1;
+            references.put( content, Integer.valueOf( count ) );
+            if ( content != null && count <= 0 )
+            {
+                File contentFile = getContentFile( content );
+                Long length = contentFiles.remove( contentFile );
+                if ( length != null && contentFile.delete() )
+                {
+                    size -= length.longValue();
+                }
+            }
+        }
+    }
+
+    private String readContent( File entryFile )
+    {
+        Properties props = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( entryFile );
+            props.load( in );
+            String content = props.getProperty( KEY_CONTENT );
+            return ( content != null && content.length() > 2 ) ? content : null;
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    private static List<File> listFiles( File dir )
+    {
+        List<File> files = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                if ( child.isDirectory() )
+                {
+                    files.addAll( listFiles( child ) );
+                }
+                else if ( !child.getName().endsWith( ".tmp" ) )
+                {
+                    files.add( child );
+                }
+            }
+        }
+        return files;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder buffer = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            buffer.append( Integer.toHexString( ( b & 0xFF ) | 0x100 ).substring( 1 ) );
+        }
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether a failed request is sent again and how long to wait before. The wait grows exponentially with the
+ * number of retries and is drawn uniformly from zero up to that bound ("full jitter") so that clients failing at the
+ * same time don't retry in lockstep. Retries are paid from a budget that every request replenishes by a fraction of a
+ * retry, which bounds the extra load caused by retries when a server is down rather than hiccuping.
+ * <p>
+ * Callers must only retry requests that are idempotent and whose body, if any, can be sent again.
+ */
+class RetryPolicy
+{
+
+    private final int maxRetries;
+
+    private final long backoff;
+
+    private final long maxBackoff;
+
+    private final Set<Integer> statusCodes = new HashSet<Integer>();
+
+    private final Set<String> exceptions = new HashSet<String>();
+
+    private final Set<String> excludedExceptions = new HashSet<String>();
+
+    private final double budgetRatio;
+
+    private final int budgetReserve;
+
+    private double budget;
+
+    private final Random random = new Random();
+
+    /**
+     * @param maxRetries The maximum number of times a request is retried, non-positive to never retry.
+     * @param backoff The time in milliseconds to wait at most before the first retry, doubled for each further retry.
+     * @param maxBackoff The upper limit in milliseconds for the time to wait before a retry.
+     * @param statusCodes The comma-separated status codes of responses to retry, may be {@code null}.
+     * @throws IllegalArgumentException If the status codes are malformed.
+     * @param exceptions The comma-separated class names of exceptions to retry, including their subclasses, may be
+     *            {@code null}. An exception qualifies if itself or one of its causes is an instance of a listed class.
+     * @param excludedExceptions The comma-separated class names of exceptions never to retry, may be {@code null}.
+     * @param budgetRatio The fraction of a retry that each request adds to the retry budget.
+     * @param budgetReserve The number of retries available up front, which is also the maximum size of the budget.
+     */
+    public RetryPolicy( int maxRetries, long backoff, long maxBackoff, String statusCodes, String exceptions,
+                        String excludedExceptions, double budgetRatio, int budgetReserve )
+    {
+        this.maxRetries = maxRetries;
+        this.backoff = Math.max( backoff, 0 );
+        this.maxBackoff = Math.max( maxBackoff, this.backoff );
+        for ( String code : split( statusCodes ) )
+        {
+            this.statusCodes.add( Integer.valueOf( parseStatusCode( code ) ) );
+        }
+        this.exceptions.addAll( split( exceptions ) );
+        this.excludedExceptions.addAll( split( excludedExceptions ) );
+        this.budgetRatio = Math.max( budgetRatio, 0 );
+        this.budgetReserve = Math.max( budgetReserve, 0 );
+        this.budget = this.budgetReserve;
+    }
+
+    private static int parseStatusCode( String code )
+    {
+        int statusCode;
+        try
+        {
+            statusCode = Integer.parseInt( code );
+        }
+        catch ( NumberFormatException e )
+        {
+            statusCode = -1;
+        }
+        if ( statusCode < 100 || statusCode > 599 )
+        {
+            throw new IllegalArgumentException( "Invalid HTTP status code '" + code + "' in retryStatusCodes" );
+        }
+        return statusCode;
+    }
+
+    private static Set<String> split( String values )
+    {
+        Set<String> result = new HashSet<String>();
+        if ( values != null )
+        {
+            for ( String value : values.split( "," ) )
+            {
+                if ( value.trim().length() > 0 )
+                {
+                    result.add( value.trim() );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records a new request, which adds to the retry budget.
+     */
+    public synchronized void requested()
+    {
+        budget = Math.min( budget + budgetRatio, budgetReserve );
+    }
+
+    /**
+     * Indicates whether a response with the specified status is worth another attempt.
+     */
+    public boolean isRetryable( int statusCode )
+    {
+        return maxRetries > 0 && statusCodes.contains( Integer.valueOf( statusCode ) );
+    }
+
+    /**
+     * Indicates whether the specified failure is worth another attempt.
+     */
+    public boolean isRetryable( Throwable error )
+    {
+        if ( maxRetries <= 0 )
+        {
+            return false;
+        }
+
+        if ( isInterruption( error ) )
+        {
+            return false;
+        }
+
+        boolean retryable = false;
+        for ( Throwable t = error; t != null; t = ( t.getCause() != t ) ? t.getCause() : null )
+        {
+            for ( Class<?> type = t.getClass(); type != null; type = type.getSuperclass() )
+            {
+                if ( excludedExceptions.contains( type.getName() ) )
+                {
+                    return false;
+                }
+                retryable |= exceptions.contains( type.getName() );
+            }
+        }
+        return retryable;
+    }
+
+    /**
+     * Indicates whether the specified failure means the client gave up on the request, in which case it must not be
+     * sent again, be it to the same server or another.
+     */
+    public static boolean isInterruption( Throwable error )
+    {
+        for ( Throwable t = error; t != null; t = ( t.getCause() != t ) ? t.getCause() : null )
+        {
+            if ( t instanceof InterruptedException || t.getClass() == InterruptedIOException.class )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits before the specified retry if it is within the limits of this policy and the retry budget.
+     *
+     * @param retry The number of the retry, starting at 1.
+     * @return {@code true} if the request should be sent again, {@code false} if the failure should be reported.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public boolean retry( int retry )
+        throws InterruptedException
+    {
+        if ( retry > maxRetries )
+        {
+            return false;
+        }
+
+        long bound;
+        synchronized ( this )
+        {
+            if ( budget < 1 )
+            {
+                return false;
+            }
+            budget -= 1;
+
+            bound = Math.min( backoff << Math.min( retry - 1, 30 ), maxBackoff );
+            bound = (long) ( random.nextDouble() * bound );
+        }
+
+        if ( bound > 0 )
+        {
+            Thread.sleep( bound );
+        }
+        return true;
+    }
+
+}
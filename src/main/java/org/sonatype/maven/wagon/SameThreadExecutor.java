@@ -0,0 +1,33 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks right away in the calling thread. Meant for listeners of futures which merely release resources and
+ * hence don't need to be handed over to another thread.
+ */
+class SameThreadExecutor
+    implements Executor
+{
+
+    public static final Executor INSTANCE = new SameThreadExecutor();
+
+    private SameThreadExecutor()
+    {
+        // singleton
+    }
+
+    public void execute( Runnable command )
+    {
+        command.run();
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+import com.ning.http.client.SSLEngineFactory;
+import com.ning.http.util.SslUtils;
+
+/**
+ * Creates the SSL engines of all clients in the JVM from a shared SSL context so that TLS sessions established by one
+ * wagon can be resumed by the others, saving a round trip and the key exchange per connection. Left alone, the client
+ * creates a new context for every connection and hence never resumes a session. The context is set up the same way as
+ * the client does it, i.e. from the {@code javax.net.ssl.*} system properties, and recreated when those change.
+ * Factories with different session cache settings use separate contexts, the settings of a context never change after
+ * its creation.
+ * <p>
+ * Sessions are looked up by the host and port of the server, which the provider announces via
+ * {@link #setPeer(String, int)} while it connects. Engines created without this information still work but can't
+ * resume sessions.
+ */
+class SharedSslEngineFactory
+    implements SSLEngineFactory
+{
+
+    private static final String[] PROPERTIES =
+        { "javax.net.ssl.keyStore", "javax.net.ssl.keyStorePassword", "javax.net.ssl.keyStoreType",
+            "javax.net.ssl.trustStore", "javax.net.ssl.trustStorePassword", "javax.net.ssl.trustStoreType" };
+
+    private static final Map<String, SSLContext> CONTEXTS = new HashMap<String, SSLContext>();
+
+    private static final ThreadLocal<Object[]> PEER = new ThreadLocal<Object[]>();
+
+    private final int sessionCacheSize;
+
+    private final int sessionTimeout;
+
+    private final String[] cipherSuites;
+
+    /**
+     * @param sessionCacheSize The maximum number of client sessions to cache, non-positive to use the JSSE default.
+     * @param sessionTimeout The time in milliseconds for which a client session can be resumed, non-positive to use
+     *            the JSSE default.
+     * @param cipherSuites The comma-separated cipher suites to enable in order of preference, may be {@code null} to
+     *            use the JSSE defaults. Suites not supported by the JRE are ignored.
+     */
+    public SharedSslEngineFactory( int sessionCacheSize, long sessionTimeout, String cipherSuites )
+    {
+        this.sessionCacheSize = Math.max( sessionCacheSize, 0 );
+        this.sessionTimeout = ( sessionTimeout > 0 ) ? (int) Math.max( sessionTimeout / 1000, 1 ) : 0;
+
+        List<String> suites = new ArrayList<String>();
+        if ( cipherSuites != null )
+        {
+            for ( String suite : cipherSuites.split( "," ) )
+            {
+                if ( suite.trim().length() > 0 )
+                {
+                    suites.add( suite.trim() );
+                }
+            }
+        }
+        this.cipherSuites = suites.isEmpty() ? null : suites.toArray( new String[suites.size()] );
+    }
+
+    /**
+     * Announces the server that engines created by the current thread will talk to.
+     *
+     * @param host The host of the server, may be {@code null} to clear the peer.
+     * @param port The port of the server.
+     */
+    public static void setPeer( String host, int port )
+    {
+        if ( host != null )
+        {
+            PEER.set( new Object[] { host, Integer.valueOf( port ) } );
+        }
+        else
+        {
+            PEER.remove();
+        }
+    }
+
+    /**
+     * Announces the server at the other end of a tunnel that engines created by the current thread will talk to.
+     *
+     * @param authority The host and port of the server as given by the {@code CONNECT} request, must not be
+     *            {@code null}.
+     */
+    public static void setTunnelPeer( String authority )
+    {
+        int colon = authority.lastIndexOf( ':' );
+        setPeer( authority.substring( 0, colon ), Integer.parseInt( authority.substring( colon + 1 ) ) );
+    }
+
+    public SSLEngine newSSLEngine()
+        throws GeneralSecurityException
+    {
+        SSLContext context = getContext();
+
+        Object[] peer = PEER.get();
+        SSLEngine engine;
+        if ( peer != null )
+        {
+            engine = context.createSSLEngine( (String) peer[0], ( (Integer) peer[1] ).intValue() );
+        }
+        else
+        {
+            engine = context.createSSLEngine();
+        }
+        engine.setUseClientMode( true );
+
+        if ( cipherSuites != null )
+        {
+            List<String> supported = Arrays.asList( engine.getSupportedCipherSuites() );
+            List<String> enabled = new ArrayList<String>( cipherSuites.length );
+            for ( String suite : cipherSuites )
+            {
+                if ( supported.contains( suite ) )
+                {
+                    enabled.add( suite );
+                }
+            }
+            if ( !enabled.isEmpty() )
+            {
+                engine.setEnabledCipherSuites( enabled.toArray( new String[enabled.size()] ) );
+            }
+        }
+
+        return engine;
+    }
+
+    private SSLContext getContext()
+        throws GeneralSecurityException
+    {
+        StringBuilder key = new StringBuilder( 256 );
+        key.append( sessionCacheSize ).append( ',' ).append( sessionTimeout ).append( '\n' );
+        for ( String property : PROPERTIES )
+        {
+            key.append( System.getProperty( property ) ).append( '\n' );
+        }
+
+        SSLContext context;
+        synchronized ( CONTEXTS )
+        {
+            context = CONTEXTS.get( key.toString() );
+            if ( context == null )
+            {
+                try
+                {
+                    context = SslUtils.getSSLContext();
+                }
+                catch ( IOException e )
+                {
+                    throw (GeneralSecurityException) new GeneralSecurityException( "Failed to load key/trust store: "
+                        + e.getMessage() ).initCause( e );
+                }
+
+                SSLSessionContext sessions = context.getClientSessionContext();
+                if ( sessionCacheSize > 0 )
+                {
+                    sessions.setSessionCacheSize( sessionCacheSize );
+                }
+                if ( sessionTimeout > 0 )
+                {
+                    sessions.setSessionTimeout( sessionTimeout );
+                }
+
+                CONTEXTS.put( key.toString(), context );
+            }
+        }
+
+        return context;
+    }
+
+    /**
+     * Gets a key that is equal for factories which create equally configured engines.
+     */
+    public String getKey()
+    {
+        return sessionCacheSize + "," + sessionTimeout + ","
+            + ( cipherSuites != null ? Arrays.asList( cipherSuites ) : null );
+    }
+
+}
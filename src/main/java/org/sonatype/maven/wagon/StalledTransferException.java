@@ -0,0 +1,28 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+
+/**
+ * Signals that a response arrived slower than the configured minimum throughput. Unlike other I/O errors, this hints at
+ * a bad connection rather than a bad server, so the transfer is worth resuming on a new connection.
+ */
+class StalledTransferException
+    extends IOException
+{
+
+    private static final long serialVersionUID = 3571642208354163537L;
+
+    public StalledTransferException( String message )
+    {
+        super( message );
+    }
+
+}
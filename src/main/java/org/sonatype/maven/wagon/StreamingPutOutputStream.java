@@ -0,0 +1,280 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+import com.ning.http.client.Response;
+
+/**
+ * Sends the body to the server while it is written. The written bytes are handed over to the I/O thread in chunks via
+ * a bounded queue, so at most {@link #MAX_CHUNKS} chunks are held in memory. The I/O thread never waits for the writer,
+ * when the queue runs empty the write of the body is suspended and resumed once the next chunk has been queued, see
+ * {@link BodyWriteHandler}. If the length of the body is unknown, it is sent with chunked transfer encoding. As the
+ * body is not retained, the request can't be sent again, e.g. in response to an authentication challenge.
+ */
+class StreamingPutOutputStream
+    extends PutOutputStream
+{
+
+    private static final int CHUNK_SIZE = 1024 * 16;
+
+    private static final int MAX_CHUNKS = 16;
+
+    private static final ByteBuffer EOF = ByteBuffer.allocate( 0 );
+
+    private static final ByteBuffer ABORT = ByteBuffer.allocate( 0 );
+
+    private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>( MAX_CHUNKS );
+
+    private final long contentLength;
+
+    private final boolean chunked;
+
+    private byte[] buffer = new byte[CHUNK_SIZE];
+
+    private int count;
+
+    private long written;
+
+    private volatile Future<Response> future;
+
+    private volatile Runnable resumer;
+
+    private boolean closed;
+
+    /**
+     * @param contentLength The length of the body or a negative value if unknown.
+     */
+    public StreamingPutOutputStream( BoundRequestBuilder builder, String url, long contentLength )
+    {
+        super( builder, url );
+        this.contentLength = contentLength;
+        this.chunked = contentLength < 0;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Stream closed" );
+        }
+
+        written += len;
+        if ( !chunked && written > contentLength )
+        {
+            throw new IOException( "Body exceeds the announced length of " + contentLength + " bytes" );
+        }
+
+        while ( len > 0 )
+        {
+            int n = Math.min( len, buffer.length - count );
+            System.arraycopy( b, off, buffer, count, n );
+            count += n;
+            off += n;
+            len -= n;
+
+            if ( count >= buffer.length )
+            {
+                flushChunk();
+            }
+        }
+    }
+
+    private void flushChunk()
+        throws IOException
+    {
+        if ( count <= 0 )
+        {
+            return;
+        }
+
+        ByteBuffer chunk = ByteBuffer.wrap( buffer, 0, count );
+        buffer = new byte[CHUNK_SIZE];
+        count = 0;
+
+        enqueue( chunk );
+    }
+
+    private void enqueue( ByteBuffer chunk )
+        throws IOException
+    {
+        if ( future == null )
+        {
+            builder.setBody( new StreamingBodyGenerator() );
+            future = executeRequest();
+        }
+
+        try
+        {
+            while ( !future.isDone() )
+            {
+                if ( chunks.offer( chunk, 100, TimeUnit.MILLISECONDS ) )
+                {
+                    resume();
+                    return;
+                }
+            }
+
+            // the server has responded early or the request failed, send() will tell
+            chunks.clear();
+        }
+        catch ( InterruptedException e )
+        {
+            throw (IOException) new InterruptedIOException( "Transfer was aborted by client" ).initCause( e );
+        }
+    }
+
+    @Override
+    protected Future<Response> execute()
+        throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Stream closed" );
+        }
+        if ( !chunked && written != contentLength )
+        {
+            close();
+            throw new IOException( "Body has " + written + " bytes instead of the announced " + contentLength );
+        }
+
+        flushChunk();
+        enqueue( EOF );
+
+        closed = true;
+
+        return future;
+    }
+
+    /**
+     * Aborts the request unless it has already been completed by {@link #send()}.
+     */
+    @Override
+    public void close()
+    {
+        if ( !closed )
+        {
+            closed = true;
+            if ( future != null && !chunks.offer( ABORT ) )
+            {
+                chunks.clear();
+                chunks.offer( ABORT );
+            }
+            resume();
+        }
+    }
+
+    private void resume()
+    {
+        Runnable resumer = this.resumer;
+        if ( resumer != null )
+        {
+            resumer.run();
+        }
+    }
+
+    class StreamingBodyGenerator
+        implements BodyGenerator
+    {
+
+        private volatile boolean consumed;
+
+        public Body createBody()
+            throws IOException
+        {
+            // NOTE: a request expecting 100-continue creates a body along with the headers which is never read
+            if ( consumed )
+            {
+                throw new IOException( "Streamed request body cannot be sent again" );
+            }
+
+            return new StreamingBody( this );
+        }
+
+    }
+
+    class StreamingBody
+        implements Body
+    {
+
+        private final StreamingBodyGenerator generator;
+
+        private ByteBuffer chunk;
+
+        StreamingBody( StreamingBodyGenerator generator )
+        {
+            this.generator = generator;
+        }
+
+        public long getContentLength()
+        {
+            // NOTE: a negative length makes the client announce chunked transfer encoding
+            return chunked ? -1 : contentLength;
+        }
+
+        public long read( ByteBuffer buffer )
+            throws IOException
+        {
+            if ( chunk == EOF )
+            {
+                return -1;
+            }
+            generator.consumed = true;
+
+            if ( chunk == null || !chunk.hasRemaining() )
+            {
+                // NOTE: the callback must be in place before polling so that a chunk queued meanwhile resumes the write
+                resumer = BodyWriteHandler.getResumer();
+                chunk = chunks.poll();
+                if ( chunk == null )
+                {
+                    if ( resumer == null )
+                    {
+                        throw new IOException( "Request body cannot be read without blocking the I/O thread" );
+                    }
+                    return 0;
+                }
+                if ( chunk == EOF )
+                {
+                    return -1;
+                }
+                if ( chunk == ABORT )
+                {
+                    throw new IOException( "Request body was aborted" );
+                }
+            }
+
+            int n = Math.min( buffer.remaining(), chunk.remaining() );
+            ByteBuffer slice = chunk.slice();
+            slice.limit( n );
+            buffer.put( slice );
+            chunk.position( chunk.position() + n );
+            return n;
+        }
+
+        public void close()
+        {
+            // nothing to release
+        }
+
+    }
+
+}
@@ -0,0 +1,250 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.providers.netty.NettyResponseFuture;
+
+/**
+ * Enforces the transfer timeout and the minimum throughput of the requests of a provider. Besides the idle timeout of
+ * the client, this bounds the total duration of a request and aborts requests whose response arrives too slowly.
+ */
+class TransferMonitor
+{
+
+    private static final int CONTINUE = 100;
+
+    private final FlowControlNettyAsyncHttpProvider provider;
+
+    private final ScheduledExecutorService reaper;
+
+    private final long transferTimeout;
+
+    private final long minThroughput;
+
+    private final long minThroughputPeriod;
+
+    private final Map<Object, TransferWatchdog> watchdogs = new WeakHashMap<Object, TransferWatchdog>();
+
+    /**
+     * @param provider The provider to abort the requests with, must not be {@code null}.
+     * @param reaper The scheduler to check the requests with, must not be {@code null}.
+     */
+    public TransferMonitor( FlowControlNettyAsyncHttpProvider provider, ScheduledExecutorService reaper,
+                            NettyProviderConfig config )
+    {
+        this.provider = provider;
+        this.reaper = reaper;
+        this.transferTimeout = config.getTransferTimeout();
+        this.minThroughput = config.getMinThroughput();
+        this.minThroughputPeriod = config.getMinThroughputPeriod();
+    }
+
+    /**
+     * Aborts the specified request if it exceeds the transfer timeout or its response arrives slower than the minimum
+     * throughput.
+     */
+    public void watch( ListenableFuture<?> future )
+    {
+        if ( !( future instanceof NettyResponseFuture<?> ) || ( transferTimeout <= 0 && minThroughput <= 0 ) )
+        {
+            return;
+        }
+
+        final TransferWatchdog watchdog = new TransferWatchdog( (NettyResponseFuture<?>) future );
+        synchronized ( watchdogs )
+        {
+            watchdogs.put( future, watchdog );
+        }
+
+        try
+        {
+            if ( transferTimeout > 0 )
+            {
+                watchdog.deadline = reaper.schedule( new Runnable()
+                {
+                    public void run()
+                    {
+                        watchdog.expire();
+                    }
+                }, transferTimeout, TimeUnit.MILLISECONDS );
+            }
+            if ( minThroughput > 0 )
+            {
+                watchdog.sampler =
+                    reaper.scheduleAtFixedRate( watchdog, minThroughputPeriod, minThroughputPeriod,
+                                                TimeUnit.MILLISECONDS );
+            }
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // the client has been closed, the request will fail on its own
+        }
+
+        future.addListener( new Runnable()
+        {
+            public void run()
+            {
+                watchdog.cancel();
+            }
+        }, SameThreadExecutor.INSTANCE );
+    }
+
+    /**
+     * Accounts for a part of the response received by the specified request.
+     *
+     * @param future The request the channel is attached to, may be {@code null}.
+     * @param channel The channel the message was received from, must not be {@code null}.
+     * @param message The received message, must not be {@code null}.
+     */
+    public void received( Object future, Channel channel, Object message )
+    {
+        TransferWatchdog watchdog = getWatchdog( future );
+        if ( watchdog != null )
+        {
+            if ( message instanceof HttpChunk )
+            {
+                watchdog.received( channel, ( (HttpChunk) message ).getContent().readableBytes() );
+            }
+            else if ( message instanceof HttpResponse && ( (HttpResponse) message ).getStatus().getCode() != CONTINUE )
+            {
+                watchdog.received( channel, ( (HttpResponse) message ).getContent().readableBytes() );
+            }
+        }
+    }
+
+    /**
+     * Excuses the specified request for the current period if reading its response has been suspended.
+     *
+     * @param future The request the channel is attached to, may be {@code null}.
+     * @param channel The channel whose interest has changed, must not be {@code null}.
+     */
+    public void interestChanged( Object future, Channel channel )
+    {
+        TransferWatchdog watchdog = getWatchdog( future );
+        if ( watchdog != null && !channel.isReadable() )
+        {
+            // the consumer can't keep up, that's not for the server to blame
+            watchdog.throttled = true;
+        }
+    }
+
+    private TransferWatchdog getWatchdog( Object future )
+    {
+        if ( transferTimeout <= 0 && minThroughput <= 0 )
+        {
+            return null;
+        }
+        synchronized ( watchdogs )
+        {
+            return watchdogs.get( future );
+        }
+    }
+
+    /**
+     * Enforces the transfer timeout and the minimum throughput of a single request. The throughput is sampled
+     * periodically once the response has started, periods during which reading was suspended don't count.
+     */
+    class TransferWatchdog
+        implements Runnable
+    {
+
+        private final NettyResponseFuture<?> future;
+
+        private final AtomicLong received = new AtomicLong();
+
+        private volatile Channel channel;
+
+        volatile boolean throttled;
+
+        private long lastReceived;
+
+        Future<?> deadline;
+
+        Future<?> sampler;
+
+        TransferWatchdog( NettyResponseFuture<?> future )
+        {
+            this.future = future;
+        }
+
+        void received( Channel channel, long bytes )
+        {
+            if ( this.channel == null )
+            {
+                // the current period has been spent waiting for the response, it's not a measure of throughput
+                throttled = true;
+                this.channel = channel;
+            }
+            received.addAndGet( bytes );
+        }
+
+        void expire()
+        {
+            if ( !future.isDone() )
+            {
+                provider.abort( future, new TimeoutException( "Transfer not completed within " + transferTimeout
+                    + " ms" ) );
+            }
+        }
+
+        public void run()
+        {
+            Channel channel = this.channel;
+            long total = received.get();
+            long bytes = total - lastReceived;
+            lastReceived = total;
+
+            if ( channel == null || throttled )
+            {
+                // the response hasn't started yet or the consumer was lagging behind
+                throttled = channel != null && !channel.isReadable();
+                return;
+            }
+
+            if ( bytes * 1000 < minThroughput * minThroughputPeriod && !future.isDone() )
+            {
+                provider.abort( future, new StalledTransferException( "Transfer stalled, received " + bytes
+                    + " bytes within " + minThroughputPeriod + " ms but expected at least " + minThroughput
+                    + " bytes/s" ) );
+            }
+        }
+
+        void cancel()
+        {
+            if ( deadline != null )
+            {
+                deadline.cancel( false );
+            }
+            if ( sampler != null )
+            {
+                sampler.cancel( false );
+            }
+            synchronized ( watchdogs )
+            {
+                watchdogs.remove( future );
+            }
+        }
+
+    }
+
+}
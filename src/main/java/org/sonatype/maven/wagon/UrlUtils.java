@@ -11,6 +11,7 @@ package org.sonatype.maven.wagon;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 public class UrlUtils
@@ -101,4 +102,27 @@ public class UrlUtils
         return new URI( protocol, authority, path, null, null ).toASCIIString();
     }
 
+    /**
+     * Gets the scheme, host and port of the specified URI in the form {@code scheme://host:port}, using the default
+     * port of the scheme if the URI doesn't specify one.
+     */
+    public static String getOrigin( URI uri )
+    {
+        String scheme = uri.getScheme().toLowerCase( Locale.ENGLISH );
+        return scheme + "://" + uri.getHost().toLowerCase( Locale.ENGLISH ) + ':' + getPort( uri );
+    }
+
+    /**
+     * Gets the port of the specified URI, using the default port of the scheme if the URI doesn't specify one.
+     */
+    public static int getPort( URI uri )
+    {
+        int port = uri.getPort();
+        if ( port < 0 )
+        {
+            port = "https".equalsIgnoreCase( uri.getScheme() ) ? 443 : 80;
+        }
+        return port;
+    }
+
 }
@@ -0,0 +1,365 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Remembers the validators of downloaded resources, keyed by their URL, to build conditional requests. The entries are
+ * kept in fixed-size records of an open-addressing hash table which is either memory-mapped from a file, making it
+ * survive the JVM and shared among concurrent builds, or held in memory. Writers are serialized, readers go without
+ * locks and detect concurrent updates of a record via its sequence number. A torn read can at worst cause an
+ * unconditional request, never a wrong 304 since the checksum of the local file is verified before its entity tag is
+ * used.
+ */
+class ValidatorStore
+{
+
+    /**
+     * The validators of a single resource.
+     */
+    static class Entry
+    {
+
+        private final String entityTag;
+
+        private final long lastModified;
+
+        private final long contentLength;
+
+        private final long checksum;
+
+        /**
+         * @param entityTag The entity tag of the resource, may be {@code null}.
+         * @param lastModified The last modification date of the resource or {@code 0} if unknown.
+         * @param contentLength The length of the resource's content or {@code -1} if unknown.
+         * @param checksum The CRC-32 of the resource's content or {@code -1} if unknown.
+         */
+        public Entry( String entityTag, long lastModified, long contentLength, long checksum )
+        {
+            this.entityTag = entityTag;
+            this.lastModified = lastModified;
+            this.contentLength = contentLength;
+            this.checksum = checksum;
+        }
+
+        public String getEntityTag()
+        {
+            return entityTag;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        public long getContentLength()
+        {
+            return contentLength;
+        }
+
+        public long getChecksum()
+        {
+            return checksum;
+        }
+
+        /**
+         * Indicates whether the specified file holds the content these validators were recorded for. To keep this check
+         * cheap, larger files are never considered to match.
+         */
+        public boolean matches( File file )
+        {
+            if ( checksum < 0 || !file.isFile() || file.length() != contentLength
+                || contentLength > MAX_VERIFIED_LENGTH )
+            {
+                return false;
+            }
+
+            CRC32 crc = new CRC32();
+            InputStream in = null;
+            try
+            {
+                in = new FileInputStream( file );
+                byte[] buffer = new byte[1024 * 8];
+                for ( int read = in.read( buffer ); read >= 0; read = in.read( buffer ) )
+                {
+                    crc.update( buffer, 0, read );
+                }
+            }
+            catch ( IOException e )
+            {
+                return false;
+            }
+            finally
+            {
+                IOUtil.close( in );
+            }
+
+            return crc.getValue() == checksum;
+        }
+
+    }
+
+    private static final long MAX_VERIFIED_LENGTH = 1024 * 1024;
+
+    private static final int MAGIC = 0x57414856;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int RECORD_SIZE = 256;
+
+    private static final int CAPACITY = 4096;
+
+    private static final int MAX_PROBES = 8;
+
+    private static final int SEQ = 0;
+
+    private static final int ETAG_LENGTH = 4;
+
+    private static final int KEY = 8;
+
+    private static final int LAST_MODIFIED = 16;
+
+    private static final int CONTENT_LENGTH = 24;
+
+    private static final int CHECKSUM = 32;
+
+    private static final int ETAG = 40;
+
+    private static final int MAX_ETAG_LENGTH = RECORD_SIZE - ETAG;
+
+    private static final Map<File, ValidatorStore> STORES = new HashMap<File, ValidatorStore>();
+
+    private static ValidatorStore transientStore;
+
+    private final ByteBuffer buffer;
+
+    private final int capacity;
+
+    private volatile int fence;
+
+    private ValidatorStore( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+        this.capacity = ( buffer.capacity() - HEADER_SIZE ) / RECORD_SIZE;
+
+        if ( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION || buffer.getInt( 8 ) != capacity )
+        {
+            for ( int i = 0; i < buffer.capacity(); i += 8 )
+            {
+                buffer.putLong( i, 0 );
+            }
+            buffer.putInt( 4, VERSION );
+            buffer.putInt( 8, capacity );
+            buffer.putInt( 0, MAGIC );
+        }
+    }
+
+    /**
+     * Gets the store that is shared by the current JVM only.
+     *
+     * @return The store, never {@code null}.
+     */
+    public static synchronized ValidatorStore getInstance()
+    {
+        if ( transientStore == null )
+        {
+            transientStore = new ValidatorStore( ByteBuffer.allocate( HEADER_SIZE + CAPACITY * RECORD_SIZE ) );
+        }
+        return transientStore;
+    }
+
+    /**
+     * Gets the store backed by the specified file, creating the file if required.
+     *
+     * @param file The file to map, must not be {@code null}.
+     * @return The store, never {@code null}.
+     */
+    public static synchronized ValidatorStore getInstance( File file )
+        throws IOException
+    {
+        file = file.getAbsoluteFile();
+        ValidatorStore store = STORES.get( file );
+        if ( store == null )
+        {
+            File parent = file.getParentFile();
+            if ( parent != null && !parent.isDirectory() && !parent.mkdirs() )
+            {
+                throw new IOException( "Could not create directory " + parent );
+            }
+
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            try
+            {
+                // NOTE: the mapping remains valid after the file has been closed
+                store =
+                    new ValidatorStore( raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0,
+                                                              HEADER_SIZE + CAPACITY * RECORD_SIZE ) );
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            STORES.put( file, store );
+        }
+        return store;
+    }
+
+    private static long hash( String url )
+    {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0; i < url.length(); i++ )
+        {
+            hash ^= url.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        return ( hash != 0 ) ? hash : 1;
+    }
+
+    private int slot( long hash, int probe )
+    {
+        return HEADER_SIZE + (int) ( ( ( hash & Long.MAX_VALUE ) + probe ) % capacity ) * RECORD_SIZE;
+    }
+
+    /**
+     * Looks up the validators for the specified URL.
+     *
+     * @return The validators or {@code null} if unknown.
+     */
+    public Entry get( String url )
+    {
+        long hash = hash( url );
+
+        for ( int probe = 0; probe < MAX_PROBES; probe++ )
+        {
+            int record = slot( hash, probe );
+
+            for ( int attempt = 0; attempt < 16; attempt++ )
+            {
+                // NOTE: the volatile read orders the following reads after the completion of an earlier write
+                int seq = ( fence < 0 ) ? 1 : buffer.getInt( record + SEQ );
+                if ( ( seq & 1 ) != 0 )
+                {
+                    Thread.yield();
+                    continue;
+                }
+
+                long key = buffer.getLong( record + KEY );
+                if ( key == 0 )
+                {
+                    return null;
+                }
+                if ( key != hash )
+                {
+                    break;
+                }
+
+                Entry entry = read( record );
+
+                if ( fence >= 0 && buffer.getInt( record + SEQ ) == seq )
+                {
+                    return ( entry.getEntityTag() != null || entry.getLastModified() != 0 ) ? entry : null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private Entry read( int record )
+    {
+        int length = Math.min( Math.max( buffer.getInt( record + ETAG_LENGTH ), 0 ), MAX_ETAG_LENGTH );
+
+        String entityTag = null;
+        if ( length > 0 )
+        {
+            char[] chars = new char[length];
+            for ( int i = 0; i < length; i++ )
+            {
+                chars[i] = (char) ( buffer.get( record + ETAG + i ) & 0xFF );
+            }
+            entityTag = new String( chars );
+        }
+
+        return new Entry( entityTag, buffer.getLong( record + LAST_MODIFIED ), buffer.getLong( record
+            + CONTENT_LENGTH ), buffer.getLong( record + CHECKSUM ) );
+    }
+
+    /**
+     * Stores the validators for the specified URL, evicting an older entry if the table is crowded. Entity tags that
+     * don't fit into a record are dropped.
+     */
+    public synchronized void put( String url, Entry entry )
+    {
+        long hash = hash( url );
+
+        int record = slot( hash, 0 );
+        for ( int probe = 0; probe < MAX_PROBES; probe++ )
+        {
+            int candidate = slot( hash, probe );
+            long key = buffer.getLong( candidate + KEY );
+            if ( key == hash || key == 0 )
+            {
+                record = candidate;
+                break;
+            }
+        }
+
+        String entityTag = entry.getEntityTag();
+        if ( entityTag != null && entityTag.length() > MAX_ETAG_LENGTH )
+        {
+            entityTag = null;
+        }
+
+        int seq = buffer.getInt( record + SEQ );
+        buffer.putInt( record + SEQ, seq | 1 );
+        fence = -1;
+
+        buffer.putLong( record + KEY, hash );
+        buffer.putLong( record + LAST_MODIFIED, entry.getLastModified() );
+        buffer.putLong( record + CONTENT_LENGTH, entry.getContentLength() );
+        buffer.putLong( record + CHECKSUM, entry.getChecksum() );
+        int length = ( entityTag != null ) ? entityTag.length() : 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            buffer.put( record + ETAG + i, (byte) entityTag.charAt( i ) );
+        }
+        buffer.putInt( record + ETAG_LENGTH, length );
+
+        buffer.putInt( record + SEQ, ( seq | 1 ) + 1 );
+        fence = 0;
+    }
+
+    /**
+     * Forgets the validators for the specified URL.
+     */
+    public void remove( String url )
+    {
+        if ( get( url ) != null )
+        {
+            put( url, new Entry( null, 0, -1, -1 ) );
+        }
+    }
+
+}
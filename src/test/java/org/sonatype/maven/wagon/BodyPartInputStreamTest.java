@@ -0,0 +1,251 @@
+package org.sonatype.maven.wagon;
+
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.ning.http.client.HttpResponseBodyPart;
+
+public class BodyPartInputStreamTest
+    extends TestCase
+{
+
+    private static class BodyPart
+        extends HttpResponseBodyPart
+    {
+
+        private final byte[] bytes;
+
+        BodyPart( byte[] bytes )
+        {
+            super( null, null );
+            this.bytes = bytes;
+        }
+
+        @Override
+        public byte[] getBodyPartBytes()
+        {
+            return bytes;
+        }
+
+        @Override
+        public int writeTo( OutputStream outputStream )
+            throws IOException
+        {
+            outputStream.write( bytes );
+            return bytes.length;
+        }
+
+        @Override
+        public ByteBuffer getBodyByteBuffer()
+        {
+            return ByteBuffer.wrap( bytes );
+        }
+
+    }
+
+    /**
+     * Appends body parts from a separate thread like the I/O thread of the client would do.
+     */
+    private static class Producer
+        extends Thread
+    {
+
+        private final BodyPartInputStream stream;
+
+        private final byte[][] parts;
+
+        private final boolean complete;
+
+        volatile int appended;
+
+        volatile boolean accepted = true;
+
+        volatile Throwable error;
+
+        Producer( BodyPartInputStream stream, byte[][] parts, boolean complete )
+        {
+            this.stream = stream;
+            this.parts = parts;
+            this.complete = complete;
+            setDaemon( true );
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                for ( byte[] part : parts )
+                {
+                    accepted = stream.append( new BodyPart( part ) );
+                    appended++;
+                    if ( !accepted )
+                    {
+                        return;
+                    }
+                }
+                if ( complete )
+                {
+                    stream.complete();
+                }
+            }
+            catch ( Throwable t )
+            {
+                error = t;
+            }
+        }
+
+    }
+
+    private static byte[][] newParts( int count, int size )
+    {
+        byte[][] parts = new byte[count][size];
+        for ( int i = 0; i < count; i++ )
+        {
+            Arrays.fill( parts[i], (byte) i );
+        }
+        return parts;
+    }
+
+    private static byte[] readFully( BodyPartInputStream stream )
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        for ( int n; ( n = stream.read( buffer ) ) >= 0; )
+        {
+            out.write( buffer, 0, n );
+        }
+        return out.toByteArray();
+    }
+
+    public void testPartsAreReadInOrder()
+        throws Exception
+    {
+        // NOTE: way more than the capacity of the stream so that the producer has to wait for the reader
+        byte[][] parts = newParts( 100, 8 * 1024 );
+        parts[50] = new byte[0];
+
+        BodyPartInputStream stream = new BodyPartInputStream();
+        Producer producer = new Producer( stream, parts, true );
+        producer.start();
+
+        byte[] content = readFully( stream );
+        producer.join( 10000 );
+
+        assertNull( producer.error );
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for ( byte[] part : parts )
+        {
+            expected.write( part );
+        }
+        assertTrue( Arrays.equals( expected.toByteArray(), content ) );
+        assertEquals( -1, stream.read() );
+    }
+
+    public void testSingleByteReads()
+        throws Exception
+    {
+        BodyPartInputStream stream = new BodyPartInputStream();
+        stream.append( new BodyPart( new byte[] { 1, 2 } ) );
+        stream.append( new BodyPart( new byte[] { (byte) 0xFF } ) );
+        stream.complete();
+
+        assertEquals( 1, stream.read() );
+        assertEquals( 2, stream.read() );
+        assertEquals( 0xFF, stream.read() );
+        assertEquals( -1, stream.read() );
+    }
+
+    public void testEarlyCloseReleasesProducer()
+        throws Exception
+    {
+        BodyPartInputStream stream = new BodyPartInputStream();
+        Producer producer = new Producer( stream, newParts( 100, 8 * 1024 ), false );
+        producer.start();
+
+        assertEquals( 0, stream.read() );
+        stream.close();
+        producer.join( 10000 );
+
+        assertFalse( producer.isAlive() );
+        assertNull( producer.error );
+        assertFalse( producer.accepted );
+        assertTrue( String.valueOf( producer.appended ), producer.appended < 100 );
+        assertFalse( stream.append( new BodyPart( new byte[1] ) ) );
+
+        try
+        {
+            stream.read();
+            fail( "Read from closed stream" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+
+    public void testErrorWakesUpReader()
+        throws Exception
+    {
+        final BodyPartInputStream stream = new BodyPartInputStream();
+        final IOException error = new IOException( "Connection reset" );
+
+        Thread failer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 200 );
+                    stream.append( new BodyPart( new byte[] { 42 } ) );
+                    Thread.sleep( 200 );
+                    stream.setError( error );
+                }
+                catch ( Exception e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            }
+        };
+        failer.setDaemon( true );
+        failer.start();
+
+        assertEquals( 42, stream.read() );
+        try
+        {
+            stream.read();
+            fail( "Error was not propagated to reader" );
+        }
+        catch ( IOException e )
+        {
+            assertSame( error, e.getCause() );
+        }
+        failer.join( 10000 );
+
+        try
+        {
+            stream.available();
+            fail( "Error was not propagated to reader" );
+        }
+        catch ( IOException e )
+        {
+            assertSame( error, e.getCause() );
+        }
+    }
+
+}
@@ -19,18 +19,46 @@
 
 package org.sonatype.maven.wagon.providers.http;
 
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
 import org.apache.maven.wagon.StreamingWagon;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.observers.ChecksumObserver;
 import org.apache.maven.wagon.repository.Repository;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.HttpConnection;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.security.B64Code;
 import org.mortbay.jetty.servlet.Context;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
 import org.sonatype.maven.wagon.AhcWagon;
+import org.sonatype.maven.wagon.UrlUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -92,6 +120,2728 @@ public class AhcHttpWagonTest
         }
     }
 
+    public void testSegmentedGet()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        HeaderRecordingHandler handler = new HeaderRecordingHandler( "Range" );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[100000];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "segmented.bin", content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setSegmentedDownloadThreshold( 10000 );
+        wagon.setDownloadSegments( 3 );
+
+        ChecksumObserver checksumObserver = new ChecksumObserver();
+        wagon.addTransferListener( checksumObserver );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        try
+        {
+            wagon.get( "segmented.bin", destination );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertTrue( Arrays.equals( content, readFile( destination ) ) );
+        assertEquals( md5( content ), checksumObserver.getActualChecksum() );
+        List<String> ranges = new ArrayList<String>( handler.values );
+        Collections.sort( ranges );
+        assertEquals( Arrays.asList( "bytes=10000-39999", "bytes=40000-69999", "bytes=70000-99999" ), ranges );
+        destination.delete();
+    }
+
+    public void testSegmentedGetRequiresValidator()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        byte[] content = new byte[100000];
+        new Random( 0 ).nextBytes( content );
+
+        HeaderRecordingHandler handler = new HeaderRecordingHandler( "Range" );
+        handlers = new Handler[] { handler, new UnvalidatedContentHandler( content ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setSegmentedDownloadThreshold( 10000 );
+        wagon.setDownloadSegments( 3 );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        try
+        {
+            wagon.get( "unvalidated.bin", destination );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertTrue( Arrays.equals( content, readFile( destination ) ) );
+        assertEquals( Collections.emptyList(), handler.values );
+        destination.delete();
+    }
+
+    public void testResumedGet()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        HeaderRecordingHandler handler = new HeaderRecordingHandler( "Range" );
+        HeaderRecordingHandler encodings = new HeaderRecordingHandler( "Accept-Encoding" );
+        handlers = new Handler[] { handler, encodings };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[100000];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "resumed.bin", content );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.delete();
+
+        // simulate an interrupted download whose preallocated part file holds garbage beyond the recorded length
+        File partFile = new File( destination.getPath() + ".part" );
+        byte[] partial = new byte[content.length];
+        System.arraycopy( content, 0, partial, 0, 30000 );
+        OutputStream out = new FileOutputStream( partFile );
+        try
+        {
+            out.write( partial );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        File journalFile = new File( destination.getPath() + ".part.properties" );
+        Properties journal = new Properties();
+        journal.setProperty( "url", UrlUtils.buildUrl( getTestRepositoryUrl(), "resumed.bin" ) );
+        journal.setProperty( "validator", "\"0815\"" );
+        journal.setProperty( "length", "30000" );
+        out = new FileOutputStream( journalFile );
+        try
+        {
+            journal.store( out, null );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+
+        ChecksumObserver checksumObserver = new ChecksumObserver();
+        wagon.addTransferListener( checksumObserver );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.get( "resumed.bin", destination );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertTrue( Arrays.equals( content, readFile( destination ) ) );
+        assertEquals( md5( content ), checksumObserver.getActualChecksum() );
+        assertEquals( Arrays.asList( "bytes=30000-" ), handler.values );
+        assertEquals( Arrays.asList( "identity" ), encodings.values );
+        assertFalse( partFile.exists() );
+        assertFalse( journalFile.exists() );
+        destination.delete();
+    }
+
+    public void testConditionalGetIfNewer()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        HeaderRecordingHandler handler = new HeaderRecordingHandler( "If-Modified-Since" );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "metadata.xml", new byte[1000] );
+        long timestamp = new File( getRepositoryPath(), "metadata.xml" ).lastModified() + 60000;
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+
+        ChecksumObserver checksumObserver = new ChecksumObserver();
+        wagon.addTransferListener( checksumObserver );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            assertFalse( wagon.getIfNewer( "metadata.xml", destination, timestamp ) );
+            assertFalse( wagon.getIfNewerToStream( "metadata.xml", out, timestamp ) );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 2, handler.values.size() );
+        assertEquals( 0, destination.length() );
+        assertEquals( 0, out.size() );
+        assertNull( checksumObserver.getActualChecksum() );
+        destination.delete();
+    }
+
+    public void testConditionalGetWithStoredEntityTag()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        EntityTagHandler handler = new EntityTagHandler( "\"v1\"" );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "tagged.xml", new byte[1000] );
+
+        File store = File.createTempFile( "wagon-test-" + getName(), ".idx" );
+        store.deleteOnExit();
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setValidatorStore( store );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        try
+        {
+            wagon.get( "tagged.xml", destination );
+
+            // the timestamp alone would ask for the resource to be transferred again
+            assertFalse( wagon.getIfNewer( "tagged.xml", destination, 1 ) );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( Arrays.asList( "\"v1\"" ), handler.values );
+        assertTrue( store.length() > 0 );
+        destination.delete();
+    }
+
+    public void testCachedGet()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        CacheControlHandler handler = new CacheControlHandler( "max-age=3600" );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[10000];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "cached.bin", content );
+
+        File cacheDirectory = new File( getBasedir(), "target/test-output/" + getName() );
+        FileUtils.deleteDirectory( cacheDirectory );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setUseCache( true );
+        wagon.setCacheDirectory( cacheDirectory );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination1 = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination1.deleteOnExit();
+        File destination2 = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination2.deleteOnExit();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            wagon.get( "cached.bin", destination1 );
+            wagon.get( "cached.bin", destination2 );
+            wagon.getToStream( "cached.bin", out );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 1, handler.requests );
+        assertTrue( Arrays.equals( content, readFile( destination1 ) ) );
+        assertTrue( Arrays.equals( content, readFile( destination2 ) ) );
+        assertTrue( Arrays.equals( content, out.toByteArray() ) );
+        destination1.delete();
+        destination2.delete();
+    }
+
+    public void testPrivateResponseNotCached()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        CacheControlHandler handler = new CacheControlHandler( "private, max-age=3600" );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "private.bin", new byte[1000] );
+
+        File cacheDirectory = new File( getBasedir(), "target/test-output/" + getName() );
+        FileUtils.deleteDirectory( cacheDirectory );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setUseCache( true );
+        wagon.setCacheDirectory( cacheDirectory );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        try
+        {
+            wagon.get( "private.bin", destination );
+            wagon.getToStream( "private.bin", new ByteArrayOutputStream() );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 2, handler.requests );
+        destination.delete();
+    }
+
+    public void testAuthenticatedResponseNotCachedUnlessPublic()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        BasicAuthHandler handler = new BasicAuthHandler( "user:secret" );
+        CacheControlHandler cacheControl = new CacheControlHandler( "max-age=3600" );
+        handlers = new Handler[] { handler, cacheControl };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "secret.bin", new byte[1000] );
+        writeRepositoryFile( "public.bin", new byte[1000] );
+
+        File cacheDirectory = new File( getBasedir(), "target/test-output/" + getName() );
+        FileUtils.deleteDirectory( cacheDirectory );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setUseCache( true );
+        wagon.setCacheDirectory( cacheDirectory );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ), newAuthenticationInfo( "user", "secret" ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        try
+        {
+            wagon.get( "secret.bin", destination );
+            wagon.getToStream( "secret.bin", new ByteArrayOutputStream() );
+            assertEquals( 2, handler.accepted );
+
+            cacheControl.cacheControl = "public, max-age=3600";
+            wagon.get( "public.bin", destination );
+            wagon.getToStream( "public.bin", new ByteArrayOutputStream() );
+            assertEquals( 3, handler.accepted );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        destination.delete();
+    }
+
+    public void testMemoryCachedGet()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        CacheControlHandler handler = new CacheControlHandler( "no-store" );
+        handlers = new Handler[] { handler, new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "maven-metadata.xml", "<metadata>1</metadata>".getBytes( "UTF-8" ) );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setMemoryCacheTtl( 60000 );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+
+        try
+        {
+            wagon.getToStream( "maven-metadata.xml", out1 );
+            wagon.get( "maven-metadata.xml", destination );
+            assertEquals( 1, handler.requests );
+
+            File source = File.createTempFile( "wagon-test-" + getName(), ".xml" );
+            source.deleteOnExit();
+            FileUtils.fileWrite( source.getAbsolutePath(), "UTF-8", "<metadata>2</metadata>" );
+            wagon.put( source, "maven-metadata.xml" );
+            source.delete();
+
+            wagon.getToStream( "maven-metadata.xml", out2 );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( "<metadata>1</metadata>", out1.toString( "UTF-8" ) );
+        assertEquals( "<metadata>1</metadata>", FileUtils.fileRead( destination, "UTF-8" ) );
+        assertEquals( "<metadata>2</metadata>", out2.toString( "UTF-8" ) );
+        destination.delete();
+    }
+
+    public void testMemoryCacheSeparatesCredentials()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        BasicAuthHandler handler = new BasicAuthHandler( "user:secret", "deployer:secret" );
+        handlers =
+            new Handler[] { handler, new CacheControlHandler( "no-store" ), new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "maven-metadata.xml", "<metadata>1</metadata>".getBytes( "UTF-8" ) );
+
+        AhcWagon user = (AhcWagon) getWagon();
+        user.setMemoryCacheTtl( 60000 );
+        user.connect( new Repository( "id", getTestRepositoryUrl() ), newAuthenticationInfo( "user", "secret" ) );
+
+        AhcWagon intruder = (AhcWagon) getWagon();
+        intruder.setMemoryCacheTtl( 60000 );
+        intruder.connect( new Repository( "id", getTestRepositoryUrl() ), newAuthenticationInfo( "user", "wrong" ) );
+
+        AhcWagon deployer = (AhcWagon) getWagon();
+        deployer.setMemoryCacheTtl( 60000 );
+        deployer.connect( new Repository( "id", getTestRepositoryUrl() ),
+                          newAuthenticationInfo( "deployer", "secret" ) );
+
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            user.getToStream( "maven-metadata.xml", out );
+            assertEquals( "<metadata>1</metadata>", out.toString( "UTF-8" ) );
+            assertEquals( 1, handler.accepted );
+
+            // the same user name with a wrong password doesn't get the cached body
+            try
+            {
+                intruder.getToStream( "maven-metadata.xml", new ByteArrayOutputStream() );
+                fail( "Wrong password should have been rejected" );
+            }
+            catch ( AuthorizationException e )
+            {
+                assertEquals( 1, handler.accepted );
+            }
+
+            // a deploy by another user evicts the body cached for the first one
+            File source = File.createTempFile( "wagon-test-" + getName(), ".xml" );
+            source.deleteOnExit();
+            FileUtils.fileWrite( source.getAbsolutePath(), "UTF-8", "<metadata>2</metadata>" );
+            deployer.put( source, "maven-metadata.xml" );
+            source.delete();
+
+            out = new ByteArrayOutputStream();
+            user.getToStream( "maven-metadata.xml", out );
+            assertEquals( "<metadata>2</metadata>", out.toString( "UTF-8" ) );
+        }
+        finally
+        {
+            user.disconnect();
+            intruder.disconnect();
+            deployer.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    private static AuthenticationInfo newAuthenticationInfo( String username, String password )
+    {
+        AuthenticationInfo authInfo = new AuthenticationInfo();
+        authInfo.setUserName( username );
+        authInfo.setPassword( password );
+        return authInfo;
+    }
+
+    public void testNotFoundCache()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        CacheControlHandler handler = new CacheControlHandler( "no-store" );
+        handlers = new Handler[] { handler, new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setNotFoundCacheTtl( 60000 );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+
+        try
+        {
+            assertFalse( wagon.resourceExists( "missing.txt" ) );
+            assertFalse( wagon.resourceExists( "missing.txt" ) );
+            try
+            {
+                wagon.get( "missing.txt", destination );
+                fail( "Missing resource was downloaded" );
+            }
+            catch ( ResourceDoesNotExistException e )
+            {
+                // expected
+                assertTrue( true );
+            }
+            assertEquals( 1, handler.requests );
+
+            File source = File.createTempFile( "wagon-test-" + getName(), ".txt" );
+            source.deleteOnExit();
+            FileUtils.fileWrite( source.getAbsolutePath(), "UTF-8", "deployed" );
+            wagon.put( source, "missing.txt" );
+            source.delete();
+
+            assertTrue( wagon.resourceExists( "missing.txt" ) );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        destination.delete();
+    }
+
+    public void testCoalescedGet()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        final DelayingHandler handler = new DelayingHandler( 1000 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        // large enough to spill over into a temporary file
+        byte[] content = new byte[200 * 1024 + 17];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "shared.jar", content );
+
+        final AhcWagon wagon1 = (AhcWagon) getWagon();
+        wagon1.setCoalesceRequests( true );
+        wagon1.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        final AhcWagon wagon2 = (AhcWagon) getWagon();
+        wagon2.setCoalesceRequests( true );
+        wagon2.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        final File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.deleteOnExit();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+
+        try
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        wagon1.getToStream( "shared.jar", out );
+                    }
+                    catch ( Throwable e )
+                    {
+                        errors.add( e );
+                    }
+                }
+            };
+            thread.start();
+
+            while ( handler.requests <= 0 )
+            {
+                Thread.sleep( 10 );
+            }
+
+            wagon2.get( "shared.jar", destination );
+
+            thread.join();
+        }
+        finally
+        {
+            wagon1.disconnect();
+
+            wagon2.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( Collections.emptyList(), errors );
+        assertEquals( 1, handler.requests );
+        assertTrue( Arrays.equals( content, out.toByteArray() ) );
+        assertTrue( Arrays.equals( content, FileUtils.fileRead( destination, "ISO-8859-1" ).getBytes( "ISO-8859-1" ) ) );
+        destination.delete();
+    }
+
+    public void testSharedClient()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        RemotePortHandler handler = new RemotePortHandler();
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            AhcWagon wagon = (AhcWagon) getWagon();
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+            wagon.getToStream( "test.txt", out );
+            wagon.disconnect();
+
+            // the second wagon borrows the lingering client of the first one along with its pooled connection
+            wagon = (AhcWagon) getWagon();
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+            wagon.getToStream( "test.txt", out );
+            wagon.disconnect();
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 2, handler.ports.size() );
+        assertEquals( handler.ports.get( 0 ), handler.ports.get( 1 ) );
+    }
+
+    public void testStreamedPutOfUnknownLength()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        HeaderRecordingHandler handler = new HeaderRecordingHandler( "Transfer-Encoding" );
+        handlers = new Handler[] { handler, new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[1024 * 1024 + 17];
+        new Random( 0 ).nextBytes( content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.putFromStream( new ByteArrayInputStream( content ), "streamed.bin" );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        File file = new File( getRepositoryPath(), "streamed.bin" );
+        assertEquals( Arrays.asList( "chunked" ), handler.values );
+        assertTrue( Arrays.equals( content, FileUtils.fileRead( file, "ISO-8859-1" ).getBytes( "ISO-8859-1" ) ) );
+        file.delete();
+    }
+
+    public void testSpilledPutReplayedAfterChallenge()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        ChallengingHandler handler = new ChallengingHandler();
+        handlers = new Handler[] { handler, new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[100 * 1024 + 17];
+        new Random( 0 ).nextBytes( content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setPutBufferSize( 1024 );
+
+        AuthenticationInfo authInfo = new AuthenticationInfo();
+        authInfo.setUserName( "user" );
+        authInfo.setPassword( "secret" );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ), authInfo );
+
+        try
+        {
+            wagon.putFromStream( new ByteArrayInputStream( content ), "buffered.bin" );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        File file = new File( getRepositoryPath(), "buffered.bin" );
+        assertEquals( 1, handler.challenges );
+        assertTrue( Arrays.equals( content, FileUtils.fileRead( file, "ISO-8859-1" ).getBytes( "ISO-8859-1" ) ) );
+        file.delete();
+    }
+
+    public void testExpectContinuePutAfterChallenge()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        ChallengingHandler handler = new ChallengingHandler();
+        HeaderRecordingHandler expectations = new HeaderRecordingHandler( "Expect" );
+        handlers = new Handler[] { handler, expectations, new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[100 * 1024 + 17];
+        new Random( 0 ).nextBytes( content );
+
+        File source = File.createTempFile( "wagon-ahc-", ".bin" );
+        writeFile( source, content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setExpectContinue( true );
+
+        AuthenticationInfo authInfo = new AuthenticationInfo();
+        authInfo.setUserName( "user" );
+        authInfo.setPassword( "secret" );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ), authInfo );
+
+        try
+        {
+            wagon.put( source, "expected.bin" );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+
+            source.delete();
+        }
+
+        File file = new File( getRepositoryPath(), "expected.bin" );
+        assertEquals( 1, handler.challenges );
+        assertEquals( Arrays.asList( "100-continue", "100-continue" ), expectations.values );
+        assertTrue( Arrays.equals( content, readFile( file ) ) );
+        file.delete();
+    }
+
+    public void testExpectContinueTimeout()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        // the server only confirms the expectation once the handler reads the body, i.e. after the delay
+        handlers = new Handler[] { new DelayingHandler( 1000 ), new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[256 * 1024 + 17];
+        new Random( 0 ).nextBytes( content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setExpectContinue( true );
+        wagon.setExpectContinueTimeout( 100 );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.putFromStream( new ByteArrayInputStream( content ), "expected.bin" );
+            wagon.putFromStream( new ByteArrayInputStream( content ), "expected2.bin" );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        File file = new File( getRepositoryPath(), "expected.bin" );
+        assertTrue( Arrays.equals( content, readFile( file ) ) );
+        file.delete();
+        file = new File( getRepositoryPath(), "expected2.bin" );
+        assertTrue( Arrays.equals( content, readFile( file ) ) );
+        file.delete();
+    }
+
+    public void testPreemptiveBasicAuthAcrossWagons()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        ChallengingHandler handler = new ChallengingHandler();
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        AuthenticationInfo authInfo = new AuthenticationInfo();
+        authInfo.setUserName( "user" );
+        authInfo.setPassword( "secret" );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            for ( int i = 0; i < 2; i++ )
+            {
+                AhcWagon wagon = (AhcWagon) getWagon();
+                wagon.connect( new Repository( "id", getTestRepositoryUrl() ), authInfo );
+                wagon.getToStream( "test.txt", out );
+                wagon.disconnect();
+            }
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 1, handler.challenges );
+        assertEquals( "testtest", out.toString( "UTF-8" ) );
+    }
+
+    public void testPreemptiveDigestAuthCountsNonce()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        DigestChallengingHandler handler = new DigestChallengingHandler( "user", "secret" );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        AuthenticationInfo authInfo = new AuthenticationInfo();
+        authInfo.setUserName( "user" );
+        authInfo.setPassword( "secret" );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            AhcWagon wagon = (AhcWagon) getWagon();
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ), authInfo );
+            wagon.getToStream( "test.txt", out );
+            wagon.getToStream( "test.txt", out );
+            wagon.disconnect();
+
+            wagon = (AhcWagon) getWagon();
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ), authInfo );
+            wagon.getToStream( "test.txt", out );
+            wagon.disconnect();
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 1, handler.challenges );
+        assertEquals( Arrays.asList( "00000001", "00000002", "00000003" ), handler.nonceCounts );
+        assertEquals( "testtesttest", out.toString( "UTF-8" ) );
+    }
+
+    public void testPreemptiveAuthNotSentAcrossRedirect()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        CrossOriginRedirectHandler handler = new CrossOriginRedirectHandler();
+        handlers = new Handler[] { handler };
+        contexts = new Context[] {};
+        connectors = new Connector[] { newHttpConnector(), newHttpConnector() };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        handler.foreignPort = server.getConnectors()[0].getLocalPort();
+
+        AuthenticationInfo authInfo = new AuthenticationInfo();
+        authInfo.setUserName( "user" );
+        authInfo.setPassword( "secret" );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            AhcWagon wagon = (AhcWagon) getWagon();
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ), authInfo );
+            // the second request carries the cached credentials right away
+            wagon.getToStream( "first.txt", out );
+            wagon.getToStream( "second.txt", out );
+            wagon.disconnect();
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( "PASSEDPASSED", out.toString( "UTF-8" ) );
+        assertEquals( 1, handler.challenges );
+        assertEquals( Arrays.asList( null, null ), handler.foreignAuthorizations );
+    }
+
+    public void testConnectionsPerHostLimit()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        final ConcurrencyHandler handler = new ConcurrencyHandler( 200 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        try
+        {
+            wagon.setMaxConnectionsPerHost( 1 );
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+            // the client might linger from a previous test with equal settings
+            long requests = wagon.getConnectionStatistics().getRequests();
+
+            Thread[] threads = new Thread[3];
+            for ( int i = 0; i < threads.length; i++ )
+            {
+                // wagons with equal settings share the client and hence its limits
+                final AhcWagon w = (AhcWagon) getWagon();
+                w.setMaxConnectionsPerHost( 1 );
+                threads[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            w.connect( new Repository( "id", getTestRepositoryUrl() ) );
+                            try
+                            {
+                                w.getToStream( "test.txt", new ByteArrayOutputStream() );
+                            }
+                            finally
+                            {
+                                w.disconnect();
+                            }
+                        }
+                        catch ( Throwable e )
+                        {
+                            errors.add( e );
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+
+            assertEquals( requests + 3, wagon.getConnectionStatistics().getRequests() );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( Collections.emptyList(), errors );
+        assertEquals( 3, handler.requests );
+        assertEquals( 1, handler.maxConcurrency );
+    }
+
+    public void testQueuedRequestTimesOut()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        final ConcurrencyHandler handler = new ConcurrencyHandler( 600 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+
+        try
+        {
+            Thread[] threads = new Thread[3];
+            for ( int i = 0; i < threads.length; i++ )
+            {
+                // two requests are served in turn within the timeout, the third one runs out of time in the queue
+                final AhcWagon w = (AhcWagon) getWagon();
+                w.setMaxConnectionsPerHost( 1 );
+                w.setReadTimeout( 1000 );
+                w.setHeaderTimeout( 5000 );
+                w.setMaxRetries( 0 );
+                threads[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            w.connect( new Repository( "id", getTestRepositoryUrl() ) );
+                            try
+                            {
+                                w.getToStream( "test.txt", new ByteArrayOutputStream() );
+                            }
+                            finally
+                            {
+                                w.disconnect();
+                            }
+                        }
+                        catch ( Throwable e )
+                        {
+                            errors.add( e );
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 1, errors.size() );
+        String messages = "";
+        for ( Throwable e = errors.get( 0 ); e != null; e = e.getCause() )
+        {
+            messages += e.getMessage() + "\n";
+        }
+        assertTrue( messages, messages.contains( "Timed out waiting for a connection" ) );
+        assertEquals( 2, handler.requests );
+        assertEquals( 1, handler.maxConcurrency );
+    }
+
+    public void testConnectionLifetime()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        RemotePortHandler handler = new RemotePortHandler();
+        handlers = new Handler[] { new DelayingHandler( 50 ), handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setMaxConnectionLifetime( 1 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.getToStream( "test.txt", new ByteArrayOutputStream() );
+            wagon.getToStream( "test.txt", new ByteArrayOutputStream() );
+
+            assertEquals( 2, wagon.getConnectionStatistics().getExpiredConnections() );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 2, handler.ports.size() );
+        assertFalse( handler.ports.get( 0 ).equals( handler.ports.get( 1 ) ) );
+    }
+
+    public void testPrewarmConnections()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        RemotePortHandler handler = new RemotePortHandler();
+        handlers = new Handler[] { new DelayingHandler( 200 ), handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "test.txt", "test".getBytes( "UTF-8" ) );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setPrewarmConnections( 2 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            for ( int i = 0; i < 100
+                && ( handler.ports.size() < 2 || wagon.getConnectionStatistics().getActiveRequests() > 0 ); i++ )
+            {
+                Thread.sleep( 50 );
+            }
+            assertEquals( 2, handler.ports.size() );
+            assertEquals( 2, new HashSet<Integer>( handler.ports ).size() );
+
+            wagon.getToStream( "test.txt", new ByteArrayOutputStream() );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 3, handler.ports.size() );
+        assertTrue( handler.ports.subList( 0, 2 ).contains( handler.ports.get( 2 ) ) );
+    }
+
+    public void testTransferTimeout()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        handlers = new Handler[] { new TricklingHandler( 10, 16 * 1024, 100 ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        try
+        {
+            // data keeps flowing, so the transfer may well outlive the read timeout
+            AhcWagon wagon = (AhcWagon) getWagon();
+            wagon.setReadTimeout( 300 );
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+            try
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                wagon.getToStream( "trickle.bin", out );
+                assertEquals( 10 * 16 * 1024, out.size() );
+            }
+            finally
+            {
+                wagon.disconnect();
+            }
+
+            wagon = (AhcWagon) getWagon();
+            wagon.setTransferTimeout( 300 );
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+            try
+            {
+                wagon.getToStream( "trickle.bin", new ByteArrayOutputStream() );
+                fail( "Transfer should have timed out" );
+            }
+            catch ( TransferFailedException e )
+            {
+                // depending on when the deadline hits, the timeout is reported directly or as cause of a failed copy
+                Throwable cause = e;
+                while ( cause.getCause() != null && !String.valueOf( cause.getMessage() ).contains( "300 ms" ) )
+                {
+                    cause = cause.getCause();
+                }
+                assertTrue( e.getMessage(), String.valueOf( cause.getMessage() ).contains( "300 ms" ) );
+            }
+            finally
+            {
+                wagon.disconnect();
+            }
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    public void testSlowReaderThrottlesDownload()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        final CountingHandler handler = new CountingHandler( 512, 64 * 1024 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        final long[] lead = new long[1];
+        final long[] received = new long[1];
+        OutputStream out = new OutputStream()
+        {
+
+            @Override
+            public void write( int b )
+            {
+                write( new byte[] { (byte) b }, 0, 1 );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len )
+            {
+                received[0] += len;
+                if ( received[0] >= 1024 * 1024 && lead[0] == 0 )
+                {
+                    try
+                    {
+                        // give the server plenty of time to run ahead if nothing held it back
+                        Thread.sleep( 1000 );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        throw new IllegalStateException( e );
+                    }
+                    lead[0] = handler.written - received[0];
+                }
+            }
+
+        };
+
+        try
+        {
+            wagon.getToStream( "large.bin", out );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 512L * 64 * 1024, received[0] );
+        // NOTE: besides the buffer of the stream, the socket buffers of client and server hold data in flight
+        assertTrue( "Server ran ahead by " + lead[0] + " bytes", lead[0] > 0 && lead[0] < 16 * 1024 * 1024 );
+    }
+
+    public void testFailedGetKeepsDestination()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        TruncatingHandler handler = new TruncatingHandler( 100000, 50000 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        File directory = new File( getBasedir(), "target/test-output/" + getName() );
+        FileUtils.deleteDirectory( directory );
+        directory.mkdirs();
+        File destination = new File( directory, "truncated.bin" );
+        FileUtils.fileWrite( destination.getAbsolutePath(), "UTF-8", "original" );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.get( "truncated.bin", destination );
+            fail( "Truncated response was accepted" );
+        }
+        catch ( TransferFailedException e )
+        {
+            // expected
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertTrue( handler.requests > 0 );
+        assertEquals( "original", FileUtils.fileRead( destination, "UTF-8" ) );
+        // NOTE: without a validator, the partial download can't be resumed and must not be kept either
+        assertEquals( Arrays.asList( destination.getName() ), Arrays.asList( directory.list() ) );
+        FileUtils.deleteDirectory( directory );
+    }
+
+    public void testEncodedGetNotJournaled()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        byte[] content = new byte[100000];
+        new Random( 0 ).nextBytes( content );
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream( gzipped );
+        gzip.write( content );
+        gzip.close();
+
+        EncodedTruncatingHandler handler = new EncodedTruncatingHandler( gzipped.toByteArray() );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        File directory = new File( getBasedir(), "target/test-output/" + getName() );
+        FileUtils.deleteDirectory( directory );
+        directory.mkdirs();
+        File destination = new File( directory, "encoded.bin" );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.get( "encoded.bin", destination );
+            fail( "Truncated response was accepted" );
+        }
+        catch ( TransferFailedException e )
+        {
+            // expected
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertTrue( handler.requests > 0 );
+        // NOTE: the decompressed bytes can't be resumed by a range of the compressed entity
+        assertEquals( Collections.emptyList(), Arrays.asList( directory.list() ) );
+        FileUtils.deleteDirectory( directory );
+    }
+
+    public void testStalledGetResumed()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        HeaderRecordingHandler handler = new HeaderRecordingHandler( "Range" );
+        handlers = new Handler[] { handler, new StallingHandler( getRepositoryPath(), 50000, 3000 ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[100000];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "stalled.bin", content );
+
+        File destination = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        destination.delete();
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setMinThroughput( 1000 );
+        wagon.setMinThroughputPeriod( 200 );
+
+        ChecksumObserver checksumObserver = new ChecksumObserver();
+        wagon.addTransferListener( checksumObserver );
+
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            wagon.get( "stalled.bin", destination );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertTrue( Arrays.equals( content, readFile( destination ) ) );
+        assertEquals( md5( content ), checksumObserver.getActualChecksum() );
+        // NOTE: the exact offset depends on how much of the sent data made it to the client before the stall
+        assertEquals( 1, handler.values.size() );
+        assertTrue( handler.values.get( 0 ), handler.values.get( 0 ).matches( "bytes=[1-9][0-9]*-" ) );
+        assertFalse( new File( destination.getPath() + ".part" ).exists() );
+        destination.delete();
+    }
+
+    public void testHeaderTimeoutCancelsRequest()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        handlers = new Handler[] { new DelayingHandler( 3000 ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        writeRepositoryFile( "slow.bin", new byte[1024] );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setReadTimeout( 10000 );
+        wagon.setHeaderTimeout( 300 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                wagon.getToStream( "slow.bin", new ByteArrayOutputStream() );
+                fail( "Request should have timed out" );
+            }
+            catch ( TransferFailedException e )
+            {
+                assertTrue( e.getMessage(), e.getMessage().contains( "300 ms" ) );
+            }
+            assertTrue( System.currentTimeMillis() - start < 2000 );
+
+            // the connection is closed right away rather than once the server responds
+            for ( int i = 0; i < 100 && wagon.getConnectionStatistics().getOpenConnections() > 0; i++ )
+            {
+                Thread.sleep( 10 );
+            }
+            assertEquals( 0, wagon.getConnectionStatistics().getOpenConnections() );
+            assertEquals( 0, wagon.getConnectionStatistics().getActiveRequests() );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    public void testTransientFailuresRetried()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        FlakyHandler handler = new FlakyHandler( HttpServletResponse.SC_BAD_GATEWAY );
+        handlers = new Handler[] { handler, new PutHandler( getRepositoryPath() ) };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[4096];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "flaky.bin", content );
+
+        File source = File.createTempFile( "wagon-test-" + getName(), ".tmp" );
+        writeFile( source, content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setRetryBackoff( 10 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            handler.failures = 2;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            wagon.getToStream( "flaky.bin", out );
+            assertTrue( Arrays.equals( content, out.toByteArray() ) );
+
+            handler.failures = 2;
+            assertTrue( wagon.resourceExists( "flaky.bin" ) );
+
+            handler.failures = 2;
+            wagon.put( source, "flaky-put.bin" );
+            assertTrue( Arrays.equals( content, readFile( new File( getRepositoryPath(), "flaky-put.bin" ) ) ) );
+
+            handler.failures = 3;
+            try
+            {
+                wagon.getToStream( "flaky.bin", new ByteArrayOutputStream() );
+                fail( "Retries should have been exhausted" );
+            }
+            catch ( TransferFailedException e )
+            {
+                assertEquals( 0, handler.failures );
+            }
+        }
+        finally
+        {
+            wagon.disconnect();
+        }
+
+        // with the budget used up, failures are reported right away
+        wagon = (AhcWagon) getWagon();
+        wagon.setRetryBackoff( 10 );
+        wagon.setRetryBudgetReserve( 1 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            handler.failures = 1;
+            assertTrue( wagon.resourceExists( "flaky.bin" ) );
+
+            handler.failures = 1;
+            try
+            {
+                wagon.resourceExists( "flaky.bin" );
+                fail( "Retry budget should have been exhausted" );
+            }
+            catch ( TransferFailedException e )
+            {
+                assertTrue( e.getMessage(), e.getMessage().contains( "502" ) );
+            }
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+
+            source.delete();
+        }
+    }
+
+    public void testMalformedRetryStatusCodes()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setRetryStatusCodes( "502, 5O3" );
+
+        try
+        {
+            wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+            fail( "Malformed status code should have been rejected" );
+        }
+        catch ( ConnectionException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "'5O3'" ) );
+            assertTrue( e.getMessage(), e.getMessage().contains( "retryStatusCodes" ) );
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    public void testServerLoadHonored()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        FlakyHandler flaky = new FlakyHandler( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+        final SheddingHandler shedding = new SheddingHandler( 2 );
+        handlers = new Handler[] { flaky, shedding };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        final byte[] content = new byte[4096];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "load.bin", content );
+
+        final AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setRetryBackoff( 10 );
+        wagon.setMaxRetries( 10 );
+        wagon.setAdaptiveMaxConcurrency( 8 );
+        wagon.setMaxConnectionsPerHost( 8 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            // the retry waits for the time requested by the server rather than the (much shorter) backoff
+            flaky.failures = 1;
+            flaky.retryAfter = "1";
+            long start = System.currentTimeMillis();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            wagon.getToStream( "load.bin", out );
+            assertTrue( Arrays.equals( content, out.toByteArray() ) );
+            assertTrue( System.currentTimeMillis() - start >= 900 );
+
+            // a burst beyond the capacity of the server backs off instead of failing
+            final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+            Thread[] threads = new Thread[8];
+            for ( int i = 0; i < threads.length; i++ )
+            {
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            wagon.getToStream( "load.bin", out );
+                            assertTrue( Arrays.equals( content, out.toByteArray() ) );
+                        }
+                        catch ( Throwable e )
+                        {
+                            errors.add( e );
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+
+            assertEquals( errors.toString(), 0, errors.size() );
+            synchronized ( shedding )
+            {
+                assertTrue( shedding.shed > 0 );
+            }
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    public void testMirrorFailover()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        HostHandler hosts = new HostHandler();
+        FlakyHandler flaky = new FlakyHandler( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+        handlers = new Handler[] { hosts, flaky };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[4096];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "mirrored.bin", content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setMaxRetries( 0 );
+        wagon.setMirrors( getProtocol() + "://127.0.0.1:" + getLocalPort() );
+        wagon.setMirrorProbeInterval( 1000 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            // the server error of the repository is hidden by the mirror
+            flaky.failures = 1;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            wagon.getToStream( "mirrored.bin", out );
+            assertTrue( Arrays.equals( content, out.toByteArray() ) );
+            assertEquals( Arrays.asList( "localhost/mirrored.bin", "127.0.0.1/mirrored.bin" ), hosts.requests );
+
+            // the failed repository stays out of rotation until a probe finds it healthy again
+            hosts.requests.clear();
+            assertTrue( wagon.resourceExists( "mirrored.bin" ) );
+            assertEquals( Arrays.asList( "127.0.0.1/mirrored.bin" ), hosts.requests );
+
+            Thread.sleep( 1100 );
+            assertTrue( wagon.resourceExists( "mirrored.bin" ) );
+            for ( int i = 0; i < 50 && !hosts.requests.contains( "localhost/" ); i++ )
+            {
+                Thread.sleep( 100 );
+            }
+            assertTrue( hosts.requests.toString(), hosts.requests.contains( "localhost/" ) );
+            Thread.sleep( 100 );
+
+            hosts.requests.clear();
+            assertTrue( wagon.resourceExists( "mirrored.bin" ) );
+            assertEquals( Arrays.asList( "localhost/mirrored.bin" ), hosts.requests );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    public void testHedgedRequests()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        SlowFirstHandler handler = new SlowFirstHandler( 3000 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[4096];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "hedged.bin", content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setHedgePercentile( 90 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            // learn the usual response time first
+            for ( int i = 0; i < 30; i++ )
+            {
+                assertTrue( wagon.resourceExists( "hedged.bin" ) );
+            }
+
+            // the hedge gets answered while the server still holds the original request
+            handler.stalls = 1;
+            int requests = handler.requests;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            wagon.getToStream( "hedged.bin", out );
+            assertTrue( Arrays.equals( content, out.toByteArray() ) );
+            assertEquals( requests + 2, handler.requests );
+            assertEquals( 1, handler.stalling );
+            handler.awaitStalls();
+
+            handler.stalls = 1;
+            requests = handler.requests;
+            assertTrue( wagon.resourceExists( "hedged.bin" ) );
+            assertEquals( requests + 2, handler.requests );
+            assertEquals( 1, handler.stalling );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    public void testHedgeSkippedWithoutFreeConnection()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        SlowFirstHandler handler = new SlowFirstHandler( 1000 );
+        handlers = new Handler[] { handler };
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        byte[] content = new byte[4096];
+        new Random( 0 ).nextBytes( content );
+        writeRepositoryFile( "hedged.bin", content );
+
+        AhcWagon wagon = (AhcWagon) getWagon();
+        wagon.setHedgePercentile( 90 );
+        wagon.setMaxConnectionsPerHost( 1 );
+        wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+
+        try
+        {
+            for ( int i = 0; i < 30; i++ )
+            {
+                assertTrue( wagon.resourceExists( "hedged.bin" ) );
+            }
+
+            // the only connection is taken by the original request, which is left to finish
+            handler.stalls = 1;
+            int requests = handler.requests;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            wagon.getToStream( "hedged.bin", out );
+            assertTrue( Arrays.equals( content, out.toByteArray() ) );
+            assertEquals( requests + 1, handler.requests );
+            assertEquals( 0, handler.stalling );
+            assertEquals( 0, wagon.getConnectionStatistics().getWaitingRequests() );
+
+            handler.stalls = 1;
+            requests = handler.requests;
+            assertTrue( wagon.resourceExists( "hedged.bin" ) );
+            assertEquals( requests + 1, handler.requests );
+            assertEquals( 0, handler.stalling );
+        }
+        finally
+        {
+            wagon.disconnect();
+
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+    }
+
+    private void writeRepositoryFile( String name, byte[] content )
+        throws IOException
+    {
+        writeFile( new File( getRepositoryPath(), name ), content );
+    }
+
+    private static void writeFile( File file, byte[] content )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+    private static byte[] readFile( File file )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            return IOUtil.toByteArray( in );
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    private static String md5( byte[] content )
+        throws Exception
+    {
+        StringBuilder buffer = new StringBuilder();
+        for ( byte b : MessageDigest.getInstance( "MD5" ).digest( content ) )
+        {
+            buffer.append( Integer.toHexString( ( b & 0xFF ) | 0x100 ).substring( 1 ) );
+        }
+        return buffer.toString();
+    }
+
+    private static class HeaderRecordingHandler
+        extends AbstractHandler
+    {
+
+        final String name;
+
+        final List<String> values = Collections.synchronizedList( new ArrayList<String>() );
+
+        HeaderRecordingHandler( String name )
+        {
+            this.name = name;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            if ( request.getHeader( name ) != null )
+            {
+                values.add( request.getHeader( name ) );
+            }
+        }
+    }
+
+    private static class EntityTagHandler
+        extends AbstractHandler
+    {
+
+        final String entityTag;
+
+        final List<String> values = Collections.synchronizedList( new ArrayList<String>() );
+
+        EntityTagHandler( String entityTag )
+        {
+            this.entityTag = entityTag;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            String ifNoneMatch = request.getHeader( "If-None-Match" );
+            if ( ifNoneMatch != null )
+            {
+                values.add( ifNoneMatch );
+            }
+
+            response.setHeader( "ETag", entityTag );
+            if ( entityTag.equals( ifNoneMatch ) )
+            {
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                ( (Request) request ).setHandled( true );
+            }
+        }
+    }
+
+    private static class CacheControlHandler
+        extends AbstractHandler
+    {
+
+        volatile String cacheControl;
+
+        volatile int requests;
+
+        CacheControlHandler( String cacheControl )
+        {
+            this.cacheControl = cacheControl;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            requests++;
+            response.setHeader( "Cache-Control", cacheControl );
+        }
+    }
+
+    private static class BasicAuthHandler
+        extends AbstractHandler
+    {
+
+        final Set<String> authorizations = new HashSet<String>();
+
+        volatile int accepted;
+
+        BasicAuthHandler( String... credentials )
+            throws IOException
+        {
+            for ( String credential : credentials )
+            {
+                authorizations.add( "Basic " + B64Code.encode( credential, "ISO-8859-1" ) );
+            }
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            if ( !authorizations.contains( request.getHeader( "Authorization" ) ) )
+            {
+                response.setHeader( "WWW-Authenticate", "Basic realm=\"test\"" );
+                response.setStatus( HttpServletResponse.SC_UNAUTHORIZED );
+                ( (Request) request ).setHandled( true );
+            }
+            else
+            {
+                accepted++;
+            }
+        }
+    }
+
+    private static class ChallengingHandler
+        extends AbstractHandler
+    {
+
+        volatile int challenges;
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            if ( request.getHeader( "Authorization" ) == null )
+            {
+                challenges++;
+                response.setHeader( "WWW-Authenticate", "Basic realm=\"test\"" );
+                response.setStatus( HttpServletResponse.SC_UNAUTHORIZED );
+                ( (Request) request ).setHandled( true );
+            }
+        }
+    }
+
+    private static class CrossOriginRedirectHandler
+        extends AbstractHandler
+    {
+
+        final List<String> foreignAuthorizations = Collections.synchronizedList( new ArrayList<String>() );
+
+        volatile int foreignPort;
+
+        volatile int challenges;
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            if ( request.getServerPort() == foreignPort )
+            {
+                foreignAuthorizations.add( request.getHeader( "Authorization" ) );
+                response.getWriter().write( "PASSED" );
+            }
+            else if ( request.getHeader( "Authorization" ) == null )
+            {
+                challenges++;
+                response.setHeader( "WWW-Authenticate", "Basic realm=\"test\"" );
+                response.setStatus( HttpServletResponse.SC_UNAUTHORIZED );
+            }
+            else
+            {
+                response.setStatus( HttpServletResponse.SC_MOVED_TEMPORARILY );
+                response.setHeader( "Location", "http://127.0.0.1:" + foreignPort + request.getRequestURI() );
+            }
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    private static class DigestChallengingHandler
+        extends AbstractHandler
+    {
+
+        private static final Pattern PARAM = Pattern.compile( "(\\w+)=(?:\"([^\"]*)\"|([^,\\s]*))" );
+
+        final String username;
+
+        final String password;
+
+        final List<String> nonceCounts = Collections.synchronizedList( new ArrayList<String>() );
+
+        volatile int challenges;
+
+        DigestChallengingHandler( String username, String password )
+        {
+            this.username = username;
+            this.password = password;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            String authorization = request.getHeader( "Authorization" );
+            if ( authorization != null && authorization.startsWith( "Digest " ) )
+            {
+                Properties params = new Properties();
+                for ( Matcher m = PARAM.matcher( authorization ); m.find(); )
+                {
+                    params.setProperty( m.group( 1 ), m.group( 2 ) != null ? m.group( 2 ) : m.group( 3 ) );
+                }
+
+                try
+                {
+                    String ha1 = md5( ( username + ":test:" + password ).getBytes( "ISO-8859-1" ) );
+                    String a2 = request.getMethod() + ":" + params.getProperty( "uri" );
+                    String ha2 = md5( a2.getBytes( "ISO-8859-1" ) );
+                    String expected =
+                        md5( ( ha1 + ":0123456789:" + params.getProperty( "nc" ) + ":" + params.getProperty( "cnonce" )
+                            + ":auth:" + ha2 ).getBytes( "ISO-8859-1" ) );
+                    if ( expected.equals( params.getProperty( "response" ) ) )
+                    {
+                        nonceCounts.add( params.getProperty( "nc" ) );
+                        return;
+                    }
+                }
+                catch ( Exception e )
+                {
+                    throw new ServletException( e );
+                }
+            }
+
+            challenges++;
+            response.setHeader( "WWW-Authenticate",
+                                "Digest realm=\"test\", nonce=\"0123456789\", algorithm=MD5, qop=\"auth\"" );
+            response.setStatus( HttpServletResponse.SC_UNAUTHORIZED );
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    private static class RemotePortHandler
+        extends AbstractHandler
+    {
+
+        final List<Integer> ports = Collections.synchronizedList( new ArrayList<Integer>() );
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            ports.add( Integer.valueOf( request.getRemotePort() ) );
+        }
+    }
+
+    private static class ConcurrencyHandler
+        extends AbstractHandler
+    {
+
+        final long delay;
+
+        int requests;
+
+        int concurrency;
+
+        int maxConcurrency;
+
+        ConcurrencyHandler( long delay )
+        {
+            this.delay = delay;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            synchronized ( this )
+            {
+                requests++;
+                maxConcurrency = Math.max( maxConcurrency, ++concurrency );
+            }
+            try
+            {
+                Thread.sleep( delay );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new ServletException( e );
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    concurrency--;
+                }
+            }
+        }
+    }
+
+    private static class DelayingHandler
+        extends AbstractHandler
+    {
+
+        final long delay;
+
+        volatile int requests;
+
+        DelayingHandler( long delay )
+        {
+            this.delay = delay;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            requests++;
+            try
+            {
+                Thread.sleep( delay );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new ServletException( e );
+            }
+        }
+    }
+
+    /**
+     * Fails the specified number of requests with the given status before letting requests through.
+     */
+    private static class SheddingHandler
+        extends AbstractHandler
+    {
+
+        final int capacity;
+
+        int active;
+
+        int shed;
+
+        SheddingHandler( int capacity )
+        {
+            this.capacity = capacity;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            synchronized ( this )
+            {
+                if ( active >= capacity )
+                {
+                    shed++;
+                    response.setStatus( 429 );
+                    ( (Request) request ).setHandled( true );
+                    return;
+                }
+                active++;
+            }
+            try
+            {
+                Thread.sleep( 100 );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new ServletException( e );
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    active--;
+                }
+            }
+        }
+    }
+
+    private static class HostHandler
+        extends AbstractHandler
+    {
+
+        final List<String> requests = Collections.synchronizedList( new ArrayList<String>() );
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            requests.add( request.getServerName() + request.getRequestURI() );
+        }
+    }
+
+    private static class SlowFirstHandler
+        extends AbstractHandler
+    {
+
+        final long delay;
+
+        volatile int stalls;
+
+        volatile int requests;
+
+        volatile int stalling;
+
+        SlowFirstHandler( long delay )
+        {
+            this.delay = delay;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            requests++;
+            if ( stalls > 0 )
+            {
+                stalls--;
+                synchronized ( this )
+                {
+                    stalling++;
+                }
+                try
+                {
+                    Thread.sleep( delay );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new ServletException( e );
+                }
+                finally
+                {
+                    synchronized ( this )
+                    {
+                        stalling--;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        synchronized void awaitStalls()
+            throws InterruptedException
+        {
+            while ( stalling > 0 )
+            {
+                wait();
+            }
+        }
+    }
+
+    private static class FlakyHandler
+        extends AbstractHandler
+    {
+
+        final int status;
+
+        volatile int failures;
+
+        volatile String retryAfter;
+
+        FlakyHandler( int status )
+        {
+            this.status = status;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            if ( failures > 0 )
+            {
+                failures--;
+                if ( retryAfter != null )
+                {
+                    response.setHeader( "Retry-After", retryAfter );
+                }
+                response.setStatus( status );
+                ( (Request) request ).setHandled( true );
+            }
+        }
+    }
+
+    /**
+     * Serves a generated resource in small chunks with a pause between each.
+     */
+    /**
+     * Serves a generated body of the given size and keeps track of how much of it has been sent.
+     */
+    private static class CountingHandler
+        extends AbstractHandler
+    {
+
+        final int chunks;
+
+        final int chunkSize;
+
+        volatile long written;
+
+        CountingHandler( int chunks, int chunkSize )
+        {
+            this.chunks = chunks;
+            this.chunkSize = chunkSize;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            response.setContentLength( chunks * chunkSize );
+            OutputStream out = response.getOutputStream();
+            for ( int i = 0; i < chunks; i++ )
+            {
+                out.write( new byte[chunkSize] );
+                out.flush();
+                written += chunkSize;
+            }
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    /**
+     * Drops the connection midway through the body of a response that carries no validators.
+     */
+    private static class TruncatingHandler
+        extends AbstractHandler
+    {
+
+        final int length;
+
+        final int truncateAt;
+
+        volatile int requests;
+
+        TruncatingHandler( int length, int truncateAt )
+        {
+            this.length = length;
+            this.truncateAt = truncateAt;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            requests++;
+            response.setContentLength( length );
+            OutputStream out = response.getOutputStream();
+            out.write( new byte[truncateAt] );
+            out.flush();
+            HttpConnection.getCurrentConnection().getEndPoint().close();
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    /**
+     * Serves the given content while claiming support for ranges, but without a validator.
+     */
+    private static class UnvalidatedContentHandler
+        extends AbstractHandler
+    {
+
+        final byte[] content;
+
+        UnvalidatedContentHandler( byte[] content )
+        {
+            this.content = content;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            response.setHeader( "Accept-Ranges", "bytes" );
+            response.setContentLength( content.length );
+            response.getOutputStream().write( content );
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    private static class EncodedTruncatingHandler
+        extends AbstractHandler
+    {
+
+        final byte[] gzipped;
+
+        volatile int requests;
+
+        EncodedTruncatingHandler( byte[] gzipped )
+        {
+            this.gzipped = gzipped;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            requests++;
+            response.setHeader( "ETag", "\"0815\"" );
+            response.setHeader( "Content-Encoding", "gzip" );
+            response.setContentLength( gzipped.length );
+            OutputStream out = response.getOutputStream();
+            out.write( gzipped, 0, gzipped.length / 2 );
+            out.flush();
+            HttpConnection.getCurrentConnection().getEndPoint().close();
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    private static class TricklingHandler
+        extends AbstractHandler
+    {
+
+        final int chunks;
+
+        final int chunkSize;
+
+        final long delay;
+
+        TricklingHandler( int chunks, int chunkSize, long delay )
+        {
+            this.chunks = chunks;
+            this.chunkSize = chunkSize;
+            this.delay = delay;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            response.setContentLength( chunks * chunkSize );
+            OutputStream out = response.getOutputStream();
+            try
+            {
+                for ( int i = 0; i < chunks; i++ )
+                {
+                    out.write( new byte[chunkSize] );
+                    out.flush();
+                    Thread.sleep( delay );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                throw new ServletException( e );
+            }
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
+    /**
+     * Stops sending the body of a requested resource midway for a while, unless only a range of it is requested.
+     */
+    private static class StallingHandler
+        extends AbstractHandler
+    {
+
+        final String repositoryPath;
+
+        final int stallAt;
+
+        final long stall;
+
+        StallingHandler( String repositoryPath, int stallAt, long stall )
+        {
+            this.repositoryPath = repositoryPath;
+            this.stallAt = stallAt;
+            this.stall = stall;
+        }
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            if ( request.getHeader( "Range" ) != null )
+            {
+                return;
+            }
+
+            File file = new File( repositoryPath, target );
+            byte[] content = readFile( file );
+
+            response.setContentLength( content.length );
+            response.setHeader( "ETag", "\"0815\"" );
+            OutputStream out = response.getOutputStream();
+            try
+            {
+                out.write( content, 0, stallAt );
+                out.flush();
+                Thread.sleep( stall );
+                out.write( content, stallAt, content.length - stallAt );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new ServletException( e );
+            }
+            catch ( IOException e )
+            {
+                // the client has given up on us
+            }
+            ( (Request) request ).setHandled( true );
+        }
+    }
+
     private static class SslRedirectHandler
         extends AbstractHandler
     {
@@ -23,12 +23,25 @@ import org.apache.maven.wagon.StreamingWagon;
 import org.apache.maven.wagon.repository.Repository;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.handler.AbstractHandler;
 import org.mortbay.jetty.servlet.Context;
 import org.sonatype.maven.wagon.AhcWagon;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 public class AhcHttpsWagonTest
     extends HttpWagonTestCase
 {
@@ -93,4 +106,70 @@ public class AhcHttpsWagonTest
         }
     }
 
+    public void testSessionResumptionAcrossWagons()
+        throws Exception
+    {
+        alert( "\n\nRunning test: " + getName() );
+
+        SslSessionHandler handler = new SslSessionHandler();
+        handlers = new Handler[] { handler, new StatusHandler( 200 ) };
+        contexts = new Context[] {};
+
+        setupTestServer();
+
+        setupRepositories();
+
+        setupWagonTestingFixtures();
+
+        String suite = "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA";
+
+        try
+        {
+            for ( int i = 0; i < 2; i++ )
+            {
+                AhcWagon wagon = (AhcWagon) getWagon();
+                // different settings for each wagon to get separate clients and thus separate connections
+                wagon.setConnectionIdleTimeout( 10000 + i );
+                wagon.setSslCipherSuites( "TLS_NO_SUCH_SUITE, " + suite );
+                wagon.connect( new Repository( "id", getTestRepositoryUrl() ) );
+                try
+                {
+                    wagon.getToStream( "/base.txt", new ByteArrayOutputStream() );
+                }
+                finally
+                {
+                    wagon.disconnect();
+                }
+            }
+        }
+        finally
+        {
+            tearDownWagonTestingFixtures();
+
+            stopTestServer();
+        }
+
+        assertEquals( 2, handler.sessions.size() );
+        assertEquals( handler.sessions.get( 0 ), handler.sessions.get( 1 ) );
+        assertEquals( Collections.nCopies( 2, suite ), handler.suites );
+    }
+
+    private static class SslSessionHandler
+        extends AbstractHandler
+    {
+
+        final List<String> sessions = Collections.synchronizedList( new ArrayList<String>() );
+
+        final List<String> suites = Collections.synchronizedList( new ArrayList<String>() );
+
+        public void handle( String target, HttpServletRequest request, HttpServletResponse response, int dispatch )
+            throws IOException, ServletException
+        {
+            SSLSocket socket = (SSLSocket) HttpConnection.getCurrentConnection().getEndPoint().getTransport();
+            SSLSession session = socket.getSession();
+            sessions.add( new BigInteger( 1, session.getId() ).toString( 16 ) );
+            suites.add( session.getCipherSuite() );
+        }
+    }
+
 }